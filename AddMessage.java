@@ -1,27 +1,51 @@
 import edu.rit.ds.registry.NotBoundException;
 import edu.rit.ds.registry.RegistryProxy;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 
 /**
  * Class Addmessage encapsulates a function of adding a new message to specify  
  * microblog in the P2Patter system. An object of adding message is uniquely  
  * identified by the given microblog owner name, message serial number,
  * message date/time, and message text. Class AddMessage is serializable so it 
- * can be passed in remote method calls.
+ * can be passed in remote method calls; it is sent in its compact wire form (see
+ * class WireForm).
  * <P>
  * Class AddMessage also has the main program for adding a new message to specify
  * microblog in the P2Pedia system.
  * <P>
  * Usage: java AddMessage <I>host</I> <I>port</I> <I>name</I> "<I>text</I>"
+ * <BR>or: java AddMessage -stdin <I>host</I> <I>port</I> <I>name</I>
+ * <BR>or: java AddMessage -file <I>file</I> <I>host</I> <I>port</I> <I>name</I>
  * <BR><I>host</I> = The name of the host computer where the Registry Server is running
  * <BR><I>port</I> = The port number to which the Registry Server is listening
  * <BR><I>name</I> = The microblog owner's name
  * <BR><I>text</I> = The text of the message to be added (It is enclosed in quotation marks)
+ * <BR><I>file</I> = The file to read message texts from
+ * <P>
+ * With <TT>-stdin</TT> the message texts are read from the standard input, one
+ * message per line, and with <TT>-file</TT> they are read from the given file.
+ * Any <I>text</I>, such as <TT>-</TT> or <TT>@home</TT>, is added as it is. The
+ * messages are sent over a single connection in chunks of
+ * <TT>p2patter.addmessage.chunk</TT> messages (default and at most 1000), each
+ * chunk added with one remote call.
  */
 public class AddMessage 
 	implements Serializable
 	{
+	/**
+	 * Pinned to the value this class had before its wire form changed, so
+	 * peers that serialize it by default stay compatible.
+	 */
+	private static final long serialVersionUID = 4758884807653943254L;
+
 	/**
 	 * This microblog's owner name.
 	 */
@@ -72,9 +96,17 @@ public class AddMessage
 	 */
 	public String toString()
 		{
-		return "--------------------------------------------------------------------------------\n" +
-			name + " -- Message " + num + " -- " + date + "\n" + 
-			text;
+		return Message.render(name, num, date, text);
+		}
+
+	/**
+	 * Replace this message with its compact wire form when it is serialized.
+	 *
+	 * @return	Object  Wire form, or this message if compact wire forms are off.
+	 */
+	private Object writeReplace()
+		{
+		return WireForm.COMPACT ? new WireForm(this) : this;
 		}
 	
 	/**
@@ -84,21 +116,27 @@ public class AddMessage
 		(String[] args)
 		throws Exception
 		{
-		// Parse command line arguments.
-		if (args.length !=4) 
+		// Parse command line arguments. The flags come before the host name,
+		// so no message text is ever taken for one.
+		boolean stdin = args.length == 4 && args[0].equals("-stdin");
+		String file = args.length == 5 && args[0].equals("-file") ? args[1] : null;
+		int first = stdin ? 1 : file != null ? 2 : 0;
+		if (args.length != (stdin || file != null ? first + 3 : 4))
 			{
 			throw new IllegalArgumentException
 				("\nUsage: java AddMessage <host> <port> <name> \"<text>\"\n" +
+				 "   or: java AddMessage -stdin <host> <port> <name>\n" +
+				 "   or: java AddMessage -file <file> <host> <port> <name>\n" +
 				 "<host> = The name of the host computer where the Registry Server is running\n" +
 				 "<port> = The port number to which the Registry Server is listening\n" +
 			     	 "<name> = The microblog owner's name\n" +
-		     	 	 "<text> = The text of the message to be added (It is enclosed in quotation marks)");
+		     	 	 "<text> = The text of the message to be added (It is enclosed in quotation marks)\n" +
+				 "<file> = The file to read message texts from, one per line");
 			}
 
-		String host = args[0];
-		int port = parseInt(args[1], "port");
-		String name = args[2];
-		String text = args[3];
+		String host = args[first];
+		int port = parseInt(args[first + 1], "port");
+		String name = args[first + 2];
 		
 		// Look up microblog owner name in the Registry Server and add a new message. 
 		// Then print the complete message content on console.
@@ -106,9 +144,30 @@ public class AddMessage
 			{
 			RegistryProxy registry = new RegistryProxy(host, port);
 			MicroblogRef microblog = (MicroblogRef) registry.lookup(name);
-			String message = microblog.AddMessage(text);
+			if (stdin)
+				{
+				addMessages(microblog, new BufferedReader
+					(new InputStreamReader(System.in, StandardCharsets.UTF_8)));
+				}
+			else if (file != null)
+				{
+				BufferedReader reader = Files.newBufferedReader
+					(Paths.get(file), StandardCharsets.UTF_8);
+				try
+					{
+					addMessages(microblog, reader);
+					}
+				finally
+					{
+					reader.close();
+					}
+				}
+			else
+				{
+				String message = microblog.AddMessage(args[3]);
 			
-			System.out.println(message);
+				System.out.println(message);
+				}
 			}
 		catch (NotBoundException nbe)
 			{
@@ -122,6 +181,45 @@ public class AddMessage
 			}
 		}
 	
+	/**
+	 * Add the message texts read from the given <TT>reader</TT>, one per line,
+	 * to the given <TT>microblog</TT> in chunks, and print each complete
+	 * message content on console. Empty lines are skipped.
+	 *
+	 * @param	microblog  Microblog.
+	 * @param	reader	   Source of message texts.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error or a remote error occurred.
+	 */
+	private static void addMessages
+		(MicroblogRef microblog,
+		 BufferedReader reader)
+		throws IOException
+		{
+		int chunk = Math.max(1, Math.min(Microblog.MAX_BATCH,
+			Integer.getInteger("p2patter.addmessage.chunk", Microblog.MAX_BATCH)));
+		ArrayList<String> texts = new ArrayList<String>(chunk);
+		StringBuilder out = new StringBuilder();
+		String line;
+		do
+			{
+			line = reader.readLine();
+			if (line != null && line.length() > 0)
+				texts.add(line);
+			if (texts.size() == chunk || (line == null && ! texts.isEmpty()))
+				{
+				out.setLength(0);
+				for (String message : microblog.addMessages(texts))
+					out.append(message).append('\n');
+				System.out.print(out);
+				texts.clear();
+				}
+			}
+		while (line != null);
+		System.out.flush();
+		}
+	
 	/**
 	 * Parse an integer command line argument.
 	 *
@@ -0,0 +1,436 @@
+import edu.rit.ds.RemoteEventListener;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class EventDispatcher fans microblog events out to remote event listeners in
+ * the P2Patter system without making the poster wait for the listeners.
+ * <P>
+ * Each remote listener is wrapped in a local subscriber, and the subscriber is
+ * what gets added to the microblog's remote event generator. When the
+ * generator reports an event, the subscriber only puts the event on its own
+ * bounded queue and returns. The queues are drained by a shared pool of worker
+ * threads, which make the actual remote calls; one subscriber is drained by at
+ * most one worker at a time, so each listener still gets its events in order.
+ * <P>
+ * If a subscriber's queue is full, its oldest event is discarded to make room.
+ * A listener that has events discarded <TT>maxDrops</TT> times in a row without
+ * any successful delivery in between, or whose remote call fails, is dropped:
+ * its subscriber throws a RemoteException on the next report, so the generator
+ * removes it. Each subscriber numbers its events with its own consecutive
+ * sequence numbers, so a listener can tell from a gap that events were lost.
+ * <P>
+ * A listener may ask for batches. Its subscriber then waits up to the linger
+ * time after the first queued event, and reports up to <TT>batchSize</TT>
+ * queued events at a time as one MicroblogBatchEvent.
+ * <P>
+ * While more than <TT>sequenceOnlyAbove</TT> listeners are subscribed, events
+ * are delivered in sequence-only form, carrying the serial numbers but not the
+ * messages, so a microblog with many listeners does not send every message text
+ * to every listener.
+ */
+public class EventDispatcher
+	{
+	/**
+	 * Greatest number of events one worker delivers to one listener before
+	 * letting other listeners have a turn.
+	 */
+	private static final int BURST = 64;
+
+	/**
+	 * An event waiting to be delivered, with its sequence number.
+	 */
+	private static class Delivery
+		{
+		public final long seq;
+		public final MicroblogEvent event;
+		public final long queued = System.nanoTime();
+
+		public Delivery
+			(long seq,
+			 MicroblogEvent event)
+			{
+			this.seq = seq;
+			this.event = event;
+			}
+		}
+
+	/**
+	 * Local subscriber that queues events for one remote listener.
+	 */
+	private class Subscriber
+		implements RemoteEventListener<MicroblogEvent>, Runnable
+		{
+		private RemoteEventListener<MicroblogEvent> listener;
+		private boolean batched;
+		private ArrayBlockingQueue<Delivery> queue;
+		private AtomicBoolean scheduled = new AtomicBoolean();
+		private volatile boolean dropped;
+		private long seq;
+		private int drops;
+		private volatile long lastReport = System.currentTimeMillis();
+
+		public Subscriber
+			(RemoteEventListener<MicroblogEvent> listener,
+			 boolean batched)
+			{
+			this.listener = listener;
+			this.batched = batched;
+			this.queue = new ArrayBlockingQueue<Delivery>(capacity);
+			}
+
+		/**
+		 * Queue the given event for delivery.
+		 */
+		public void report
+			(long theSeq,
+			 MicroblogEvent event)
+			throws RemoteException
+			{
+			if (dropped)
+				throw new RemoteException("EventDispatcher: Listener dropped");
+
+			lastReport = System.currentTimeMillis();
+			lastEvent = lastReport;
+			synchronized (this)
+				{
+				// A batch of messages added in bulk is queued one message at a
+				// time, so each listener gets them the way it asked for.
+				if (event instanceof MicroblogBatchEvent)
+					{
+					for (AddMessage message : ((MicroblogBatchEvent) event).messages)
+						enqueue(new MicroblogEvent(event.name, message));
+					}
+				else
+					{
+					enqueue(event);
+					}
+				}
+			schedule();
+			}
+
+		/**
+		 * Queue the given event. Call this method while holding the
+		 * subscriber's lock.
+		 */
+		private void enqueue
+			(MicroblogEvent event)
+			throws RemoteException
+			{
+			Delivery delivery = new Delivery(++ seq, event);
+			while (! queue.offer(delivery))
+				{
+				// Demote the listener by discarding its oldest event; drop
+				// it once it has fallen behind for too long.
+				if (queue.poll() != null)
+					{
+					dropCount.incrementAndGet();
+					if (++ drops >= maxDrops)
+						{
+						drop();
+						throw new RemoteException
+							("EventDispatcher: Listener fell too far behind");
+						}
+					}
+				}
+			}
+
+		/**
+		 * Deliver queued events to the remote listener.
+		 */
+		public void run()
+			{
+			try
+				{
+				boolean slim = subscribers.size() > sequenceOnlyAbove;
+				for (int i = 0; i < BURST && ! dropped; ++ i)
+					{
+					Delivery delivery = queue.poll();
+					if (delivery == null)
+						break;
+					long start = System.nanoTime();
+					queueWait.record(start - delivery.queued);
+					if (batched)
+						reportBatch(delivery, slim);
+					else if (slim)
+						listener.report(delivery.seq, delivery.event.sequenceOnly());
+					else
+						listener.report(delivery.seq, delivery.event);
+					deliveryTime.record(System.nanoTime() - start);
+					synchronized (this)
+						{
+						drops = 0;
+						}
+					}
+				}
+			catch (RemoteException re)
+				{
+				drop();
+				}
+			finally
+				{
+				scheduled.set(false);
+				}
+			if (! queue.isEmpty() && ! dropped)
+				schedule();
+			}
+
+		/**
+		 * Report the given delivery plus as many queued ones as fit in one batch
+		 * to the remote listener, in sequence-only form if <TT>slim</TT> is
+		 * true.
+		 */
+		private void reportBatch
+			(Delivery first,
+			 boolean slim)
+			throws RemoteException
+			{
+			ArrayList<AddMessage> messages = new ArrayList<AddMessage>(batchSize);
+			messages.add(first.event.message);
+			long last = first.seq;
+			Delivery delivery;
+			while (messages.size() < batchSize && (delivery = queue.poll()) != null)
+				{
+				messages.add(delivery.event.message);
+				last = delivery.seq;
+				}
+			if (slim)
+				{
+				int[] nums = new int[messages.size()];
+				for (int i = 0; i < nums.length; ++ i)
+					nums[i] = messages.get(i).num;
+				listener.report(last, new MicroblogBatchEvent(first.event.name, nums));
+				}
+			else
+				{
+				listener.report(last, new MicroblogBatchEvent
+					(first.event.name, messages.toArray(new AddMessage[messages.size()])));
+				}
+			}
+
+		/**
+		 * Make sure a worker will drain this subscriber's queue. A batched
+		 * subscriber is drained after the linger time, so more events can
+		 * join the batch.
+		 */
+		private void schedule()
+			{
+			if (scheduled.compareAndSet(false, true))
+				{
+				if (batched && linger > 0)
+					workers.schedule(this, linger, TimeUnit.MILLISECONDS);
+				else
+					workers.execute(this);
+				}
+			}
+
+		/**
+		 * Stop delivering to the remote listener.
+		 */
+		private synchronized void drop()
+			{
+			if (! dropped)
+				{
+				dropped = true;
+				queue.clear();
+				subscribers.remove(this);
+				droppedListeners.incrementAndGet();
+				}
+			}
+		}
+
+	private int capacity;
+	private int maxDrops;
+	private long staleAfter;
+	private long linger;
+	private int batchSize;
+	private int sequenceOnlyAbove;
+	private ScheduledExecutorService workers;
+
+	private Set<Subscriber> subscribers =
+		Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+	private volatile long lastEvent;
+	private AtomicLong dropCount = new AtomicLong();
+	private AtomicLong droppedListeners = new AtomicLong();
+	private LatencyHistogram queueWait = new LatencyHistogram();
+	private LatencyHistogram deliveryTime = new LatencyHistogram();
+
+	/**
+	 * Construct a new event dispatcher.
+	 *
+	 * @param	threads	    Number of worker threads.
+	 * @param	capacity    Capacity of each listener's queue.
+	 * @param	maxDrops    Number of discarded events in a row after which a
+	 *			    listener is dropped.
+	 * @param	staleAfter  Time (milliseconds) without events after which a
+	 *			    listener whose lease has expired is forgotten.
+	 * @param	linger	    Time (milliseconds) a batch waits for more events.
+	 * @param	batchSize   Greatest number of events in a batch.
+	 * @param	sequenceOnlyAbove
+	 *			    Number of listeners above which events are
+	 *			    delivered in sequence-only form.
+	 */
+	public EventDispatcher
+		(int threads,
+		 int capacity,
+		 int maxDrops,
+		 long staleAfter,
+		 long linger,
+		 int batchSize,
+		 int sequenceOnlyAbove)
+		{
+		this.capacity = capacity;
+		this.maxDrops = maxDrops;
+		this.staleAfter = staleAfter;
+		this.linger = linger;
+		this.batchSize = batchSize;
+		this.sequenceOnlyAbove = sequenceOnlyAbove;
+		this.workers = Executors.newScheduledThreadPool(threads, new ThreadFactory()
+			{
+			public Thread newThread(Runnable r)
+				{
+				Thread thread = new Thread(r, "Microblog fan-out");
+				thread.setDaemon(true);
+				return thread;
+				}
+			});
+		}
+
+	/**
+	 * Stop the worker threads of this dispatcher. Events not yet delivered are
+	 * discarded.
+	 */
+	public void shutdown()
+		{
+		workers.shutdownNow();
+		}
+
+	/**
+	 * Wrap the given remote <TT>listener</TT> in a subscriber of this
+	 * dispatcher. Add the returned subscriber, not the remote listener, to the
+	 * remote event generator.
+	 *
+	 * @param	listener  Remote event listener.
+	 * @param	batched   True to report batch events to the listener.
+	 *
+	 * @return	RemoteEventListener  Local subscriber.
+	 */
+	public RemoteEventListener<MicroblogEvent> subscribe
+		(RemoteEventListener<MicroblogEvent> listener,
+		 boolean batched)
+		{
+		prune();
+		Subscriber subscriber = new Subscriber(listener, batched);
+		subscribers.add(subscriber);
+		return subscriber;
+		}
+
+	/**
+	 * Returns the number of listeners being delivered to.
+	 *
+	 * @return	int  Listener count.
+	 */
+	public int getListenerCount()
+		{
+		prune();
+		return subscribers.size();
+		}
+
+	/**
+	 * Returns the total number of events waiting in all listeners' queues.
+	 *
+	 * @return	int  Queued event count.
+	 */
+	public int getQueueDepth()
+		{
+		int depth = 0;
+		for (Subscriber subscriber : subscribers)
+			depth += subscriber.queue.size();
+		return depth;
+		}
+
+	/**
+	 * Returns the greatest number of events waiting in any one listener's
+	 * queue.
+	 *
+	 * @return	int  Queued event count.
+	 */
+	public int getMaxQueueDepth()
+		{
+		int depth = 0;
+		for (Subscriber subscriber : subscribers)
+			depth = Math.max(depth, subscriber.queue.size());
+		return depth;
+		}
+
+	/**
+	 * Returns the number of events discarded because a listener's queue was
+	 * full.
+	 *
+	 * @return	long  Discarded event count.
+	 */
+	public long getDropCount()
+		{
+		return dropCount.get();
+		}
+
+	/**
+	 * Returns the number of listeners dropped for falling behind or failing.
+	 *
+	 * @return	long  Dropped listener count.
+	 */
+	public long getDroppedListenerCount()
+		{
+		return droppedListeners.get();
+		}
+
+	/**
+	 * Returns the histogram of the time (nanoseconds) events wait in a
+	 * listener's queue before delivery starts. For a batch, only the wait of
+	 * its first event is recorded.
+	 *
+	 * @return	LatencyHistogram  Queue wait histogram.
+	 */
+	public LatencyHistogram getQueueWait()
+		{
+		return queueWait;
+		}
+
+	/**
+	 * Returns the histogram of the time (nanoseconds) each remote call to a
+	 * listener takes, whether it reports one event or a batch.
+	 *
+	 * @return	LatencyHistogram  Delivery time histogram.
+	 */
+	public LatencyHistogram getDeliveryTime()
+		{
+		return deliveryTime;
+		}
+
+	/**
+	 * Forget the subscribers the remote event generator no longer reports to
+	 * because their leases expired: those that have had no event for
+	 * <TT>staleAfter</TT> milliseconds while other subscribers did.
+	 */
+	private void prune()
+		{
+		long now = System.currentTimeMillis();
+		if (now - lastEvent >= staleAfter)
+			return;
+		for (Subscriber subscriber : subscribers)
+			{
+			if (now - subscriber.lastReport >= staleAfter)
+				subscribers.remove(subscriber);
+			}
+		}
+	}
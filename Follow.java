@@ -7,12 +7,73 @@ import edu.rit.ds.registry.RegistryEvent;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class Follow provides the follow program in the P2Patter system.
+ * <P>
+ * Usage: java Follow <I>host</I> <I>port</I> <I>name</I> ...
+ * <BR><I>host</I> = The name of the host computer where the Registry Server is running
+ * <BR><I>port</I> = The port number to which the Registry Server is listening
+ * <BR><I>name</I> = The microblog owner's name; there may be one or more names
+ * <P>
+ * The number of most recently added messages printed from each microblog at
+ * startup is given by the <TT>p2patter.follow.depth</TT> system property
+ * (default 2), up to 1000. If the <TT>p2patter.follow.backfill</TT> system
+ * property is set, that many messages are printed from each microblog instead,
+ * fetched a page of history at a time. The microblogs are attached concurrently, and the greatest number
+ * attached at once is given by the <TT>p2patter.follow.threads</TT> system
+ * property (default 32). If the <TT>p2patter.follow.batch</TT> system property
+ * is true, new messages are received in batches rather than one at a time.
+ * <P>
+ * The output is printed by an OutputSink, so receiving a message never waits
+ * for the console. It goes to the standard output, or to the file named by the
+ * <TT>p2patter.follow.output</TT> system property. Up to
+ * <TT>p2patter.follow.queue</TT> messages (default 8192) wait to be printed;
+ * beyond that, the <TT>p2patter.follow.overflow</TT> system property says
+ * whether to <TT>block</TT>, <TT>drop_oldest</TT>, or <TT>spill</TT> to a
+ * temporary file (default <TT>spill</TT>).
+ * <P>
+ * Each followed name is tracked in a concurrent hash map as unknown (not bound
+ * in the Registry Server), bound (being attached), attached, or failed. A
+ * registry event looks its name up directly and moves it to its next state with
+ * a compare-and-set, so only one thread ever attaches to a rebound microblog.
+ * <P>
+ * Follow remembers, for each microblog, the lowest serial number it has not yet
+ * accounted for, below which every message has been printed or was not there
+ * to print, and the sequence number of the next event it expects. Events from
+ * concurrent posters may report serial numbers out of order, so the messages
+ * printed above that watermark are remembered too. When a microblog is
+ * rebound, or an event arrives after a gap in the sequence numbers, Follow asks
+ * the microblog for the messages from the watermark on, up to
+ * <TT>p2patter.follow.catchup</TT> messages (default 10000), and prints the
+ * ones it has not printed yet in order before the new event, leaving out any
+ * message the event reports again. The catching up is done by a background
+ * fetch thread, so the remote calls never hold up the delivery of events; new
+ * messages wait until it is done. A serial number that never turns up, such as
+ * one whose posting failed, holds the watermark back only until 1024 messages
+ * above it have been printed, and a message printed that far below the
+ * watermark is no longer looked out for in events.
+ * <P>
+ * A microblog with many listeners may send sequence-only events, which carry
+ * the serial numbers of the new messages but not the messages. Follow collects
+ * the serial numbers of each microblog's sequence-only events, and the fetch
+ * thread gets their messages in one call to the microblog's
+ * <TT>getMessages()</TT> method once <TT>p2patter.follow.linger</TT>
+ * milliseconds (default 5) have passed, or at once when 1000 are waiting.
  */
 public class Follow 
 	{	
@@ -23,15 +84,134 @@ public class Follow
 	private static RegistryEventFilter rUnboundFilter;
 	private static RemoteEventListener<MicroblogEvent> mbListener;
 	
-	private static String rname;
-	private static int[] rnum;
-	private static String[] rcont;
-	private static Date[] rdate;
+	private static int depth = Integer.getInteger("p2patter.follow.depth", 2);
+	private static int threads = Integer.getInteger("p2patter.follow.threads", 32);
+	private static boolean batch = Boolean.getBoolean("p2patter.follow.batch");
+	private static int backfill = Integer.getInteger("p2patter.follow.backfill", 0);
+	private static int catchup = Integer.getInteger("p2patter.follow.catchup", 10000);
+	private static int linger = Integer.getInteger("p2patter.follow.linger", 5);
 	
-	private static ArrayList<String> boundName = new ArrayList<String>();
-	private static ArrayList<String> unboundName = new ArrayList<String>();
-	private static Message mess[] = new Message[2];
-	private static LinkedList<Message> initial = new LinkedList<Message>();
+	/**
+	 * Greatest number of messages printed above a feed's watermark before the
+	 * watermark is moved past a serial number that never turned up.
+	 */
+	private static final int AHEAD = 1024;
+	
+	/**
+	 * Greatest number of serial numbers got from a microblog in one call.
+	 */
+	private static final int FETCH = 1000;
+	
+	/**
+	 * Thread that catches up on the messages of feeds that fell behind, and
+	 * gets the messages reported by sequence-only events.
+	 */
+	private static final ScheduledExecutorService FETCHER =
+		Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+			public Thread newThread(Runnable r)
+				{
+				Thread thread = new Thread(r, "Follow fetch");
+				thread.setDaemon(true);
+				return thread;
+				}
+			});
+	
+	private static OutputSink sink;
+	
+	/**
+	 * State of a followed name.
+	 */
+	private static enum State
+		{
+		UNKNOWN, BOUND, ATTACHED, FAILED
+		}
+	
+	/**
+	 * One state of a followed name. A new link is made for every change of
+	 * state, so a thread that changed the state can tell, by identity, whether
+	 * the state has changed again since.
+	 */
+	private static class Link
+		{
+		public final State state;
+		
+		public Link
+			(State state)
+			{
+			this.state = state;
+			}
+		}
+	
+	private static ConcurrentHashMap<String, Link> followed =
+		new ConcurrentHashMap<String, Link>();
+	
+	/**
+	 * What has been received from one followed microblog. Use a feed only
+	 * while holding its lock.
+	 */
+	private static class Feed
+		{
+		public final String name;
+		public MicroblogRef microblog;
+		
+		/**
+		 * Lowest serial number not yet accounted for. Every message with a
+		 * lower serial number has been printed or was not in the microblog.
+		 */
+		public int nextNum = 1;
+		
+		/**
+		 * Serial numbers of the messages printed at or above
+		 * <TT>nextNum</TT>.
+		 */
+		public TreeSet<Integer> ahead = new TreeSet<Integer>();
+		public long nextSeq = 1;
+		
+		/**
+		 * Serial numbers of the messages printed from a catch-up or the
+		 * initial messages, which an event may still report. Those more than
+		 * <TT>AHEAD</TT> below <TT>nextNum</TT> are forgotten.
+		 */
+		public TreeSet<Integer> fetched = new TreeSet<Integer>();
+		
+		/**
+		 * True if messages may have been missed and are to be caught up on.
+		 * Until then, the messages of new events are held back.
+		 */
+		public boolean behind;
+		
+		/**
+		 * Number of times this feed has fallen behind.
+		 */
+		public int gaps;
+		
+		/**
+		 * Messages held back until the catch-up is done.
+		 */
+		public ArrayList<AddMessage> held = new ArrayList<AddMessage>();
+		
+		/**
+		 * Serial numbers reported by sequence-only events whose messages are
+		 * still to be got.
+		 */
+		public TreeSet<Integer> wanted = new TreeSet<Integer>();
+		
+		/**
+		 * Fetch thread task queued for this feed, or null if none.
+		 */
+		public ScheduledFuture<?> fetch;
+		
+		public Feed
+			(String name)
+			{
+			this.name = name;
+			}
+		}
+	
+	private static ConcurrentHashMap<String, Feed> feeds =
+		new ConcurrentHashMap<String, Feed>();
+	private static ArrayList<MessagePage> initial = new ArrayList<MessagePage>();
 	
 	/**
 	 * Follow main program.
@@ -53,6 +233,20 @@ public class Follow
 		String host = args[0];
 		int port = parseInt (args[1], "port");
 		
+		// Start printing the output in the background, and print what is
+		// still queued when the program is stopped.
+		sink = new OutputSink
+			(OutputSink.open(System.getProperty("p2patter.follow.output")),
+			 Integer.getInteger("p2patter.follow.queue", 8192),
+			 parsePolicy(System.getProperty("p2patter.follow.overflow", "spill")));
+		Runtime.getRuntime().addShutdownHook(new Thread()
+			{
+			public void run()
+				{
+				sink.close(5000);
+				}
+			});
+		
 		// Get proxy for the Registry Server.
 		try
 			{
@@ -64,27 +258,29 @@ public class Follow
 				("\nFollow(): No Registry Server running at the given host and port");
 			}
 		
-		// If the microblog owner name(s) already exist(s) in registry list, 
-		// add it(them) into boundName list;
-		// if the microblog owner name(s) do(es) not exist in registry list, 
-		// add it(them) into unboundName list.
+		// List the registry once into a hash set.
+		// The microblog owner name(s) that already exist(s) in registry list
+		// start out bound, and are attached below; the others start out
+		// unknown, and are attached when they are bound.
+		HashSet<String> registered = new HashSet<String>(registry.list("Microblog"));
+		ArrayList<String> boundName = new ArrayList<String>();
+		ArrayList<Link> boundLink = new ArrayList<Link>();
 		for (int i=2; i<args.length; i++)
 			{
-			for (String objectName : registry.list("Microblog"))
+			if (followed.containsKey(args[i]))
+				continue;
+			feeds.put(args[i], new Feed(args[i]));
+			if (registered.contains(args[i]))
 				{
-				if (args[i].equals(objectName))
-					{
-					boundName.add(args[i]);
-					args[i] = null;
-					break;
-					}
+				Link link = new Link(State.BOUND);
+				followed.put(args[i], link);
+				boundName.add(args[i]);
+				boundLink.add(link);
+				}
+			else
+				{
+				followed.put(args[i], new Link(State.UNKNOWN));
 				}
-			}
-		
-		for (int i=2; i<args.length; i++)
-			{
-			if (args[i] != null)
-				unboundName.add(args[i]);
 			}
 
 		// Export a remote event listener object for receiving "object bound" notifications
@@ -93,22 +289,21 @@ public class Follow
 			{
 			public void report(long seq, RegistryEvent rEvent)
 				{
-				for (Iterator<String> it = unboundName.iterator(); it.hasNext(); )
+				// Attach to the new bound object if it is followed by the
+				// client and not attached already.
+				String name = rEvent.objectName();
+				Link link = bind(name);
+				if (link != null)
 					{
-					// Check if the new bound object is followed by the client.
-					if (rEvent.objectName().equals(it.next()))
+					try 
+						{
+						listenToMicroblog(name);
+						followed.replace(name, link, new Link(State.ATTACHED));
+						} 
+					catch (Exception e) 
 						{
-						try 
-							{
-							listenToMicroblog(rEvent.objectName());
-							// Update the name lists.
-							boundName.add(rEvent.objectName());
-							unboundName.remove(rEvent.objectName());
-							} 
-						catch (Exception e) 
-							{
-							e.printStackTrace();
-							}
+						followed.replace(name, link, new Link(State.FAILED));
+						System.err.println("\nFollow(): Cannot follow " + name + " -- " + e);
 						}
 					}
 				}
@@ -121,18 +316,11 @@ public class Follow
 			{
 			public void report(long seq, RegistryEvent rEvent)
 				{
-				for (Iterator<String> it = boundName.iterator(); it.hasNext();)
-					{
-					// Check if the new bound object is followed by the client.
-					if (rEvent.objectName().equals(it.next()))
-						{
-						System.out.println("--------------------------------------------------------------------------------" +
-								    rEvent.objectName() + " -- Failed");
-						// Update the name lists.
-						boundName.remove(rEvent.objectName());
-						unboundName.add(rEvent.objectName());
-						}
-					}
+				// Report the unbound object if it is followed by the client
+				// and was bound.
+				String name = rEvent.objectName();
+				if (unbind(name))
+					sink.println(Message.SEPARATOR + name + " -- Failed");
 				}
 			};
 		UnicastRemoteObject.exportObject(rUnboundListener, 0);
@@ -143,9 +331,41 @@ public class Follow
 			{
 			public void report(long seq, MicroblogEvent mbEvent)
 				{
-				// Print the new message from microblog owner 
-				// who is followed by client on the console.
-				System.out.println(mbEvent.message);
+				AddMessage[] messages = mbEvent instanceof MicroblogBatchEvent ?
+					((MicroblogBatchEvent) mbEvent).messages :
+					mbEvent.message != null ? new AddMessage[] {mbEvent.message} : null;
+				int[] nums = mbEvent instanceof MicroblogBatchEvent ?
+					((MicroblogBatchEvent) mbEvent).nums :
+					new int[] {mbEvent.num};
+				Feed feed = feeds.get(mbEvent.name);
+				if (feed == null)
+					{
+					if (messages != null)
+						for (AddMessage message : messages)
+							sink.print(message);
+					return;
+					}
+				
+				synchronized (feed)
+					{
+					// If events were lost, catch up on the messages from
+					// the watermark on first, in the background.
+					if (seq - nums.length + 1 > feed.nextSeq && feed.microblog != null)
+						fallBehind(feed);
+					feed.nextSeq = seq + 1;
+					
+					// Queue the new message(s) from microblog owner 
+					// who is followed by client to be printed, or hold
+					// them back until the catch-up is done. The messages
+					// of a sequence-only event are got by the fetch
+					// thread.
+					if (messages == null)
+						want(feed, nums);
+					else if (feed.behind)
+						feed.held.addAll(Arrays.asList(messages));
+					else
+						print(feed, messages);
+					}
 				}
 			};
 		UnicastRemoteObject.exportObject(mbListener, 0);
@@ -158,33 +378,112 @@ public class Follow
 		rUnboundFilter = new RegistryEventFilter().reportType("Microblog").reportUnbound();
 		registry.addEventListener(rUnboundListener, rUnboundFilter);
 		
-		// Do the initial follow action to the microblog of given name.
-		for (Iterator<String> it = boundName.iterator(); it.hasNext(); )
+		// Do the initial follow action to the microblogs of given names
+		// concurrently, at most <threads> at a time.
+		ExecutorService pool = Executors.newFixedThreadPool
+			(Math.max(1, Math.min(threads, boundName.size())));
+		ArrayList<Future<MessagePage>> pending = new ArrayList<Future<MessagePage>>();
+		for (final String name : boundName)
 			{
+			pending.add(pool.submit(new Callable<MessagePage>()
+				{
+				public MessagePage call()
+					throws Exception
+					{
+					return listenToInitialMicroblog(name);
+					}
+				}));
+			}
+		pool.shutdown();
+		
+		// Collect the pages, and the failure of any microblog that could
+		// not be attached.
+		ArrayList<String> failures = new ArrayList<String>();
+		for (int i=0; i<pending.size(); i++)
+			{
+			String name = boundName.get(i);
+			Link link = boundLink.get(i);
 			try
 				{
-				listenToInitialMicroblog(it.next());
+				MessagePage page = pending.get(i).get();
+				followed.replace(name, link, new Link(State.ATTACHED));
+				if (page.size() > 0)
+					initial.add(page);
 				}
-			catch (Exception e)
+			catch (ExecutionException ee)
 				{
-				e.printStackTrace();
+				followed.replace(name, link, new Link(State.FAILED));
+				failures.add(name + " -- " + ee.getCause());
 				}
 			}
 		
-		// Print the 0, 1, or 2 most recently added messages from 
+		// Print the <depth> most recently added messages from 
 		// the given owners' microblogs on console.
-		for (Iterator<Message> it = initial.iterator(); it.hasNext(); )
+		// The pages are merged into ascending order of date/time, then owner
+		// name, then serial number.
+		for (Iterator<String> it = new TimelineMerger(initial); it.hasNext(); )
+			{
+			sink.println(it.next());
+			}
+		
+		for (String failure : failures)
 			{
-			System.out.println(it.next());
+			System.err.println("\nFollow(): Cannot follow " + failure);
 			}
 
 		}
 
+	/**
+	 * Move the followed name <TT>name</TT> from unknown or failed to bound.
+	 *
+	 * @param	name  Microblog owner name.
+	 *
+	 * @return	Link  The new bound state, which the caller must move on to
+	 *		attached or failed; or null if the name is not followed or is
+	 *		already bound or attached.
+	 */
+	private static Link bind
+		(String name)
+		{
+		for (;;)
+			{
+			Link link = followed.get(name);
+			if (link == null || link.state == State.BOUND || link.state == State.ATTACHED)
+				return null;
+			Link next = new Link(State.BOUND);
+			if (followed.replace(name, link, next))
+				return next;
+			}
+		}
+	
+	/**
+	 * Move the followed name <TT>name</TT> from bound or attached to failed.
+	 *
+	 * @param	name  Microblog owner name.
+	 *
+	 * @return	boolean  True if the name was bound or attached, false if it is
+	 *		not followed or was not bound.
+	 */
+	private static boolean unbind
+		(String name)
+		{
+		for (;;)
+			{
+			Link link = followed.get(name);
+			if (link == null || link.state == State.UNKNOWN || link.state == State.FAILED)
+				return false;
+			if (followed.replace(name, link, new Link(State.FAILED)))
+				return true;
+			}
+		}
+	
 	/**
 	 * Tell the microblog object with given <TT>name</TT> to notify us of adding message.
 	 *
 	 * @param	name  Microblog owner name.
 	 *
+	 * @exception  	NotBoundException
+	 *     		Thrown if the microblog is no longer bound.
 	 * @exception  	RemoteException
 	 *     		Thrown if a remote error occurred.
 	 */
@@ -192,132 +491,525 @@ public class Follow
 		(String name)
 		throws Exception
 		{
-		try
+		Feed feed = feeds.get(name);
+		synchronized (feed)
 			{
 			MicroblogRef microblog = (MicroblogRef) registry.lookup(name);
-			microblog.addListener(mbListener);
+			boolean attachedBefore = feed.microblog != null;
+			attach(feed, microblog);
+			
+			// Catch up on what was missed while the microblog was gone. A
+			// microblog followed for the first time starts after its newest
+			// message; one that lost its messages starts over.
+			int newest = microblog.getRecentNum()[0];
+			if (! attachedBefore)
+				{
+				reset(feed, newest + 1);
+				}
+			else
+				{
+				if (newest < feed.nextNum - 1)
+					reset(feed, 1);
+				fallBehind(feed);
+				}
+			}
+		}
+	
+	/**
+	 * Add our microblog listener to the given <TT>microblog</TT>, and expect
+	 * its events to be numbered from 1. Call this method while holding the
+	 * feed's lock.
+	 *
+	 * @param	feed	   Feed.
+	 * @param	microblog  Microblog.
+	 *
+	 * @exception  	RemoteException
+	 *     		Thrown if a remote error occurred.
+	 */
+	private static void attach
+		(Feed feed,
+		 MicroblogRef microblog)
+		throws RemoteException
+		{
+		feed.microblog = microblog;
+		feed.nextSeq = 1;
+		addListener(microblog);
+		}
+	
+	/**
+	 * Record that the given <TT>feed</TT> may have missed messages, and have
+	 * the fetch thread catch up on them. Call this method while holding the
+	 * feed's lock.
+	 *
+	 * @param	feed  Feed.
+	 */
+	private static void fallBehind
+		(Feed feed)
+		{
+		feed.behind = true;
+		++ feed.gaps;
+		schedule(feed, true);
+		}
+	
+	/**
+	 * Record the given serial numbers, reported by a sequence-only event for
+	 * the given <TT>feed</TT>, and have the fetch thread get their messages:
+	 * after the linger time, so later events' serial numbers are got in the
+	 * same call, or at once if enough are waiting. Call this method while
+	 * holding the feed's lock.
+	 *
+	 * @param	feed  Feed.
+	 * @param	nums  Serial numbers.
+	 */
+	private static void want
+		(Feed feed,
+		 int[] nums)
+		{
+		for (int num : nums)
+			feed.wanted.add(num);
+		schedule(feed, feed.wanted.size() >= FETCH);
+		}
+	
+	/**
+	 * Have the fetch thread fetch for the given <TT>feed</TT>, unless it has
+	 * been asked to already. Call this method while holding the feed's lock.
+	 *
+	 * @param	feed  Feed.
+	 * @param	now   True to fetch at once, false to fetch after the linger
+	 *			time.
+	 */
+	private static void schedule
+		(final Feed feed,
+		 boolean now)
+		{
+		// A queued task that has not started yet is brought forward.
+		if (feed.fetch != null && (! now || ! feed.fetch.cancel(false)))
+			return;
+		feed.fetch = FETCHER.schedule(new Runnable()
+			{
+			public void run()
+				{
+				fetch(feed);
+				}
+			},
+			now ? 0 : linger, TimeUnit.MILLISECONDS);
+		}
+	
+	/**
+	 * Fetch for the given <TT>feed</TT> until there is nothing left to fetch:
+	 * catch up on the messages of its microblog from its watermark on if it
+	 * fell behind, then print the messages held back meanwhile, then get the
+	 * messages of its wanted serial numbers, up to 1000 in each remote call.
+	 * The remote calls are made without holding the feed's lock. This method
+	 * runs on the fetch thread.
+	 *
+	 * @param	feed  Feed.
+	 */
+	private static void fetch
+		(Feed feed)
+		{
+		synchronized (feed)
+			{
+			feed.fetch = null;
+			}
+		for (;;)
+			{
+			MicroblogRef microblog;
+			boolean behind;
+			int after;
+			int gaps;
+			int[] nums;
+			synchronized (feed)
+				{
+				microblog = feed.microblog;
+				behind = feed.behind;
+				after = feed.nextNum - 1;
+				gaps = feed.gaps;
+				nums = behind ? null : takeWanted(feed);
+				if (microblog == null || (! behind && nums.length == 0))
+					return;
+				}
+			boolean more = behind ?
+				catchUp(feed, microblog, after, gaps) :
+				getMessages(feed, microblog, nums);
+			if (! more)
+				return;
+			}
+		}
+	
+	/**
+	 * Catch up on the messages of the given <TT>feed</TT>'s microblog from
+	 * serial number <TT>after</TT> on, then print the messages held back
+	 * meanwhile, unless the feed fell behind again. This method runs on the
+	 * fetch thread.
+	 *
+	 * @param	feed	   Feed.
+	 * @param	microblog  The feed's microblog.
+	 * @param	after	   The feed's watermark, less 1.
+	 * @param	gaps	   The number of times the feed had fallen behind.
+	 *
+	 * @return	boolean  True to go on fetching, false if a remote error
+	 *		occurred.
+	 */
+	private static boolean catchUp
+		(Feed feed,
+		 MicroblogRef microblog,
+		 int after,
+		 int gaps)
+		{
+		ArrayList<MessagePage> pages = new ArrayList<MessagePage>();
+		try
+			{
+			int total = 0;
+			do
+				{
+				MessagePage page = microblog.getMessagesAfter(after, catchup - total);
+				pages.add(page);
+				total += page.size();
+				after = page.next;
+				}
+			while (after != 0 && total < catchup);
+			}
+		catch (RemoteException re)
+			{
+			System.err.println
+				("\nFollow(): Cannot catch up on " + feed.name + " -- " + re);
+			pages = null;
+			}
+		
+		synchronized (feed)
+			{
+			if (pages != null && feed.microblog == microblog)
+				printCaughtUp(feed, pages);
+			
+			// If the feed fell behind again meanwhile, catch up again
+			// before printing what was held back.
+			if (feed.gaps != gaps)
+				return true;
+			feed.behind = false;
+			print(feed, feed.held.toArray(new AddMessage[feed.held.size()]));
+			feed.held.clear();
+			return pages != null;
+			}
+		}
+	
+	/**
+	 * Print the messages in the given <TT>pages</TT>, got from the given
+	 * <TT>feed</TT>'s watermark on, that have not been printed yet, and
+	 * remember them so the events that report them again are left out. Every
+	 * serial number up to the newest message got is then accounted for: a
+	 * missing one was removed, or is still being posted and its event will
+	 * report it. Call this method while holding the feed's lock.
+	 *
+	 * @param	feed   Feed.
+	 * @param	pages  Pages of messages.
+	 */
+	private static void printCaughtUp
+		(Feed feed,
+		 ArrayList<MessagePage> pages)
+		{
+		feed.fetched.clear();
+		int newest = feed.nextNum - 1;
+		for (MessagePage page : pages)
+			for (int i = 0; i < page.size(); ++ i)
+				{
+				newest = Math.max(newest, page.num[i]);
+				if (page.num[i] < feed.nextNum || feed.ahead.contains(page.num[i]))
+					continue;
+				feed.fetched.add(page.num[i]);
+				sink.println(page.getCont(i));
+				}
+		advance(feed, newest + 1);
+		}
+	
+	/**
+	 * Print the given <TT>messages</TT>, reported by an event, for the given
+	 * <TT>feed</TT>, leaving out the ones already printed. Call this method
+	 * while holding the feed's lock.
+	 *
+	 * @param	feed	  Feed.
+	 * @param	messages  Messages.
+	 */
+	private static void print
+		(Feed feed,
+		 AddMessage[] messages)
+		{
+		for (AddMessage message : messages)
+			{
+			if (feed.fetched.remove(message.num))
+				continue;
+			sink.print(message);
+			seen(feed, message.num);
+			}
+		}
+	
+	/**
+	 * Record that the message with the given serial <TT>num</TT> has been
+	 * printed for the given <TT>feed</TT>, moving the watermark on past it if
+	 * every lower serial number is accounted for. Call this method while
+	 * holding the feed's lock.
+	 *
+	 * @param	feed  Feed.
+	 * @param	num   Serial number.
+	 */
+	private static void seen
+		(Feed feed,
+		 int num)
+		{
+		if (num < feed.nextNum)
+			return;
+		feed.ahead.add(num);
+		if (feed.ahead.size() > AHEAD)
+			advance(feed, feed.ahead.first() + 1);
+		else
+			advance(feed, feed.nextNum);
+		}
+	
+	/**
+	 * Move the given <TT>feed</TT>'s watermark on to at least <TT>to</TT>,
+	 * then past every serial number printed just above it. Call this method
+	 * while holding the feed's lock.
+	 *
+	 * @param	feed  Feed.
+	 * @param	to    Lowest serial number not yet accounted for, at least.
+	 */
+	private static void advance
+		(Feed feed,
+		 int to)
+		{
+		int next = Math.max(feed.nextNum, to);
+		feed.ahead.headSet(next).clear();
+		while (! feed.ahead.isEmpty() && feed.ahead.first() == next)
+			{
+			feed.ahead.pollFirst();
+			++ next;
+			}
+		feed.nextNum = next;
+		feed.fetched.headSet(next - AHEAD).clear();
+		}
+	
+	/**
+	 * Set the given <TT>feed</TT>'s watermark to <TT>next</TT>, forgetting
+	 * what was printed. Call this method while holding the feed's lock.
+	 *
+	 * @param	feed  Feed.
+	 * @param	next  Lowest serial number not yet accounted for.
+	 */
+	private static void reset
+		(Feed feed,
+		 int next)
+		{
+		feed.nextNum = next;
+		feed.ahead.clear();
+		feed.fetched.clear();
+		}
+	
+	/**
+	 * Take up to 1000 of the given <TT>feed</TT>'s wanted serial numbers,
+	 * leaving out the ones already printed. Call this method while holding the
+	 * feed's lock.
+	 *
+	 * @param	feed  Feed.
+	 *
+	 * @return	int[]  Serial numbers, in ascending order.
+	 */
+	private static int[] takeWanted
+		(Feed feed)
+		{
+		int[] nums = new int[Math.min(FETCH, feed.wanted.size())];
+		int n = 0;
+		while (n < nums.length)
+			{
+			int num = feed.wanted.pollFirst();
+			if (! feed.fetched.remove(num))
+				nums[n++] = num;
+			}
+		return n == nums.length ? nums : Arrays.copyOf(nums, n);
+		}
+	
+	/**
+	 * Print the messages of the given <TT>feed</TT>'s microblog with the given
+	 * serial numbers, reported by sequence-only events. They are got in one
+	 * remote call, made without holding the feed's lock. If the call fails,
+	 * the serial numbers are wanted again, and are got with those of the next
+	 * sequence-only event or by the next catch-up. This method runs on the
+	 * fetch thread.
+	 *
+	 * @param	feed	   Feed.
+	 * @param	microblog  The feed's microblog.
+	 * @param	nums	   Serial numbers.
+	 *
+	 * @return	boolean  True to go on fetching, false if a remote error
+	 *		occurred.
+	 */
+	private static boolean getMessages
+		(Feed feed,
+		 MicroblogRef microblog,
+		 int[] nums)
+		{
+		MessagePage page;
+		try
+			{
+			page = microblog.getMessages(nums);
 			}
 		catch (RemoteException re)
 			{
+			System.err.println
+				("\nFollow(): Cannot get messages from " + feed.name + " -- " + re);
+			synchronized (feed)
+				{
+				for (int num : nums)
+					feed.wanted.add(num);
+				}
+			return false;
 			}
+		
+		// A reported message that is not got back has been removed since, so
+		// it is accounted for as well.
+		synchronized (feed)
+			{
+			for (int i = 0; i < page.size(); ++ i)
+				sink.println(page.getCont(i));
+			for (int num : nums)
+				seen(feed, num);
+			}
+		return true;
 		}
 	
 	/**
 	 * Tell the microblog object with given <TT>name</TT> to notify us of adding message.
-	 * This method is for the first time of following and use the distributed method to get
-	 * the 2 recent message of a microblog.
+	 * This method is for the first time of following and gets the <TT>depth</TT> recent
+	 * messages of a microblog in a single remote call, or the <TT>backfill</TT> recent
+	 * messages a page at a time. It is safe to call this method from several threads
+	 * at once.
 	 *
 	 * @param	name  Microblog owner name.
 	 *
+	 * @return	MessagePage  Page of the recent messages.
+	 *
+	 * @exception  	NotBoundException
+	 *     		Thrown if the microblog is no longer bound.
 	 * @exception  	RemoteException
 	 *     		Thrown if a remote error occurred.
 	 */
-	private static void listenToInitialMicroblog
+	private static MessagePage listenToInitialMicroblog
 		(String name)
 		throws Exception
 		{
-		try
+		Feed feed = feeds.get(name);
+		synchronized (feed)
 			{
 			MicroblogRef microblog = (MicroblogRef) registry.lookup(name);
-			microblog.addListener(mbListener);
+			attach(feed, microblog);
+			MessagePage page = getInitialMessages(name, microblog);
 			
-			// Get the data of 2 recent message with distributed method
-			rdate = microblog.getRecentTime();
-			rname = microblog.getRecentName();
-			rnum = microblog.getRecentNum();
-			rcont = microblog.getRecentCont();
-				
-			mess[0] = new Message(rname, rnum[0], rdate[0], rcont[0]);
-			mess[1] = new Message(rname, rnum[1], rdate[1], rcont[1]);
+			reset(feed, page.size() > 0 ?
+				page.num[page.size() - 1] + 1 :
+				microblog.getRecentNum()[0] + 1);
 			
-			// Do twice loop to put the message into right order of initial list.
-			for (int i=0; i<=1; i++)
-				{
-				// Check if the message is null.
-				if (rdate[i] != null)
-					{
-					if (initial.isEmpty())
-						{
-						initial.add(mess[i]);
-						}
-					else
-						{
-						Message tm = initial.getFirst();
-						// Compare the new message to every message of 
-						// the initial list. 
-						while (tm != null)
-							{
-							// Set the message with ascending order of date/time
-							if (mess[i].getDate().compareTo(tm.getDate()) < 0)
-								{
-								initial.add(initial.indexOf(tm), mess[i]);
-								break;
-								}
-							else if (mess[i].getDate().compareTo(tm.getDate()) == 0)
-								{
-								// If multiple messages have the same date/time, 
-								// set the messages with ascending order of 
-								// the users' names;
-								if (mess[i].getName().compareTo(tm.getName()) < 0)
-									{
-									initial.add(initial.indexOf(tm), mess[i]);
-									break;
-									}
-								else if (mess[i].getName().compareTo(tm.getName()) == 0)
-									{
-									// If multiple messages have the same date/time
-									// and the same user name, set the message with 
-									// ascending order of serial number.
-									if (mess[i].getNum() < tm.getNum())
-										{
-										initial.add(initial.indexOf(tm), mess[i]);
-										break;
-										}
-									else
-										{
-										initial.add(initial.indexOf(tm)+1, mess[i]);
-										break;
-										}
-									}
-								else
-									{
-									// Check if that message is the last one of the list
-									if (initial.indexOf(tm)+1 == initial.size())
-										{
-										initial.add(initial.indexOf(tm)+1, mess[i]);
-										break;
-										}
-									else
-										{
-										tm = initial.get(initial.indexOf(tm)+1);
-										continue;
-										}
-									}
-								}
-							else
-								{
-								// Check if that message is the last one of the list
-								if (initial.indexOf(tm)+1 == initial.size())
-									{
-									initial.add(initial.indexOf(tm)+1, mess[i]);
-									break;
-									}
-								else
-									{
-									tm = initial.get(initial.indexOf(tm)+1);
-									continue;
-									}
-								}
-							}	
-						}
-					}
-				}		
+			// Events for the newest of these messages may come in as well;
+			// leave them out.
+			for (int i = 0; i < page.size(); ++ i)
+				if (page.num[i] >= feed.nextNum - AHEAD)
+					feed.fetched.add(page.num[i]);
+			return page;
 			}
-		catch (RemoteException re)
+		}
+	
+	/**
+	 * Get the <TT>depth</TT> recent messages of the given <TT>microblog</TT> in a
+	 * single remote call, or the <TT>backfill</TT> recent messages a page at a
+	 * time.
+	 *
+	 * @param	name	   Microblog owner name.
+	 * @param	microblog  Microblog.
+	 *
+	 * @return	MessagePage  Page of the recent messages.
+	 *
+	 * @exception  	RemoteException
+	 *     		Thrown if a remote error occurred.
+	 */
+	private static MessagePage getInitialMessages
+		(String name,
+		 MicroblogRef microblog)
+		throws RemoteException
+		{
+		// Get the recent messages in one call.
+		if (backfill <= 0)
+			return microblog.getRecentMessages(depth);
+		
+		// Go back through the history a page at a time, newest page first.
+		ArrayList<MessagePage> pages = new ArrayList<MessagePage>();
+		int total = 0;
+		int before = 0;
+		do
+			{
+			MessagePage page = microblog.getMessagesBefore(before, backfill - total);
+			pages.add(page);
+			total += page.size();
+			before = page.next;
+			}
+		while (before != 0 && total < backfill);
+		
+		// Put the pages together in ascending order of serial number.
+		int[] num = new int[total];
+		long[] time = new long[total];
+		String[] text = new String[total];
+		int i = 0;
+		for (int p = pages.size() - 1; p >= 0; -- p)
 			{
+			MessagePage page = pages.get(p);
+			System.arraycopy(page.num, 0, num, i, page.size());
+			System.arraycopy(page.time, 0, time, i, page.size());
+			System.arraycopy(page.text, 0, text, i, page.size());
+			i += page.size();
 			}
+		return new MessagePage(name, num, time, text);
+		}
+	
+	/**
+	 * Add our microblog listener to the given <TT>microblog</TT>, asking for
+	 * batch events if batching is on.
+	 *
+	 * @param	microblog  Microblog.
+	 *
+	 * @exception  	RemoteException
+	 *     		Thrown if a remote error occurred.
+	 */
+	private static void addListener
+		(MicroblogRef microblog)
+		throws RemoteException
+		{
+		if (batch)
+			microblog.addBatchListener(mbListener);
+		else
+			microblog.addListener(mbListener);
 		}
 	
+	/**
+	 * Parse the output overflow policy.
+	 *
+	 * @param	arg  Policy name: block, drop_oldest, or spill.
+	 *
+	 * @return	OutputSink.Policy  Policy.
+	 *
+	 * @exception	IllegalArgumentException
+	 *     		(unchecked exception) Thrown if <TT>arg</TT> is not a policy name.
+	 */
+	private static OutputSink.Policy parsePolicy
+		(String arg)
+		{
+		try
+			{
+			return OutputSink.Policy.valueOf(arg.trim().toUpperCase().replace('-', '_'));
+			}
+		catch (IllegalArgumentException e)
+			{
+			throw new IllegalArgumentException
+				("\nFollow(): Invalid p2patter.follow.overflow: \""+arg+"\"");
+			}
+		}
+
 	/**
 	 * Parse an integer command line argument.
 	 *
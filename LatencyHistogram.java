@@ -0,0 +1,300 @@
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class LatencyHistogram records latencies (or any other non-negative values)
+ * in the P2Patter system and reports their percentiles.
+ * <P>
+ * Values are counted in log-linear buckets: each power of two is split into 32
+ * equal buckets, so a reported percentile is within about 3 percent of the true
+ * value, and the histogram takes the same fixed space however many values are
+ * recorded. Recording a value only increments a bucket counter and two
+ * striped adders, so any number of threads may record values at once without
+ * locking and without contending on one shared counter.
+ */
+public class LatencyHistogram
+	{
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Class Snapshot holds the summary of a latency histogram at one instant.
+	 * It follows the JavaBeans conventions, so an MXBean can publish it.
+	 */
+	public static class Snapshot
+		{
+		private long count;
+		private double mean;
+		private double p50;
+		private double p90;
+		private double p99;
+		private double p999;
+		private double max;
+
+		/**
+		 * Construct a new snapshot.
+		 *
+		 * @param	count  Number of values.
+		 * @param	mean   Mean.
+		 * @param	p50    50th percentile.
+		 * @param	p90    90th percentile.
+		 * @param	p99    99th percentile.
+		 * @param	p999   99.9th percentile.
+		 * @param	max    Maximum.
+		 */
+		@ConstructorProperties({"count", "mean", "p50", "p90", "p99", "p999", "max"})
+		public Snapshot
+			(long count,
+			 double mean,
+			 double p50,
+			 double p90,
+			 double p99,
+			 double p999,
+			 double max)
+			{
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+			}
+
+		/**
+		 * Returns the number of values.
+		 */
+		public long getCount()
+			{
+			return count;
+			}
+
+		/**
+		 * Returns the mean.
+		 */
+		public double getMean()
+			{
+			return mean;
+			}
+
+		/**
+		 * Returns the 50th percentile.
+		 */
+		public double getP50()
+			{
+			return p50;
+			}
+
+		/**
+		 * Returns the 90th percentile.
+		 */
+		public double getP90()
+			{
+			return p90;
+			}
+
+		/**
+		 * Returns the 99th percentile.
+		 */
+		public double getP99()
+			{
+			return p99;
+			}
+
+		/**
+		 * Returns the 99.9th percentile.
+		 */
+		public double getP999()
+			{
+			return p999;
+			}
+
+		/**
+		 * Returns the maximum.
+		 */
+		public double getMax()
+			{
+			return max;
+			}
+
+		/**
+		 * Returns a one-line summary of this snapshot.
+		 */
+		public String toString()
+			{
+			return String.format
+				("count=%d mean=%.3f p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f",
+				 count, mean, p50, p90, p99, p999, max);
+			}
+		}
+
+	/**
+	 * Construct a new, empty latency histogram.
+	 */
+	public LatencyHistogram()
+		{
+		}
+
+	/**
+	 * Record the given <TT>value</TT>. A negative value is recorded as 0.
+	 *
+	 * @param	value  Value, such as a latency in nanoseconds.
+	 */
+	public void record
+		(long value)
+		{
+		if (value < 0)
+			value = 0;
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+		long m = max.get();
+		while (value > m && ! max.compareAndSet(m, value))
+			m = max.get();
+		}
+
+	/**
+	 * Returns the number of values recorded.
+	 *
+	 * @return	long  Count.
+	 */
+	public long getCount()
+		{
+		return count.sum();
+		}
+
+	/**
+	 * Returns the mean of the values recorded (0 if none).
+	 *
+	 * @return	double  Mean.
+	 */
+	public double getMean()
+		{
+		long n = count.sum();
+		return n == 0 ? 0.0 : (double) sum.sum() / n;
+		}
+
+	/**
+	 * Returns the greatest value recorded (0 if none).
+	 *
+	 * @return	long  Maximum.
+	 */
+	public long getMax()
+		{
+		return max.get();
+		}
+
+	/**
+	 * Returns the value at or below which the given <TT>percent</TT> of the
+	 * recorded values lie (0 if none). The value is the upper end of the bucket
+	 * holding that percentile, but never more than the maximum.
+	 *
+	 * @param	percent  Percentile, from 0 to 100.
+	 *
+	 * @return	long  Value.
+	 */
+	public long getPercentile
+		(double percent)
+		{
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; ++ i)
+			{
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+			}
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++ i)
+			{
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upper(i), max.get());
+			}
+		return max.get();
+		}
+
+	/**
+	 * Forget all the values recorded.
+	 */
+	public void reset()
+		{
+		for (int i = 0; i < BUCKETS; ++ i)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+		}
+
+	/**
+	 * Returns a snapshot of this histogram's count, mean, percentiles, and
+	 * maximum, with the values divided by the given <TT>scale</TT>.
+	 *
+	 * @param	scale  Divisor of the values.
+	 *
+	 * @return	Snapshot  Snapshot.
+	 */
+	public Snapshot snapshot
+		(double scale)
+		{
+		return new Snapshot(getCount(), getMean() / scale,
+			getPercentile(50) / scale, getPercentile(90) / scale,
+			getPercentile(99) / scale, getPercentile(99.9) / scale,
+			getMax() / scale);
+		}
+
+	/**
+	 * Returns a one-line summary of this histogram: the count, mean, 50th, 90th,
+	 * 99th, and 99.9th percentiles, and maximum, with the values divided by the
+	 * given <TT>scale</TT> (for example 1000000 to show nanoseconds as
+	 * milliseconds).
+	 *
+	 * @param	scale  Divisor of the values.
+	 *
+	 * @return	String  Summary.
+	 */
+	public String summary
+		(double scale)
+		{
+		return snapshot(scale).toString();
+		}
+
+	/**
+	 * Returns the bucket index of the given non-negative <TT>value</TT>.
+	 */
+	private static int index
+		(long value)
+		{
+		if (value < SUB_COUNT)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+		return (exponent - SUB_BITS + 1) * SUB_COUNT + mantissa;
+		}
+
+	/**
+	 * Returns the greatest value that falls in the bucket with the given
+	 * <TT>index</TT>.
+	 */
+	private static long upper
+		(int index)
+		{
+		if (index < SUB_COUNT)
+			return index;
+		int exponent = index / SUB_COUNT + SUB_BITS - 1;
+		long mantissa = SUB_COUNT + index % SUB_COUNT;
+		long lower = mantissa << (exponent - SUB_BITS);
+		return lower + (1L << (exponent - SUB_BITS)) - 1;
+		}
+	}
@@ -0,0 +1,567 @@
+import edu.rit.ds.RemoteEventListener;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Class LoadHarness provides the load harness program in the P2Patter system. It
+ * measures the throughput of a set of microblogs and the latency from adding a
+ * message until a follower receives it, all in one JVM with no Registry Server
+ * and no network.
+ * <P>
+ * Usage: java LoadHarness <I>microblogs</I> <I>followers</I> <I>rate</I> <I>seconds</I>
+ * <BR><I>microblogs</I> = The number of microblogs
+ * <BR><I>followers</I> = The number of followers
+ * <BR><I>rate</I> = The total number of messages added per second
+ * <BR><I>seconds</I> = The length of the measured run in seconds
+ * <P>
+ * The microblogs are neither exported nor bound; the harness itself stands in
+ * for the Registry Server and calls them directly, and each follower is a local
+ * listener added to the microblogs it follows, so a message goes through the
+ * same message list, message log, and event dispatcher as in a real deployment.
+ * The microblogs take their settings from the usual <TT>p2patter.microblog</TT>
+ * system properties.
+ * <P>
+ * The messages are added by <TT>p2patter.harness.posters</TT> threads (default
+ * 4) on a fixed schedule, so a slow microblog does not lower the offered load.
+ * Each message text starts with the time the message was due to be added and is
+ * padded to <TT>p2patter.harness.size</TT> characters (default 140). Each
+ * follower follows <TT>p2patter.harness.follows</TT> microblogs (default all),
+ * in batches if the <TT>p2patter.harness.batch</TT> system property is true.
+ * Nothing is measured during the first <TT>p2patter.harness.warmup</TT> seconds
+ * (default 2).
+ * <P>
+ * A follower that receives a sequence-only event (see the
+ * <TT>p2patter.microblog.seqonlyabove</TT> system property) gets the messages
+ * from the microblog before measuring their latency, as a real follower would.
+ * If the <TT>p2patter.harness.serialize</TT> system property is true, each
+ * follower also serializes and deserializes every event it receives, and the
+ * harness reports the mean serialized size of an event and the mean time to
+ * encode and decode one, so the cost of full and sequence-only events, and of
+ * the compact and default wire forms (the <TT>p2patter.wire.compact</TT> system
+ * property), can be compared.
+ * <P>
+ * Before the run, <TT>p2patter.harness.preload</TT> messages (default 0) are
+ * added to each microblog, to measure microblogs with long histories; setting
+ * the <TT>p2patter.microblog.offheap</TT> system property then shows the effect
+ * of keeping the messages off the heap. The preloaded messages are made of
+ * words drawn from a vocabulary of 50000 with a Zipf-like distribution. If
+ * search is enabled (the <TT>p2patter.microblog.search</TT> system property is
+ * true), after the preload the harness runs <TT>p2patter.harness.searches</TT>
+ * searches (default 1000) of one or two such words for the newest 20 matching
+ * messages, spread over the microblogs.
+ * <P>
+ * At the end the harness prints one <TT>key value</TT> line per result: the
+ * number of messages added and delivered and their rates, the number of events
+ * the dispatchers discarded, and a latency histogram summary in milliseconds for
+ * adding a message and for delivering it to a follower. It also prints the
+ * number and total time of the garbage collections during the run, a histogram
+ * summary of their pauses in milliseconds, and the heap in use after a full
+ * collection and the off-heap memory of the message lists, in megabytes. After
+ * a preload with search enabled, it also prints a latency histogram summary in
+ * milliseconds for the searches. It always prints the size of the search
+ * indexes in megabytes (0 without search).
+ */
+public class LoadHarness
+	{
+	private static int posters = Integer.getInteger("p2patter.harness.posters", 4);
+	private static int size = Integer.getInteger("p2patter.harness.size", 140);
+	private static int follows = Integer.getInteger("p2patter.harness.follows", Integer.MAX_VALUE);
+	private static boolean batch = Boolean.getBoolean("p2patter.harness.batch");
+	private static int warmup = Integer.getInteger("p2patter.harness.warmup", 2);
+	private static boolean serialize = Boolean.getBoolean("p2patter.harness.serialize");
+	private static int preload = Integer.getInteger("p2patter.harness.preload", 0);
+	private static int searches = Integer.getInteger("p2patter.harness.searches", 1000);
+
+	/**
+	 * Number of distinct words in preloaded messages.
+	 */
+	private static final int VOCABULARY = 50000;
+
+	private static Microblog[] microblogs;
+	private static HashMap<String,Microblog> microblogByName = new HashMap<String,Microblog>();
+	private static int[] followerCount;
+	private static String padding;
+
+	private static volatile long measureStart;
+	private static volatile long measureEnd;
+
+	private static LatencyHistogram postLatency = new LatencyHistogram();
+	private static LatencyHistogram notifyLatency = new LatencyHistogram();
+	private static LatencyHistogram gcPause = new LatencyHistogram();
+	private static LatencyHistogram searchLatency = new LatencyHistogram();
+	private static long searchHits;
+	private static AtomicLong posted = new AtomicLong();
+	private static AtomicLong expected = new AtomicLong();
+	private static AtomicLong delivered = new AtomicLong();
+	private static AtomicLong events = new AtomicLong();
+	private static AtomicLong eventBytes = new AtomicLong();
+	private static AtomicLong encodeTime = new AtomicLong();
+	private static AtomicLong decodeTime = new AtomicLong();
+
+	/**
+	 * Local follower, which records the latency of each message it receives.
+	 */
+	private static class Follower
+		implements RemoteEventListener<MicroblogEvent>
+		{
+		public void report
+			(long seq,
+			 MicroblogEvent event)
+			throws RemoteException
+			{
+			if (serialize)
+				measure(event);
+			if (event instanceof MicroblogBatchEvent)
+				{
+				MicroblogBatchEvent batchEvent = (MicroblogBatchEvent) event;
+				if (batchEvent.messages != null)
+					{
+					long now = System.nanoTime();
+					for (AddMessage message : batchEvent.messages)
+						receive(message, now);
+					}
+				else
+					{
+					fetch(event.name, batchEvent.nums);
+					}
+				}
+			else if (event.message != null)
+				{
+				receive(event.message, System.nanoTime());
+				}
+			else
+				{
+				fetch(event.name, new int[] {event.num});
+				}
+			}
+
+		/**
+		 * Get the messages with the given serial numbers from the microblog and
+		 * record their latency.
+		 */
+		private void fetch
+			(String name,
+			 int[] nums)
+			throws RemoteException
+			{
+			MessagePage page = microblogByName.get(name).getMessages(nums);
+			long now = System.nanoTime();
+			for (int i = 0; i < page.size(); ++ i)
+				receive(page.text[i], now);
+			}
+
+		/**
+		 * Record the serialized size of the given event and the time to
+		 * serialize and deserialize it.
+		 */
+		private void measure
+			(MicroblogEvent event)
+			{
+			try
+				{
+				long start = System.nanoTime();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+				ObjectOutputStream oos = new ObjectOutputStream(bytes);
+				oos.writeObject(event);
+				oos.close();
+				long encoded = System.nanoTime();
+				ObjectInputStream ois = new ObjectInputStream
+					(new ByteArrayInputStream(bytes.toByteArray()));
+				ois.readObject();
+				long decoded = System.nanoTime();
+				events.incrementAndGet();
+				eventBytes.addAndGet(bytes.size());
+				encodeTime.addAndGet(encoded - start);
+				decodeTime.addAndGet(decoded - encoded);
+				}
+			catch (IOException | ClassNotFoundException e)
+				{
+				e.printStackTrace();
+				}
+			}
+
+		private void receive
+			(AddMessage message,
+			 long now)
+			{
+			receive(message.text, now);
+			}
+
+		private void receive
+			(String text,
+			 long now)
+			{
+			long due = dueTime(text);
+			if (due >= measureStart && due < measureEnd)
+				{
+				notifyLatency.record(now - due);
+				delivered.incrementAndGet();
+				}
+			}
+		}
+
+	/**
+	 * LoadHarness main program.
+	 */
+	public static void main
+		(String[] args)
+		throws Exception
+		{
+		// Parse command line arguments.
+		if (args.length != 4)
+			{
+			throw new IllegalArgumentException
+				("\nUsage: java LoadHarness <microblogs> <followers> <rate> <seconds>\n" +
+				 "<microblogs> = The number of microblogs\n" +
+				 "<followers> = The number of followers\n" +
+				 "<rate> = The total number of messages added per second\n" +
+				 "<seconds> = The length of the measured run in seconds");
+			}
+		int microblogCount = parseInt(args[0], "microblogs");
+		int followers = parseInt(args[1], "followers");
+		final int rate = parseInt(args[2], "rate");
+		int seconds = parseInt(args[3], "seconds");
+		if (microblogCount < 1 || followers < 0 || rate < 1 || seconds < 1 || posters < 1)
+			throw new IllegalArgumentException
+				("\nLoadHarness(): Invalid arguments");
+
+		// Start the microblogs.
+		microblogs = new Microblog[microblogCount];
+		followerCount = new int[microblogCount];
+		for (int i = 0; i < microblogCount; ++ i)
+			{
+			microblogs[i] = new Microblog("harness" + i);
+			microblogByName.put("harness" + i, microblogs[i]);
+			}
+
+		// Give the microblogs their histories before anyone follows them.
+		char[] pad = new char[Math.max(0, size)];
+		Arrays.fill(pad, 'x');
+		padding = new String(pad);
+		preload();
+		search();
+
+		// Start the followers, follower i following microblogs i, i+1, ...
+		int perFollower = Math.min(follows, microblogCount);
+		for (int i = 0; i < followers; ++ i)
+			{
+			Follower follower = new Follower();
+			for (int j = 0; j < perFollower; ++ j)
+				{
+				int k = (i + j) % microblogCount;
+				if (batch)
+					microblogs[k].addBatchListener(follower);
+				else
+					microblogs[k].addListener(follower);
+				++ followerCount[k];
+				}
+			}
+
+		// Start counting garbage collections.
+		watchGarbageCollections();
+		long gcCount = 0;
+		long gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			{
+			gcCount -= gc.getCollectionCount();
+			gcTime -= gc.getCollectionTime();
+			}
+
+		// Add messages on a fixed schedule until the run is over.
+		final long start = System.nanoTime();
+		measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+		measureEnd = measureStart + TimeUnit.SECONDS.toNanos(seconds);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < posters; ++ t)
+			{
+			final int poster = t;
+			Thread thread = new Thread(new Runnable()
+				{
+				public void run()
+					{
+					post(poster, start, (double) posters * 1000000000L / rate);
+					}
+				}, "LoadHarness poster");
+			thread.start();
+			threads.add(thread);
+			}
+		for (Thread thread : threads)
+			thread.join();
+
+		// Wait for the deliveries to drain, for at most 10 seconds.
+		long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (delivered.get() < expected.get() && System.nanoTime() < drainEnd)
+			Thread.sleep(10);
+
+		// Print the results.
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			{
+			gcCount += gc.getCollectionCount();
+			gcTime += gc.getCollectionTime();
+			}
+		long dropped = 0;
+		long offHeap = 0;
+		long searchIndex = 0;
+		for (Microblog microblog : microblogs)
+			{
+			dropped += microblog.getDispatcher().getDropCount();
+			offHeap += microblog.getMetrics().getOffHeapSize();
+			searchIndex += microblog.getMetrics().getSearchIndexSize();
+			}
+		String pauses = gcPause.summary(1.0);
+		System.gc();
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		System.out.printf("microblogs %d%n", microblogCount);
+		System.out.printf("followers %d%n", followers);
+		System.out.printf("offered_rate %d%n", rate);
+		System.out.printf("seconds %d%n", seconds);
+		System.out.printf("posted %d%n", posted.get());
+		System.out.printf("post_rate %.1f%n", (double) posted.get() / seconds);
+		System.out.printf("expected_deliveries %d%n", expected.get());
+		System.out.printf("delivered %d%n", delivered.get());
+		System.out.printf("delivery_rate %.1f%n", (double) delivered.get() / seconds);
+		System.out.printf("dispatcher_drops %d%n", dropped);
+		if (serialize)
+			{
+			long n = Math.max(1, events.get());
+			System.out.printf("bytes_per_event %.1f%n", (double) eventBytes.get() / n);
+			System.out.printf("encode_ns_per_event %.1f%n", (double) encodeTime.get() / n);
+			System.out.printf("decode_ns_per_event %.1f%n", (double) decodeTime.get() / n);
+			}
+		System.out.printf("post_latency_ms %s%n", postLatency.summary(1000000.0));
+		System.out.printf("notify_latency_ms %s%n", notifyLatency.summary(1000000.0));
+		System.out.printf("gc_count %d%n", gcCount);
+		System.out.printf("gc_time_ms %d%n", gcTime);
+		System.out.printf("gc_pause_ms %s%n", pauses);
+		System.out.printf("heap_used_mb %.1f%n", heap / 1048576.0);
+		System.out.printf("offheap_mb %.1f%n", offHeap / 1048576.0);
+		if (searching())
+			{
+			System.out.printf("search_ms %s%n", searchLatency.summary(1000000.0));
+			System.out.printf("search_hits_per_query %.1f%n", (double) searchHits / searches);
+			}
+		System.out.printf("search_index_mb %.1f%n", searchIndex / 1048576.0);
+		System.exit(0);
+		}
+
+	/**
+	 * Add <TT>preload</TT> messages to each microblog, a chunk at a time.
+	 */
+	private static void preload()
+		throws IOException
+		{
+		ArrayList<String> texts = new ArrayList<String>();
+		Random random = new Random(1);
+		for (Microblog microblog : microblogs)
+			{
+			for (int n = 0; n < preload; n += texts.size())
+				{
+				texts.clear();
+				for (int i = n; i < preload && texts.size() < 1000; ++ i)
+					texts.add(words(random));
+				microblog.addMessages(texts);
+				}
+			}
+		}
+
+	/**
+	 * Returns true if the harness runs searches: there is a preload, and the
+	 * microblogs keep search indexes.
+	 */
+	private static boolean searching()
+		{
+		return preload > 0 && searches > 0 && Boolean.getBoolean("p2patter.microblog.search");
+		}
+
+	/**
+	 * Run <TT>searches</TT> searches over the preloaded microblogs in turn,
+	 * after a warmup of as many untimed searches.
+	 */
+	private static void search()
+		throws IOException
+		{
+		if (! searching())
+			return;
+		Random random = new Random(2);
+		for (int k = -searches; k < searches; ++ k)
+			{
+			String query = random.nextBoolean() ?
+				word(random) :
+				word(random) + ' ' + word(random);
+			Microblog microblog = microblogs[(k + searches) % microblogs.length];
+			long t = System.nanoTime();
+			MessagePage page = microblog.search(query, 20);
+			if (k >= 0)
+				{
+				searchLatency.record(System.nanoTime() - t);
+				searchHits += page.size();
+				}
+			}
+		}
+
+	/**
+	 * Returns a message text of words, at least <TT>size</TT> characters long.
+	 */
+	private static String words
+		(Random random)
+		{
+		StringBuilder b = new StringBuilder();
+		while (b.length() < size)
+			{
+			if (b.length() > 0)
+				b.append(' ');
+			b.append(word(random));
+			}
+		return b.toString();
+		}
+
+	/**
+	 * Returns a word from the vocabulary, word <I>k</I> with probability about
+	 * proportional to 1/<I>k</I>.
+	 */
+	private static String word
+		(Random random)
+		{
+		return "w" + (int) Math.pow(VOCABULARY, random.nextDouble());
+		}
+
+	/**
+	 * Record the pause of every garbage collection from now on.
+	 */
+	private static void watchGarbageCollections()
+		{
+		NotificationListener listener = new NotificationListener()
+			{
+			public void handleNotification
+				(Notification notification,
+				 Object handback)
+				{
+				if (! notification.getType().equals("com.sun.management.gc.notification"))
+					return;
+				CompositeData info = (CompositeData)
+					((CompositeData) notification.getUserData()).get("gcInfo");
+				gcPause.record((Long) info.get("duration"));
+				}
+			};
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			{
+			if (gc instanceof NotificationEmitter)
+				((NotificationEmitter) gc).addNotificationListener(listener, null, null);
+			}
+		}
+
+	/**
+	 * Add messages every <TT>interval</TT> nanoseconds, starting at the given
+	 * <TT>start</TT> time, until the end of the run. The poster with the given
+	 * number adds its messages to the microblogs in turn.
+	 */
+	private static void post
+		(int poster,
+		 long start,
+		 double interval)
+		{
+		long offset = (long) (interval * poster / posters);
+		int next = poster % microblogs.length;
+		for (long k = 0; ; ++ k)
+			{
+			long due = start + offset + (long) (k * interval);
+			if (due >= measureEnd)
+				return;
+			long wait = due - System.nanoTime();
+			if (wait > 0)
+				LockSupport.parkNanos(wait);
+
+			// Measure from the time the message was due rather than the time
+			// it was sent, so a stall counts against every message behind it.
+			try
+				{
+				microblogs[next].AddMessage(text(due));
+				}
+			catch (Exception e)
+				{
+				e.printStackTrace();
+				}
+			if (due >= measureStart)
+				{
+				postLatency.record(System.nanoTime() - due);
+				posted.incrementAndGet();
+				expected.addAndGet(followerCount[next]);
+				}
+			next = (next + 1) % microblogs.length;
+			}
+		}
+
+	/**
+	 * Returns a message text that starts with the given <TT>due</TT> time.
+	 */
+	private static String text
+		(long due)
+		{
+		String prefix = Long.toString(due) + ' ';
+		return prefix.length() >= padding.length() ?
+			prefix :
+			prefix + padding.substring(prefix.length());
+		}
+
+	/**
+	 * Returns the due time at the start of the given message <TT>text</TT>, or
+	 * Long.MIN_VALUE if there is none.
+	 */
+	private static long dueTime
+		(String text)
+		{
+		int end = text.indexOf(' ');
+		try
+			{
+			return Long.parseLong(end < 0 ? text : text.substring(0, end));
+			}
+		catch (NumberFormatException e)
+			{
+			return Long.MIN_VALUE;
+			}
+		}
+
+	/**
+	 * Parse an integer command line argument.
+	 *
+	 * @param	arg	Command line argument.
+	 * @param	object  Invalid object name.
+	 *
+	 * @return	Integer value of <TT>arg</TT>.
+	 *
+	 * @exception	IllegalArgumentException
+	 *     		(unchecked exception) Thrown if <TT>arg</TT> cannot be parsed as an
+	 *     		integer.
+	 */
+	private static int parseInt
+		(String arg,
+		 String object)
+		{
+		try
+			{
+			return Integer.parseInt(arg);
+			}
+		catch (NumberFormatException e)
+			{
+			throw new IllegalArgumentException
+				("\nLoadHarness(): Invalid <"+object+">: \""+arg+"\"");
+			}
+		}
+	}
@@ -2,94 +2,174 @@ import java.util.Date;
 
 /**
  * Class Message encapsulates a object node that save every message information,
- * which includes the owner name of microblog that the message belongs to,
- * the message serial number, the message post date/time, and the complete
- * message content. Each message has a class Message node to contain that
+ * which includes the message serial number, the message post date/time, and the
+ * message text. Each message has a class Message node to contain that
  * information.
+ * <P>
+ * The owner name of the microblog that the message belongs to is kept once by
+ * the message list rather than in every message, and the complete message
+ * content is rendered only when it is asked for.
  */
 public class Message
 	{
-	private String name;
+	/**
+	 * The first line of every complete message content.
+	 */
+	public static final String SEPARATOR =
+		"--------------------------------------------------------------------------------";
+
+	/**
+	 * Clock used to format the date/time of rendered messages.
+	 */
+	private static final MessageClock CLOCK = new MessageClock();
+
 	private int num;
-	private Date date;
-	private String cont;
-	
+	private long time;
+	private String text;
+
 	/**
 	 * Default Constructor
 	 */
 	public Message()
 		{
 		}
-	
+
 	/**
-	 * Create a new message. It consists of the owner <TT>name</TT> of 
-	 * microblog that the message belongs to, the message serial <TT>number</TT>, 
-	 * the message post <TT>date</TT>, and the complete message <TT>cont</TT>. 
+	 * Create a new message. It consists of the message serial <TT>number</TT>,
+	 * the message post <TT>time</TT>, and the message <TT>text</TT>.
 	 *
-	 * @param	name    Microblog owner name.
 	 * @param	num  	Serial number.
-	 * @param	date	Message date/time.
-	 * @param	cont	Complete message content.
+	 * @param	time	Message date/time (epoch milliseconds).
+	 * @param	text	Message text.
 	 */
 	public Message
-		(String name,
-		 int num,
-		 Date date,
-		 String cont)
+		(int num,
+		 long time,
+		 String text)
 		{
-		this.name = name;
 		this.num = num;
-		this.date = date;
-		this.cont = cont;
+		this.time = time;
+		this.text = text;
 		}
 
 	/**
-	 * Get the microblog owner name of that message.
-	 * 
-	 * @return	String  Microblog owner name.
+	 * Get the serial number of that message.
+	 *
+	 * @return	int  Serial number.
 	 */
-	public String getName() 
+	public int getNum()
 		{
-		return name;
+		return num;
 		}
 
 	/**
-	 * Get the serial number of that message.
-	 * 
-	 * @return	int  Serial number.
+	 * Get the date/time of that message.
+	 *
+	 * @return	long  Message date/time (epoch milliseconds).
 	 */
-	public int getNum() 
+	public long getTime()
 		{
-		return num;
+		return time;
 		}
 
 	/**
-	 * Get the date/time of that message.
-	 * 
+	 * Get the date/time of that message as a Date object.
+	 *
 	 * @return	Date  Message date/time.
 	 */
-	public Date getDate() 
+	public Date getDate()
 		{
-		return date;
+		return new Date(time);
+		}
+
+	/**
+	 * Get the text of that message.
+	 *
+	 * @return	String  Message text.
+	 */
+	public String getText()
+		{
+		return text;
 		}
 
 	/**
 	 * Get the complete content of that message.
-	 * 
+	 *
+	 * @param	name  Microblog owner name.
+	 *
+	 * @return	String  Complete message content.
+	 */
+	public String getCont
+		(String name)
+		{
+		return render(name, num, time, text);
+		}
+
+	/**
+	 * Render the complete content of a message: the first line consists of 80
+	 * hyphen characters; the second line consists of the owner <TT>name</TT>,
+	 * the serial <TT>num</TT>, and the <TT>date</TT>; the third line consists
+	 * of the message <TT>text</TT>.
+	 *
+	 * @param	name	Microblog owner name.
+	 * @param	num  	Serial number.
+	 * @param	date	Formatted message date/time.
+	 * @param	text	Message text.
+	 *
 	 * @return	String  Complete message content.
 	 */
-	public String getCont() 
+	public static String render
+		(String name,
+		 int num,
+		 String date,
+		 String text)
 		{
-		return cont;
+		return SEPARATOR + "\n" +
+			name + " -- Message " + num + " -- " + date + "\n" +
+			text;
 		}
 
 	/**
-	 * Returns the complete message content of the message.
+	 * Render the complete content of a message with the given date/<TT>time</TT>.
+	 *
+	 * @param	name	Microblog owner name.
+	 * @param	num  	Serial number.
+	 * @param	time	Message date/time (epoch milliseconds).
+	 * @param	text	Message text.
 	 *
-	 * @return	String	Complete message content.
-	 */	
-	public String toString()
+	 * @return	String  Complete message content.
+	 */
+	public static String render
+		(String name,
+		 int num,
+		 long time,
+		 String text)
+		{
+		return render(name, num, CLOCK.format(time), text);
+		}
+
+	/**
+	 * Render the complete content of a message into the given buffer
+	 * <TT>b</TT>, without creating an intermediate string.
+	 *
+	 * @param	b	Buffer to append to.
+	 * @param	name	Microblog owner name.
+	 * @param	num  	Serial number.
+	 * @param	date	Formatted message date/time.
+	 * @param	text	Message text.
+	 *
+	 * @return	StringBuilder  The buffer <TT>b</TT>.
+	 */
+	public static StringBuilder render
+		(StringBuilder b,
+		 String name,
+		 int num,
+		 String date,
+		 String text)
 		{
-		return cont;
+		return b.append(SEPARATOR).append('\n')
+			.append(name).append(" -- Message ").append(num).append(" -- ")
+			.append(date).append('\n')
+			.append(text);
 		}
 	}
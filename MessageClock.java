@@ -0,0 +1,153 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Class MessageClock provides the message date/time in the P2Patter system. A
+ * message date/time is kept as epoch milliseconds truncated to the second, and
+ * is shown in the format <TT>yyyy/MM/dd HH:mm:ss</TT>.
+ * <P>
+ * The formatted date/time of the most recent second is cached, so all the
+ * messages posted within the same second share one string. Class MessageClock
+ * is thread safe.
+ */
+public class MessageClock
+	{
+	/**
+	 * Date/time format of every message.
+	 */
+	private static final DateTimeFormatter FORMAT =
+		DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss")
+			.withZone(ZoneId.systemDefault());
+
+	/**
+	 * One second and its formatted date/time. Instances are immutable, so the
+	 * cache can be swapped without locking.
+	 */
+	private static class Second
+		{
+		public final long time;
+		public final String date;
+
+		public Second
+			(long time,
+			 String date)
+			{
+			this.time = time;
+			this.date = date;
+			}
+		}
+
+	private volatile Second cache = new Second(Long.MIN_VALUE, null);
+
+	/**
+	 * Construct a new message clock.
+	 */
+	public MessageClock()
+		{
+		}
+
+	/**
+	 * Returns the current date/time truncated to the second.
+	 *
+	 * @return	long  Epoch milliseconds.
+	 */
+	public long now()
+		{
+		long time = System.currentTimeMillis();
+		return time - Math.floorMod(time, 1000L);
+		}
+
+	/**
+	 * Format the given date/<TT>time</TT>, which must be truncated to the
+	 * second.
+	 *
+	 * @param	time  Epoch milliseconds.
+	 *
+	 * @return	String  Formatted date/time.
+	 */
+	public String format
+		(long time)
+		{
+		Second second = cache;
+		if (second.time != time)
+			{
+			second = new Second(time, FORMAT.format(Instant.ofEpochMilli(time)));
+			cache = second;
+			}
+		return second.date;
+		}
+
+	/**
+	 * Returns the offset from UTC of this computer's time zone at the given
+	 * date/<TT>time</TT>.
+	 *
+	 * @param	time  Epoch milliseconds.
+	 *
+	 * @return	int  Offset (seconds).
+	 */
+	public int offset
+		(long time)
+		{
+		return FORMAT.getZone().getRules().getOffset(Instant.ofEpochMilli(time))
+			.getTotalSeconds();
+		}
+
+	/**
+	 * Format the given date/<TT>time</TT>, which must be truncated to the
+	 * second, as it is shown in a time zone with the given <TT>offset</TT> from
+	 * UTC. If that is this computer's offset at that time, the cached
+	 * date/time is used as by <TT>format(time)</TT>.
+	 *
+	 * @param	time	Epoch milliseconds.
+	 * @param	offset  Offset (seconds).
+	 *
+	 * @return	String  Formatted date/time.
+	 */
+	public String format
+		(long time,
+		 int offset)
+		{
+		if (offset == offset(time))
+			return format(time);
+		return FORMAT.withZone(ZoneOffset.ofTotalSeconds(offset))
+			.format(Instant.ofEpochMilli(time));
+		}
+
+	/**
+	 * Parse the given formatted <TT>date</TT>/time. The last date/time
+	 * formatted or parsed is cached, so parsing the dates of the messages
+	 * posted within the same second costs one string comparison.
+	 *
+	 * @param	date  Formatted date/time.
+	 *
+	 * @return	long  Epoch milliseconds.
+	 *
+	 * @exception	IllegalArgumentException
+	 *		(unchecked exception) Thrown if <TT>date</TT> is not in the
+	 *		message date/time format.
+	 */
+	public long parse
+		(String date)
+		{
+		Second second = cache;
+		if (! date.equals(second.date))
+			{
+			try
+				{
+				second = new Second
+					(ZonedDateTime.parse(date, FORMAT).toInstant().toEpochMilli(), date);
+				}
+			catch (DateTimeParseException e)
+				{
+				throw new IllegalArgumentException
+					("MessageClock: Invalid date/time \"" + date + "\"", e);
+				}
+			cache = second;
+			}
+		return second.time;
+		}
+	}
@@ -1,6 +1,16 @@
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Class MessageFactory provides an object for creating addMessage and
- * removeMessage objects in the P2Patter system.
+ * removeMessage objects in the P2Patter system. Serial numbers are handed out
+ * atomically, so any number of threads may create messages at once.
+ * <P>
+ * A message created with a MessageClock gets its serial number and its
+ * date/time in the same atomic step, and never a date/time earlier than that of
+ * a message created before it. So a microblog's messages in ascending order of
+ * serial number are also in ascending order of date/time, even when concurrent
+ * posters straddle a second boundary; TimelineMerger relies on this.
  */
 public class MessageFactory 
 	{
@@ -10,10 +20,14 @@ public class MessageFactory
 	 */
 	private String name;
 
+	private static final int NUM_BITS = 31;
+	private static final long NUM_MASK = (1L << NUM_BITS) - 1;
+
 	/**
-	 * The serial number of message
+	 * The serial number of the most recent message in the low 31 bits, and the
+	 * latest date/time handed out, in epoch seconds, in the bits above.
 	 */
-	private int num;
+	private AtomicLong state = new AtomicLong();
 	
 	/**
 	 * Create a new message factory. The given microblog owner <TT>name</TT> 
@@ -27,6 +41,22 @@ public class MessageFactory
 		this.name = name;
 		}
 
+	/**
+	 * Create a new message factory that carries on numbering after the given
+	 * serial <TT>num</TT>, such as the highest serial number recovered from a
+	 * message log.
+	 *
+	 * @param	name  Microblog owner name.
+	 * @param	num   Last serial number already used.
+	 */
+	public MessageFactory
+		(String name,
+		 int num)
+		{
+		this.name = name;
+		this.state.set(num & NUM_MASK);
+		}
+
 	/**
 	 * Create a message with given message <TT>text</TT> and <TT>date</TT>.
 	 *
@@ -37,9 +67,107 @@ public class MessageFactory
 		(String text,
 		 String date)
 		{
-		return new AddMessage(name, ++ this.num, date, text);
+		return new AddMessage(name, (int) (take(1, 0L) & NUM_MASK), date, text);
+		}
+
+	/**
+	 * Create a message with given message <TT>text</TT>, stamped with the
+	 * current date/time of the given <TT>clock</TT>, or with the date/time of
+	 * the previous message if that is later.
+	 *
+	 * @param	text   Message text.
+	 * @param	clock  Message clock.
+	 */
+	public AddMessage createMessage
+		(String text,
+		 MessageClock clock)
+		{
+		long taken = take(1, clock.now());
+		return new AddMessage(name, (int) (taken & NUM_MASK),
+			clock.format((taken >>> NUM_BITS) * 1000L), text);
 		}
 	
+	/**
+	 * Create messages with the given message <TT>texts</TT> and <TT>date</TT>.
+	 * The messages get a contiguous range of serial numbers.
+	 *
+	 * @param	texts  Message texts.
+ 	 * @param	date   Messate date/time.
+	 */
+	public AddMessage[] createMessages
+		(List<String> texts,
+		 String date)
+		{
+		AddMessage[] messages = new AddMessage[texts.size()];
+		int first = (int) (take(messages.length, 0L) & NUM_MASK) - messages.length + 1;
+		int i = 0;
+		for (String text : texts)
+			{
+			messages[i] = new AddMessage(name, first + i, date, text);
+			++ i;
+			}
+		return messages;
+		}
+
+	/**
+	 * Create messages with the given message <TT>texts</TT>, all stamped with
+	 * the current date/time of the given <TT>clock</TT>, or with the date/time
+	 * of the previous message if that is later. The messages get a contiguous
+	 * range of serial numbers.
+	 *
+	 * @param	texts  Message texts.
+	 * @param	clock  Message clock.
+	 */
+	public AddMessage[] createMessages
+		(List<String> texts,
+		 MessageClock clock)
+		{
+		AddMessage[] messages = new AddMessage[texts.size()];
+		long taken = take(messages.length, clock.now());
+		int first = (int) (taken & NUM_MASK) - messages.length + 1;
+		String date = clock.format((taken >>> NUM_BITS) * 1000L);
+		int i = 0;
+		for (String text : texts)
+			{
+			messages[i] = new AddMessage(name, first + i, date, text);
+			++ i;
+			}
+		return messages;
+		}
+
+	/**
+	 * Returns the serial number of the most recently created message.
+	 *
+	 * @return	int  Serial number (0 if none).
+	 */
+	public int getNum()
+		{
+		return (int) (state.get() & NUM_MASK);
+		}
+
+	/**
+	 * Take the next <TT>count</TT> serial numbers, and a date/time no earlier
+	 * than <TT>time</TT> (epoch milliseconds, 0 for none) or than the latest
+	 * one taken before.
+	 *
+	 * @return	long  New state: the last serial number taken in the low bits,
+	 *		the date/time in epoch seconds above them.
+	 */
+	private long take
+		(int count,
+		 long time)
+		{
+		long seconds = time / 1000L;
+		for (;;)
+			{
+			long old = state.get();
+			long next = (Math.max(old >>> NUM_BITS, seconds) << NUM_BITS) |
+				(((old & NUM_MASK) + count) & NUM_MASK);
+			if (state.compareAndSet(old, next))
+				return next;
+			}
+		}
+
 	/**
 	 * Delete the message with given serial <TT>num</TT>.
 	 *
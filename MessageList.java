@@ -1,19 +1,1125 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Class MessageList encapsulates a list of message of every microblog in the P2Patter
  * system.
+ * <P>
+ * The messages are kept in slots indexed directly by serial number, so no
+ * serial number is ever boxed. The slots are allocated in chunks of 4096, and a
+ * slot is empty, holds a live message, or holds a tombstone once its message
+ * has been removed. Slots change only by compare-and-set, so any number of
+ * threads may add, remove, and query messages at once without locking; only the
+ * rare allocation of a new chunk takes a lock. A removed serial number stays
+ * removed: adding a message with that serial number again has no effect.
+ * <P>
+ * The recent-message queries walk back from the highest serial number added,
+ * skipping tombstones. Each run of tombstones remembers where it ends the first
+ * time it is walked over, so later walks jump over the whole run in one step no
+ * matter how many messages have been removed.
+ * <P>
+ * The owner name is kept once by the message list; each message holds only its
+ * serial number, date/time, and text.
+ * <P>
+ * If the <TT>p2patter.microblog.offheap</TT> system property is true, the
+ * messages are kept off the Java heap instead, so a microblog with millions of
+ * messages does not lengthen the garbage collector's pauses. Each message is
+ * appended as a record (serial number, date/time, and UTF-8 text) to an arena
+ * of direct byte buffers of <TT>p2patter.microblog.arenablock</TT> bytes each
+ * (default 16 MB), and its slot holds only the record's address. A message is
+ * decoded from its record each time it is queried. Removing a message leaves a
+ * tombstone in its slot; once half of a full arena block is taken up by removed
+ * messages, the live records are copied out and the block is released.
+ * <P>
+ * If the <TT>p2patter.microblog.hotwindow</TT> system property is set, only
+ * about that many of the newest messages are kept in memory. As the highest
+ * serial number moves on, each chunk that falls out of the window is spilled:
+ * its messages are appended to a segment file indexed by serial number, in the
+ * <TT>p2patter.microblog.dir</TT> directory (or the temporary directory), and
+ * the chunk is replaced by one that keeps only two bits of state per slot. Old
+ * messages that are read are kept in an LRU cache of
+ * <TT>p2patter.microblog.coldcache</TT> messages (default 10000). An old message
+ * is removed by changing its state, as for a new one. The chunks are spilled
+ * by a background thread. While a chunk is being spilled its slots are frozen,
+ * and an operation that finds a frozen slot waits for the replacement chunk and
+ * tries again there.
  */
-public class MessageList 
+public class MessageList
 	{
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/**
+	 * States of a slot. A slot is MOVED once its chunk has been frozen to be
+	 * spilled to disk; the chunk that replaces it has the slot's real state.
+	 */
+	private static final int EMPTY = 0;
+	private static final int LIVE = 1;
+	private static final int DEAD = 2;
+	private static final int MOVED = 3;
+
+	/**
+	 * One chunk of slots. For a tombstone slot, <TT>skip(i)</TT> returns one
+	 * more than a lower serial number such that every slot in between is also a
+	 * tombstone (0 if not known yet).
+	 */
+	private static abstract class Chunk
+		{
+		private final AtomicIntegerArray skip;
+
+		public Chunk
+			(AtomicIntegerArray skip)
+			{
+			this.skip = skip;
+			}
+
+		/**
+		 * Returns the skip hint of slot <TT>i</TT>.
+		 */
+		public int skip
+			(int i)
+			{
+			return skip.get(i);
+			}
+
+		/**
+		 * Set the skip hint of slot <TT>i</TT>.
+		 */
+		public void setSkip
+			(int i,
+			 int to)
+			{
+			skip.set(i, to);
+			}
+
+		/**
+		 * Returns the state of slot <TT>i</TT>: EMPTY, LIVE, DEAD, or MOVED.
+		 */
+		public abstract int state
+			(int i);
+
+		/**
+		 * Returns the message in slot <TT>i</TT>, or null if it is empty, a
+		 * tombstone, or moved.
+		 */
+		public abstract Message get
+			(int i);
+
+		/**
+		 * Put the given message in slot <TT>i</TT> if it is empty.
+		 *
+		 * @return	boolean  True if the message was put.
+		 */
+		public abstract boolean add
+			(int i,
+			 Message mess);
+
+		/**
+		 * Leave a tombstone in slot <TT>i</TT> if it holds a message.
+		 *
+		 * @return	Message  Removed message, or null if there was none.
+		 */
+		public abstract Message remove
+			(int i);
+
+		/**
+		 * Leave a tombstone in slot <TT>i</TT> unless it is moved.
+		 *
+		 * @return	int  Previous state of the slot.
+		 */
+		public abstract int tombstone
+			(int i);
+		}
+
+	/**
+	 * Chunk that keeps its messages in memory. A hot chunk can be frozen to be
+	 * spilled to disk.
+	 */
+	private static abstract class HotChunk
+		extends Chunk
+		{
+		public HotChunk()
+			{
+			super(new AtomicIntegerArray(CHUNK_SIZE));
+			}
+
+		/**
+		 * Mark slot <TT>i</TT> moved, so it never changes again, and put its
+		 * message, if any, in <TT>messages[i]</TT>.
+		 *
+		 * @return	int  Previous state of the slot.
+		 */
+		public abstract int freeze
+			(int i,
+			 Message[] messages);
+		}
+
+	/**
+	 * Chunk that keeps its messages on the Java heap.
+	 */
+	private static class HeapChunk
+		extends HotChunk
+		{
+		/**
+		 * Contents of the slot of a removed message.
+		 */
+		private static final Object TOMBSTONE = new Object();
+
+		/**
+		 * Contents of a frozen slot.
+		 */
+		private static final Object FROZEN = new Object();
+
+		private final AtomicReferenceArray<Object> slots =
+			new AtomicReferenceArray<Object>(CHUNK_SIZE);
+
+		public int state
+			(int i)
+			{
+			return state(slots.get(i));
+			}
+
+		public Message get
+			(int i)
+			{
+			Object slot = slots.get(i);
+			return slot instanceof Message ? (Message) slot : null;
+			}
+
+		public boolean add
+			(int i,
+			 Message mess)
+			{
+			return slots.compareAndSet(i, null, mess);
+			}
+
+		public Message remove
+			(int i)
+			{
+			for (;;)
+				{
+				Object slot = slots.get(i);
+				if (! (slot instanceof Message))
+					return null;
+				if (slots.compareAndSet(i, slot, TOMBSTONE))
+					return (Message) slot;
+				}
+			}
+
+		public int tombstone
+			(int i)
+			{
+			for (;;)
+				{
+				Object slot = slots.get(i);
+				if (slot == FROZEN || slots.compareAndSet(i, slot, TOMBSTONE))
+					return state(slot);
+				}
+			}
+
+		public int freeze
+			(int i,
+			 Message[] messages)
+			{
+			Object slot = slots.getAndSet(i, FROZEN);
+			if (slot instanceof Message)
+				messages[i] = (Message) slot;
+			return state(slot);
+			}
+
+		private static int state
+			(Object slot)
+			{
+			return slot == null ? EMPTY :
+				slot == TOMBSTONE ? DEAD :
+				slot == FROZEN ? MOVED : LIVE;
+			}
+		}
+
+	/**
+	 * Chunk that keeps its messages in the arena. A slot holds 0 if empty, -1
+	 * if a tombstone, -2 if frozen, or else the address of the message's
+	 * record.
+	 */
+	private class ArenaChunk
+		extends HotChunk
+		{
+		private static final long TOMBSTONE = -1L;
+		private static final long FROZEN = -2L;
+
+		private final AtomicLongArray slots = new AtomicLongArray(CHUNK_SIZE);
+
+		public int state
+			(int i)
+			{
+			return state(slots.get(i));
+			}
+
+		public Message get
+			(int i)
+			{
+			for (;;)
+				{
+				long slot = slots.get(i);
+				if (slot <= 0L)
+					return null;
+				Message mess = arena.read(slot);
+				if (mess != null)
+					return mess;
+				// The record was moved by a compaction; look again.
+				}
+			}
+
+		public boolean add
+			(int i,
+			 Message mess)
+			{
+			return slots.get(i) == 0L && arena.write(this, i, mess);
+			}
+
+		public Message remove
+			(int i)
+			{
+			for (;;)
+				{
+				long slot = slots.get(i);
+				if (slot <= 0L)
+					return null;
+				Message mess = arena.read(slot);
+				if (mess != null && slots.compareAndSet(i, slot, TOMBSTONE))
+					{
+					arena.free(slot);
+					return mess;
+					}
+				}
+			}
+
+		public int tombstone
+			(int i)
+			{
+			for (;;)
+				{
+				long slot = slots.get(i);
+				if (slot == FROZEN)
+					return MOVED;
+				if (slots.compareAndSet(i, slot, TOMBSTONE))
+					{
+					if (slot > 0L)
+						arena.free(slot);
+					return state(slot);
+					}
+				}
+			}
+
+		public int freeze
+			(int i,
+			 Message[] messages)
+			{
+			// Hold the arena's lock so the record is not moved meanwhile.
+			synchronized (arena)
+				{
+				long slot = slots.getAndSet(i, FROZEN);
+				if (slot > 0L)
+					{
+					messages[i] = arena.read(slot);
+					arena.free(slot);
+					}
+				return state(slot);
+				}
+			}
+
+		/**
+		 * Replace the record address <TT>from</TT> in slot <TT>i</TT> with
+		 * <TT>to</TT>, if the slot still holds <TT>from</TT>.
+		 */
+		public boolean move
+			(int i,
+			 long from,
+			 long to)
+			{
+			return slots.compareAndSet(i, from, to);
+			}
+
+		/**
+		 * Returns true if slot <TT>i</TT> holds the record address
+		 * <TT>address</TT>.
+		 */
+		public boolean holds
+			(int i,
+			 long address)
+			{
+			return slots.get(i) == address;
+			}
+
+		private int state
+			(long slot)
+			{
+			return slot == 0L ? EMPTY :
+				slot == TOMBSTONE ? DEAD :
+				slot == FROZEN ? MOVED : LIVE;
+			}
+		}
+
+	/**
+	 * Chunk whose messages have been spilled to the tier's segment file. Only
+	 * the slot states are kept in memory, two bits per slot; a message is read
+	 * from the LRU cache or the segment file when it is asked for. Until the
+	 * messages of a newly spilled chunk have been written out, they are read
+	 * from the <TT>pending</TT> array instead.
+	 */
+	private class ColdChunk
+		extends Chunk
+		{
+		private static final long ALL_DEAD = 0xAAAAAAAAAAAAAAAAL;
+
+		private final int base;
+		private final AtomicLongArray states = new AtomicLongArray(CHUNK_SIZE / 32);
+		private volatile Message[] pending;
+
+		/**
+		 * Construct a new cold chunk whose slot 0 has serial number
+		 * <TT>base</TT>, holding the given <TT>pending</TT> messages (or null).
+		 */
+		public ColdChunk
+			(int base,
+			 Message[] pending)
+			{
+			super(null);
+			this.base = base;
+			this.pending = pending;
+			}
+
+		public int state
+			(int i)
+			{
+			return (int) (states.get(i >> 5) >>> ((i & 31) << 1)) & 3;
+			}
+
+		public Message get
+			(int i)
+			{
+			return state(i) == LIVE ? content(i, true) : null;
+			}
+
+		public boolean add
+			(int i,
+			 Message mess)
+			{
+			if (state(i) != EMPTY)
+				return false;
+			tier.write(mess);
+			return cas(i, EMPTY, LIVE);
+			}
+
+		public Message remove
+			(int i)
+			{
+			for (;;)
+				{
+				if (state(i) != LIVE)
+					return null;
+				Message mess = content(i, true);
+				if (cas(i, LIVE, DEAD))
+					{
+					tier.evict(base + i);
+					return mess;
+					}
+				}
+			}
+
+		public int tombstone
+			(int i)
+			{
+			for (;;)
+				{
+				int state = state(i);
+				if (state == DEAD || cas(i, state, DEAD))
+					{
+					tier.evict(base + i);
+					return state;
+					}
+				}
+			}
+
+		/**
+		 * Returns the message in slot <TT>i</TT>, or null if it is empty or a
+		 * tombstone, without putting it in the LRU cache.
+		 */
+		public Message peek
+			(int i)
+			{
+			return state(i) == LIVE ? content(i, false) : null;
+			}
+
+		/**
+		 * Returns one more than the greatest serial number below slot
+		 * <TT>i</TT> whose slot is not a tombstone, or the serial number of
+		 * slot 0 if there is none in this chunk. The states are scanned 32
+		 * slots at a time.
+		 */
+		public int skip
+			(int i)
+			{
+			int j = i - 1;
+			while (j >= 0)
+				{
+				if ((j & 31) == 31 && states.get(j >> 5) == ALL_DEAD)
+					{
+					j -= 32;
+					continue;
+					}
+				if (state(j) != DEAD)
+					return base + j + 1;
+				-- j;
+				}
+			return base;
+			}
+
+		public void setSkip
+			(int i,
+			 int to)
+			{
+			}
+
+		/**
+		 * Set the state of slot <TT>i</TT> while the chunk is being made, before
+		 * it is published.
+		 */
+		public void init
+			(int i,
+			 int state)
+			{
+			cas(i, EMPTY, state);
+			}
+
+		/**
+		 * Write the pending messages to the segment file, then drop them.
+		 */
+		public void writeOut()
+			{
+			tier.write(pending, base);
+			pending = null;
+			}
+
+		/**
+		 * Returns the message in live slot <TT>i</TT>, putting it in the LRU
+		 * cache if <TT>keep</TT> is true.
+		 */
+		private Message content
+			(int i,
+			 boolean keep)
+			{
+			Message[] messages = pending;
+			if (messages != null && messages[i] != null)
+				return messages[i];
+			return tier.read(base + i, keep);
+			}
+
+		/**
+		 * Change the state of slot <TT>i</TT> from <TT>expect</TT> to
+		 * <TT>update</TT>.
+		 *
+		 * @return	boolean  True if the slot was in state <TT>expect</TT>.
+		 */
+		private boolean cas
+			(int i,
+			 int expect,
+			 int update)
+			{
+			int shift = (i & 31) << 1;
+			for (;;)
+				{
+				long word = states.get(i >> 5);
+				if (((word >>> shift) & 3) != expect)
+					return false;
+				long next = (word & ~(3L << shift)) | ((long) update << shift);
+				if (states.compareAndSet(i >> 5, word, next))
+					return true;
+				}
+			}
+		}
+
+	/**
+	 * Disk tier of the message list. The spilled messages are appended to a
+	 * segment file as records like the arena's; an index file holds, at
+	 * position 8 times the serial number, one more than the position of the
+	 * serial number's record in the segment file. The files only hold a copy of
+	 * what the message log holds, so they are made afresh each time the message
+	 * list is made, and deleted when the program exits. Messages read from the
+	 * files are kept in an LRU cache.
+	 * <P>
+	 * Chunks are spilled by the spiller thread, not by the thread whose add
+	 * moved the hot window on, so adding a message never waits for the disk.
+	 * If the spiller falls behind, the chunks waiting to be spilled stay in
+	 * memory until it catches up, and if a chunk's messages cannot be written
+	 * out, they stay in memory for good.
+	 */
+	private class Tier
+		{
+		private static final int HEADER = 16;
+
+		private final int hotChunks;
+		private final FileChannel segment;
+		private final FileChannel index;
+		private final AtomicLong end = new AtomicLong();
+		private final LinkedHashMap<Integer, Message> cache;
+
+		/**
+		 * Index of the lowest chunk not yet spilled.
+		 */
+		private volatile int spilled = 0;
+
+		/**
+		 * Index of the lowest chunk the hot window still holds; the chunks
+		 * below it are to be spilled.
+		 */
+		private final AtomicInteger wanted = new AtomicInteger();
+
+		/**
+		 * True while a spill task is waiting to run on the spiller thread.
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		/**
+		 * Task that spills the chunks below <TT>wanted</TT>.
+		 */
+		private final Runnable spillTask = new Runnable()
+			{
+			public void run()
+				{
+				scheduled.set(false);
+				try
+					{
+					spillTo(wanted.get());
+					}
+				catch (RuntimeException e)
+					{
+					System.err.println
+						("\nMessageList: Cannot spill the old messages of \"" + name + "\": " + e);
+					}
+				}
+			};
+
+		/**
+		 * Construct a new tier keeping the <TT>window</TT> newest messages in
+		 * memory and caching <TT>cacheSize</TT> old ones, with its files in the
+		 * directory <TT>dir</TT>.
+		 *
+		 * @exception	IOException
+		 *		Thrown if the files could not be made.
+		 */
+		public Tier
+			(int window,
+			 final int cacheSize,
+			 File dir)
+			throws IOException
+			{
+			this.hotChunks = (window + CHUNK_SIZE - 1) / CHUNK_SIZE + 1;
+			this.segment = open(File.createTempFile(name + ".cold.", "", dir));
+			this.index = open(File.createTempFile(name + ".coldidx.", "", dir));
+			this.cache = new LinkedHashMap<Integer, Message>(16, 0.75f, true)
+				{
+				protected boolean removeEldestEntry
+					(Map.Entry<Integer, Message> eldest)
+					{
+					return size() > cacheSize;
+					}
+				};
+			}
+
+		/**
+		 * Have the chunks that have fallen out of the hot window spilled, given
+		 * the highest serial number added.
+		 */
+		public void spill
+			(int high)
+			{
+			int limit = (high >>> CHUNK_BITS) - hotChunks + 1;
+			int w = wanted.get();
+			while (limit > w && ! wanted.compareAndSet(w, limit))
+				w = wanted.get();
+			if (limit > w && ! scheduled.getAndSet(true))
+				SPILLER.execute(spillTask);
+			}
+
+		/**
+		 * Spill the hot chunks below index <TT>limit</TT>. Call this method only
+		 * on the spiller thread.
+		 */
+		private void spillTo
+			(int limit)
+			{
+			for (int c = spilled; c < limit; ++ c)
+				{
+				HotChunk hot;
+				synchronized (growLock)
+					{
+					Chunk[] dir = chunks;
+					Chunk chunk = c < dir.length ? dir[c] : null;
+					if (! (chunk instanceof HotChunk))
+						{
+						// A chunk made here from now on is made cold.
+						spilled = c + 1;
+						continue;
+						}
+					hot = (HotChunk) chunk;
+					}
+
+				// Freeze the chunk, put its replacement in its place, then
+				// write the messages out.
+				Message[] messages = new Message[CHUNK_SIZE];
+				ColdChunk cold = new ColdChunk(c << CHUNK_BITS, messages);
+				for (int i = 0; i < CHUNK_SIZE; ++ i)
+					cold.init(i, hot.freeze(i, messages));
+				synchronized (growLock)
+					{
+					Chunk[] dir = chunks.clone();
+					dir[c] = cold;
+					chunks = dir;
+					spilled = c + 1;
+					}
+				cold.writeOut();
+				}
+			}
+
+		/**
+		 * Returns true if the chunk with the given <TT>index</TT> has been
+		 * spilled.
+		 */
+		public boolean isSpilled
+			(int index)
+			{
+			return index < spilled;
+			}
+
+		/**
+		 * Append a record of the given message to the segment file, and index
+		 * it.
+		 */
+		public void write
+			(Message mess)
+			{
+			byte[] text = mess.getText().getBytes(StandardCharsets.UTF_8);
+			ByteBuffer record = ByteBuffer.allocate(HEADER + text.length);
+			record.putInt(mess.getNum()).putLong(mess.getTime()).putInt(text.length).put(text);
+			record.flip();
+			long position = end.getAndAdd(record.remaining());
+			ByteBuffer entry = ByteBuffer.allocate(8);
+			entry.putLong(0, position + 1);
+			try
+				{
+				while (record.hasRemaining())
+					position += segment.write(record, position);
+				long at = 8L * mess.getNum();
+				while (entry.hasRemaining())
+					at += index.write(entry, at);
+				}
+			catch (IOException ioe)
+				{
+				throw new UncheckedIOException
+					("MessageList: Cannot write the spill file", ioe);
+				}
+			}
+
+		/**
+		 * Append records of the given messages, whose serial numbers run up from
+		 * <TT>base</TT> (null where there is no message), to the segment file
+		 * with one write, and index them with one write per run of serial
+		 * numbers.
+		 */
+		public void write
+			(Message[] messages,
+			 int base)
+			{
+			byte[][] texts = new byte[messages.length][];
+			int length = 0;
+			for (int i = 0; i < messages.length; ++ i)
+				if (messages[i] != null)
+					{
+					texts[i] = messages[i].getText().getBytes(StandardCharsets.UTF_8);
+					length += HEADER + texts[i].length;
+					}
+			if (length == 0)
+				return;
+			ByteBuffer records = ByteBuffer.allocate(length);
+			ByteBuffer entries = ByteBuffer.allocate(8 * messages.length);
+			long start = end.getAndAdd(length);
+			for (int i = 0; i < messages.length; ++ i)
+				if (texts[i] != null)
+					{
+					entries.putLong(8 * i, start + records.position() + 1);
+					records.putInt(messages[i].getNum()).putLong(messages[i].getTime())
+						.putInt(texts[i].length).put(texts[i]);
+					}
+			records.flip();
+			try
+				{
+				writeFully(segment, records, start);
+				int i = 0;
+				while (i < messages.length)
+					{
+					int j = i;
+					while (j < messages.length && texts[j] != null)
+						++ j;
+					if (j > i)
+						{
+						entries.limit(8 * j);
+						entries.position(8 * i);
+						writeFully(index, entries, 8L * (base + i));
+						}
+					i = j + 1;
+					}
+				}
+			catch (IOException ioe)
+				{
+				throw new UncheckedIOException
+					("MessageList: Cannot write the spill file", ioe);
+				}
+			}
+
+		/**
+		 * Read the message with the given serial number, from the cache if it
+		 * is there. A message read from the files is put in the cache if
+		 * <TT>keep</TT> is true.
+		 */
+		public Message read
+			(int num,
+			 boolean keep)
+			{
+			synchronized (cache)
+				{
+				Message mess = cache.get(num);
+				if (mess != null)
+					return mess;
+				}
+			try
+				{
+				ByteBuffer entry = ByteBuffer.allocate(8);
+				readFully(index, entry, 8L * num);
+				long position = entry.getLong(0) - 1;
+				ByteBuffer header = ByteBuffer.allocate(HEADER);
+				readFully(segment, header, position);
+				ByteBuffer text = ByteBuffer.allocate(header.getInt(12));
+				readFully(segment, text, position + HEADER);
+				Message mess = new Message(header.getInt(0), header.getLong(4),
+					new String(text.array(), StandardCharsets.UTF_8));
+				if (keep)
+					synchronized (cache)
+						{
+						cache.put(num, mess);
+						}
+				return mess;
+				}
+			catch (IOException ioe)
+				{
+				throw new UncheckedIOException
+					("MessageList: Cannot read the spill file", ioe);
+				}
+			}
+
+		/**
+		 * Drop the message with the given serial number from the cache.
+		 */
+		public void evict
+			(int num)
+			{
+			synchronized (cache)
+				{
+				cache.remove(num);
+				}
+			}
+
+		private FileChannel open
+			(File file)
+			throws IOException
+			{
+			file.deleteOnExit();
+			return FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			}
+
+		private void writeFully
+			(FileChannel channel,
+			 ByteBuffer buffer,
+			 long position)
+			throws IOException
+			{
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			}
+
+		private void readFully
+			(FileChannel channel,
+			 ByteBuffer buffer,
+			 long position)
+			throws IOException
+			{
+			while (buffer.hasRemaining())
+				{
+				int n = channel.read(buffer, position);
+				if (n < 0)
+					throw new EOFException("MessageList: Spill file is short");
+				position += n;
+				}
+			}
+		}
+
+	/**
+	 * Off-heap store of message records. A record is the serial number (int),
+	 * date/time (long), text length in bytes (int), and the text in UTF-8. A
+	 * record address is the block index plus one in the upper 32 bits and the
+	 * offset within the block in the lower 32 bits. A block is never written
+	 * again once a record has been written past, so a reader holding a block
+	 * reads a record correctly even if the block has since been compacted;
+	 * records are only ever appended under the arena's lock.
+	 */
+	private class Arena
+		{
+		private static final int HEADER = 16;
+
+		private final int blockSize;
+
+		/**
+		 * Array from block index to block (null once released). Replaced,
+		 * never modified in place.
+		 */
+		private volatile ByteBuffer[] blocks = new ByteBuffer[0];
+
+		// Guarded by this arena's lock.
+		private int[] used = new int[0];
+		private int[] dead = new int[0];
+		private int current = -1;
+		private long capacity;
+
+		public Arena
+			(int blockSize)
+			{
+			this.blockSize = blockSize;
+			}
+
+		/**
+		 * Append a record of the given message, and put its address in slot
+		 * <TT>i</TT> of the given chunk if the slot is empty. The record is
+		 * published while holding the arena's lock, so a compaction never sees
+		 * it before it is in its slot.
+		 *
+		 * @return	boolean  True if the message was put.
+		 */
+		public boolean write
+			(ArenaChunk chunk,
+			 int i,
+			 Message mess)
+			{
+			byte[] text = mess.getText().getBytes(StandardCharsets.UTF_8);
+			synchronized (this)
+				{
+				int last = current;
+				long address = append(mess.getNum(), mess.getTime(), text);
+				boolean added = chunk.move(i, 0L, address);
+				if (! added)
+					dead[current] += HEADER + text.length;
+
+				// A block that was left full may be half removed already.
+				if (current != last)
+					compactIfSparse(last);
+				return added;
+				}
+			}
+
+		/**
+		 * Decode the message in the record at the given <TT>address</TT>.
+		 *
+		 * @return	Message  Message, or null if the record's block has been
+		 *		released.
+		 */
+		public Message read
+			(long address)
+			{
+			ByteBuffer block = blocks[(int) (address >>> 32) - 1];
+			if (block == null)
+				return null;
+			int offset = (int) address;
+			int length = block.getInt(offset + 12);
+			byte[] text = new byte[length];
+			ByteBuffer view = block.duplicate();
+			view.position(offset + HEADER);
+			view.get(text);
+			return new Message(block.getInt(offset), block.getLong(offset + 4),
+				new String(text, StandardCharsets.UTF_8));
+			}
+
+		/**
+		 * Count the record at the given <TT>address</TT> as removed, and
+		 * compact its block if half of it is removed records.
+		 */
+		public synchronized void free
+			(long address)
+			{
+			int b = (int) (address >>> 32) - 1;
+			ByteBuffer block = blocks[b];
+			if (block == null)
+				return;
+			dead[b] += HEADER + block.getInt((int) address + 12);
+			compactIfSparse(b);
+			}
+
+		/**
+		 * Returns the total size of the blocks (bytes).
+		 */
+		public synchronized long capacity()
+			{
+			return capacity;
+			}
+
+		/**
+		 * Compact block <TT>b</TT> if it is full and at least half of it is
+		 * removed records. Call this method while holding the arena's lock.
+		 */
+		private void compactIfSparse
+			(int b)
+			{
+			if (b >= 0 && b != current && blocks[b] != null && 2 * dead[b] >= used[b])
+				compact(b);
+			}
+
+		/**
+		 * Copy the live records out of block <TT>b</TT> and release it. Call
+		 * this method while holding the arena's lock.
+		 */
+		private void compact
+			(int b)
+			{
+			ByteBuffer block = blocks[b];
+			ByteBuffer view = block.duplicate();
+			int offset = 0;
+			while (offset < used[b])
+				{
+				int num = block.getInt(offset);
+				int length = block.getInt(offset + 12);
+				long address = ((long) (b + 1) << 32) | offset;
+				Chunk c = chunk(num, false);
+				ArenaChunk chunk = c instanceof ArenaChunk ? (ArenaChunk) c : null;
+				int i = num & CHUNK_MASK;
+				if (chunk != null && chunk.holds(i, address))
+					{
+					byte[] text = new byte[length];
+					view.position(offset + HEADER);
+					view.get(text);
+					long moved = append(num, block.getLong(offset + 4), text);
+					if (! chunk.move(i, address, moved))
+						dead[(int) (moved >>> 32) - 1] += HEADER + length;
+					}
+				offset += HEADER + length;
+				}
+			ByteBuffer[] dir = blocks.clone();
+			dir[b] = null;
+			blocks = dir;
+			capacity -= block.capacity();
+			}
+
+		/**
+		 * Append a record, starting a new block if the current one is full.
+		 * Call this method while holding the arena's lock.
+		 */
+		private long append
+			(int num,
+			 long time,
+			 byte[] text)
+			{
+			int length = HEADER + text.length;
+			if (current < 0 || used[current] + length > blocks[current].capacity())
+				{
+				ByteBuffer block = ByteBuffer.allocateDirect(Math.max(blockSize, length));
+				current = blocks.length;
+				ByteBuffer[] dir = Arrays.copyOf(blocks, current + 1);
+				dir[current] = block;
+				used = Arrays.copyOf(used, current + 1);
+				dead = Arrays.copyOf(dead, current + 1);
+				capacity += block.capacity();
+				blocks = dir;
+				}
+			ByteBuffer block = blocks[current];
+			int offset = used[current];
+			block.putInt(offset, num);
+			block.putLong(offset + 4, time);
+			block.putInt(offset + 12, text.length);
+			ByteBuffer view = block.duplicate();
+			view.position(offset + HEADER);
+			view.put(text);
+			used[current] = offset + length;
+			return ((long) (current + 1) << 32) | offset;
+			}
+		}
+
+	/**
+	 * Thread that spills the old chunks of every message list with a hot
+	 * window.
+	 */
+	private static final ExecutorService SPILLER =
+		Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+			public Thread newThread(Runnable r)
+				{
+				Thread thread = new Thread(r, "MessageList spill");
+				thread.setDaemon(true);
+				return thread;
+				}
+			});
+
 	/**
-	 * Map from message serial number to specify message object.
+	 * Array from chunk index to chunk. Replaced, never modified in place, except
+	 * to fill in an empty element while holding <TT>growLock</TT>.
 	 */
-	private HashMap<Integer, Message> messages = new HashMap<Integer, Message>();
+	private volatile Chunk[] chunks = new Chunk[16];
+	private Object growLock = new Object();
+
+	/**
+	 * Highest serial number ever added (0 if none).
+	 */
+	private AtomicInteger high = new AtomicInteger();
+
+	/**
+	 * Number of tombstones.
+	 */
+	private AtomicInteger removedCount = new AtomicInteger();
+
+	/**
+	 * Number of live messages.
+	 */
+	private AtomicInteger size = new AtomicInteger();
+
 	private String name;
-	private Message mess;
-	
+
+	/**
+	 * Off-heap store of the messages, or null if they are kept on the heap.
+	 */
+	private Arena arena;
+
+	/**
+	 * Disk tier of the old messages, or null if they are all kept in memory.
+	 */
+	private Tier tier;
+
 	/**
 	 * Construct a new message list with given microblog owner <TT>name</TT>.
 	 *
@@ -23,12 +1129,32 @@ public class MessageList
 		(String name)
 		{
 		this.name = name;
-		messages.put(0, null);
+		if (Boolean.getBoolean("p2patter.microblog.offheap"))
+			arena = new Arena(Math.max(1 << 12,
+				Integer.getInteger("p2patter.microblog.arenablock", 1 << 24)));
+		int window = Integer.getInteger("p2patter.microblog.hotwindow", 0);
+		if (window > 0)
+			{
+			String dir = System.getProperty("p2patter.microblog.dir");
+			try
+				{
+				tier = new Tier(window,
+					Integer.getInteger("p2patter.microblog.coldcache", 10000),
+					dir == null ? null : new File(dir));
+				}
+			catch (IOException ioe)
+				{
+				throw new UncheckedIOException
+					("MessageList: Cannot make the spill files", ioe);
+				}
+			}
 		}
-	
+
 	/**
-	 * Add a message with given serial <TT>num</tt> and object <TT>mess</TT> 
-	 * to this message list. 
+	 * Add a message with given serial <TT>num</tt> and object <TT>mess</TT>
+	 * to this message list. Messages may be added in any order. Nothing is done
+	 * if the slot of serial <TT>num</TT> already holds a message or a
+	 * tombstone.
 	 *
 	 * @param	num   Serial number.
 	 * @param	mess  Message object.
@@ -36,35 +1162,129 @@ public class MessageList
 	public void add
 		(int num,
 		 Message mess)
-		{		
-		messages.put(num, mess);
+		{
+		Chunk chunk = chunk(num, true);
+		int i = num & CHUNK_MASK;
+		while (! chunk.add(i, mess))
+			{
+			if (chunk.state(i) != MOVED)
+				return;
+			chunk = moved(chunk, num);
+			}
+		size.incrementAndGet();
+		int h = high.get();
+		while (num > h && ! high.compareAndSet(h, num))
+			h = high.get();
+		if (tier != null)
+			tier.spill(Math.max(h, num));
 		}
 
 	/**
 	 * Remove the message with given serial <TT>num</tt> to this message list.
-	 * The way to remove the message is to set the object of certain serial 
-	 * <TT>num</TT> to be null.
+	 * The way to remove the message is to leave a tombstone in the slot of
+	 * certain serial <TT>num</TT>.
 	 *
 	 * @param	num   Serial number.
+	 *
+	 * @return	Removed message object, or null if there was no such message.
 	 */
-	public void remove
+	public Message remove
 		(int num)
 		{
-		messages.put(num, null);
+		Chunk chunk = chunk(num, false);
+		if (chunk == null)
+			return null;
+		int i = num & CHUNK_MASK;
+		Message mess;
+		while ((mess = chunk.remove(i)) == null && chunk.state(i) == MOVED)
+			chunk = moved(chunk, num);
+		if (mess != null)
+			{
+			removedCount.incrementAndGet();
+			size.decrementAndGet();
+			}
+		return mess;
+		}
+
+	/**
+	 * Leave a tombstone in the slot of serial <TT>num</TT>, whether or not the
+	 * message has been added yet. This is used when replaying a message log, in
+	 * which the removal of a message may come before its addition.
+	 *
+	 * @param	num   Serial number.
+	 */
+	public void tombstone
+		(int num)
+		{
+		if (num <= 0)
+			return;
+		Chunk chunk = chunk(num, true);
+		int state;
+		while ((state = chunk.tombstone(num & CHUNK_MASK)) == MOVED)
+			chunk = moved(chunk, num);
+		if (state != DEAD)
+			removedCount.incrementAndGet();
+		if (state == LIVE)
+			size.decrementAndGet();
 		}
-	
+
 	/**
 	 * Query a message with given serial <TT>num</tt> from this message list.
 	 *
 	 * @param	num   Serial number.
+	 *
+	 * @return	Message object, or null if there is no such message.
 	 */
 	public Message query
 		(int num)
 		{
-		mess = messages.get(num);
+		Chunk chunk = chunk(num, false);
+		if (chunk == null)
+			return null;
+		int i = num & CHUNK_MASK;
+		Message mess;
+		while ((mess = chunk.get(i)) == null && chunk.state(i) == MOVED)
+			chunk = moved(chunk, num);
 		return mess;
 		}
-	
+
+	/**
+	 * Determine whether this message list holds a message with given serial
+	 * <TT>num</tt>, without reading the message.
+	 *
+	 * @param	num   Serial number.
+	 *
+	 * @return	True if there is such a message.
+	 */
+	public boolean contains
+		(int num)
+		{
+		Chunk chunk = chunk(num, false);
+		if (chunk == null)
+			return false;
+		int i = num & CHUNK_MASK;
+		int state;
+		while ((state = chunk.state(i)) == MOVED)
+			chunk = moved(chunk, num);
+		return state == LIVE;
+		}
+
+	/**
+	 * Query the complete content of the message with given serial <TT>num</tt>
+	 * from this message list. The content is rendered on demand from the message
+	 * text and this message list's owner name.
+	 *
+	 * @param	num   Serial number.
+	 *
+	 * @return	Complete message content, or null if there is no such message.
+	 */
+	public String queryCont
+		(int num)
+		{
+		Message mess = query(num);
+		return mess == null ? null : mess.getCont(name);
+		}
+
 	/**
 	 * Query the recent 2 message dates/time from this message list.
 	 */
@@ -72,58 +1292,417 @@ public class MessageList
 		{
 		// If the message with specify number exist, return that date/time;
 		// if not, return null.
-		Date last1 = messages.get(this.queryRecentNum()[0]) == null ?
-						null : messages.get(this.queryRecentNum()[0]).getDate();
-		Date last2 = messages.get(this.queryRecentNum()[1]) == null ?
-						null : messages.get(this.queryRecentNum()[1]).getDate();
-		
-		Date[] last = {last1, last2};
+		int[] recent = queryRecentNum();
+		Message last1 = query(recent[0]);
+		Message last2 = query(recent[1]);
+
+		Date[] last = {last1 == null ? null : last1.getDate(),
+					   last2 == null ? null : last2.getDate()};
 		return last;
 		}
-	
+
 	/**
-	 * Query the recent 2 message serial numbers from this message list. 
+	 * Query the recent 2 message serial numbers from this message list.
 	 */
 	public int[] queryRecentNum()
 		{
-		// Get the last (most recently) message serial number		
-		int last1 = messages.size()-1;
-		int temp = last1;
-		int last2 = 0;
-		
-		// Get the second message serial number from last (if any)
-		while (last2 ==0 && temp != 0)
-			{
-			if (messages.get(--temp) != null)
-				last2 = temp;
-			}
-		
+		// Get the last (most recently) message serial number and the second
+		// message serial number from last (if any).
+		int last1 = previous(high.get());
+		int last2 = last1 == 0 ? 0 : previous(last1 - 1);
+
 		int[] last = {last1, last2};
-		
+
 		return last;
 		}
-	
+
+	/**
+	 * Query the <TT>count</TT> most recent messages from this message list. The
+	 * messages are returned in one page in ascending order of serial number; the
+	 * page holds fewer messages if this message list does not have that many.
+	 *
+	 * @param	count  Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of the most recent messages.
+	 */
+	public MessagePage queryRecent
+		(int count)
+		{
+		return collect(high.get(), count);
+		}
+
+	/**
+	 * Query up to <TT>count</TT> messages with serial numbers less than
+	 * <TT>before</TT> from this message list, newest first. The messages are
+	 * returned in one page in ascending order of serial number, and the page's
+	 * <TT>next</TT> cursor is the value of <TT>before</TT> that gets the page of
+	 * older messages (0 if there are none). Runs of removed messages are
+	 * skipped in one step each, so the time to get a page does not depend on
+	 * how many messages this message list holds.
+	 *
+	 * @param	before	Upper bound (exclusive) of the serial numbers, or 0 for
+	 *			no upper bound.
+	 * @param	count	Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages.
+	 */
+	public MessagePage queryBefore
+		(int before,
+		 int count)
+		{
+		int h = high.get();
+		return collect(before <= 0 || before > h ? h : before - 1, count);
+		}
+
 	/**
-	 * Query the microblog owner name from this message list. 
+	 * Query the messages with the given serial numbers from this message list.
+	 * The messages are returned in one page in ascending order of serial
+	 * number; serial numbers of removed or unknown messages, and repeated
+	 * serial numbers, are left out.
+	 *
+	 * @param	nums  Serial numbers, in any order.
+	 *
+	 * @return	MessagePage  Page of messages.
+	 */
+	public MessagePage queryNums
+		(int[] nums)
+		{
+		int[] sorted = nums.clone();
+		Arrays.sort(sorted);
+		int size = 0;
+		int[] num = new int[sorted.length];
+		long[] time = new long[sorted.length];
+		String[] text = new String[sorted.length];
+		for (int i = 0; i < sorted.length; ++ i)
+			{
+			if (i > 0 && sorted[i] == sorted[i - 1])
+				continue;
+			Message m = query(sorted[i]);
+			if (m != null)
+				{
+				num[size] = sorted[i];
+				time[size] = m.getTime();
+				text[size] = m.getText();
+				++ size;
+				}
+			}
+		return new MessagePage(name, Arrays.copyOf(num, size), Arrays.copyOf(time, size),
+			Arrays.copyOf(text, size));
+		}
+
+	/**
+	 * Query up to <TT>count</TT> messages with serial numbers greater than
+	 * <TT>after</TT> from this message list, oldest first. The messages are
+	 * returned in one page in ascending order of serial number, and the page's
+	 * <TT>next</TT> cursor is the value of <TT>after</TT> that gets the page of
+	 * newer messages (0 if there were none when the page was made). This is
+	 * meant for catching up on a short run of recent messages; the slots are
+	 * walked one at a time, except that chunks with no messages are skipped.
+	 *
+	 * @param	after	Lower bound (exclusive) of the serial numbers.
+	 * @param	count	Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages.
+	 */
+	public MessagePage queryAfter
+		(int after,
+		 int count)
+		{
+		int h = high.get();
+		int size = 0;
+		int[] num = new int[Math.max(0, Math.min(count, 16))];
+		long[] time = new long[num.length];
+		String[] text = new String[num.length];
+		int s = Math.max(after, 0) + 1;
+		while (s > 0 && s <= h && size < count)
+			{
+			Chunk chunk = chunk(s, false);
+			if (chunk == null)
+				{
+				// No message was ever added in this chunk.
+				s = (s | CHUNK_MASK) + 1;
+				continue;
+				}
+			Message m = query(s);
+			if (m != null)
+				{
+				if (size == num.length)
+					{
+					int length = (int) Math.min((long) count, 2L * size);
+					num = Arrays.copyOf(num, length);
+					time = Arrays.copyOf(time, length);
+					text = Arrays.copyOf(text, length);
+					}
+				num[size] = s;
+				time[size] = m.getTime();
+				text[size] = m.getText();
+				++ size;
+				}
+			++ s;
+			}
+
+		int next = size > 0 && size == count && s > 0 && s <= h ? num[size - 1] : 0;
+		return new MessagePage(name, Arrays.copyOf(num, size), Arrays.copyOf(time, size),
+			Arrays.copyOf(text, size), next);
+		}
+
+	/**
+	 * Query the messages with serial numbers greater than <TT>after</TT> from
+	 * this message list, up to the end of the first chunk of slots that has
+	 * any. The messages are returned in one page in ascending order of serial
+	 * number, and the page's <TT>next</TT> cursor is the value of
+	 * <TT>after</TT> that gets the next chunk's messages (0 if there are no
+	 * more). This is meant for going through every message, as a snapshot
+	 * does, a chunk at a time; old messages spilled to disk are read without
+	 * going through the LRU cache, so the cache keeps the messages clients
+	 * asked for.
+	 *
+	 * @param	after	Lower bound (exclusive) of the serial numbers.
+	 *
+	 * @return	MessagePage  Page of at most 4096 messages.
+	 */
+	public MessagePage queryChunk
+		(int after)
+		{
+		int h = high.get();
+		int s = Math.max(after, 0) + 1;
+		while (s > 0 && s <= h && chunk(s, false) == null)
+			s = (s | CHUNK_MASK) + 1;
+		int end = s > 0 && s <= h ? Math.min(s | CHUNK_MASK, h) : 0;
+
+		int size = 0;
+		int[] num = new int[end == 0 ? 0 : end - s + 1];
+		long[] time = new long[num.length];
+		String[] text = new String[num.length];
+		for (; end != 0 && s <= end; ++ s)
+			{
+			Chunk chunk = chunk(s, false);
+			int i = s & CHUNK_MASK;
+			Message m;
+			while ((m = chunk instanceof ColdChunk ? ((ColdChunk) chunk).peek(i) :
+					chunk.get(i)) == null && chunk.state(i) == MOVED)
+				chunk = moved(chunk, s);
+			if (m != null)
+				{
+				num[size] = s;
+				time[size] = m.getTime();
+				text[size] = m.getText();
+				++ size;
+				}
+			}
+
+		return new MessagePage(name, Arrays.copyOf(num, size), Arrays.copyOf(time, size),
+			Arrays.copyOf(text, size), end != 0 && end < h ? end : 0);
+		}
+
+	/**
+	 * Collect up to <TT>count</TT> live messages with serial numbers at or below
+	 * <TT>from</TT> into a page.
+	 */
+	private MessagePage collect
+		(int from,
+		 int count)
+		{
+		// Collect the live messages back from the given serial number.
+		int size = 0;
+		int[] num = new int[Math.max(0, Math.min(count, 16))];
+		Message[] mess = new Message[num.length];
+		int p = previous(from);
+		while (p != 0 && size < count)
+			{
+			Message m = query(p);
+			if (m != null)
+				{
+				if (size == num.length)
+					{
+					num = Arrays.copyOf(num, (int) Math.min((long) count, 2L * size));
+					mess = Arrays.copyOf(mess, num.length);
+					}
+				num[size] = p;
+				mess[size] = m;
+				++ size;
+				}
+			p = previous(p - 1);
+			}
+
+		// Lay the page out in ascending order of serial number.
+		int[] pageNum = new int[size];
+		long[] time = new long[size];
+		String[] text = new String[size];
+		for (int i = 0; i < size; ++ i)
+			{
+			int j = size - 1 - i;
+			pageNum[j] = num[i];
+			time[j] = mess[i].getTime();
+			text[j] = mess[i].getText();
+			}
+
+		return new MessagePage(name, pageNum, time, text, p == 0 ? 0 : p + 1);
+		}
+
+	/**
+	 * Query the microblog owner name from this message list.
 	 */
 	public String queryRecentName()
-		{		
+		{
 		return name;
 		}
-	
+
 	/**
-	 * Query the recent 2 complete message contents from this message list. 
+	 * Query the recent 2 complete message contents from this message list.
 	 */
 	public String[] queryRecentCont()
-		{	
+		{
 		// If the message with specify number exist, return that content;
-		// if not, return null.	
-		String last1 = messages.get(this.queryRecentNum()[0]) == null ?
-						  null : messages.get(this.queryRecentNum()[0]).getCont();
-		String last2 = messages.get(this.queryRecentNum()[1]) == null ?
-				  		  null : messages.get(this.queryRecentNum()[1]).getCont();
-		
-		String[] last = {last1, last2};
+		// if not, return null.
+		int[] recent = queryRecentNum();
+		Message last1 = query(recent[0]);
+		Message last2 = query(recent[1]);
+
+		String[] last = {last1 == null ? null : last1.getCont(name),
+						 last2 == null ? null : last2.getCont(name)};
 		return last;
 		}
+
+	/**
+	 * Returns the number of live messages in this message list.
+	 */
+	public int size()
+		{
+		return size.get();
+		}
+
+	/**
+	 * Returns the number of removed messages (tombstones) in this message list.
+	 */
+	public int removedCount()
+		{
+		return removedCount.get();
+		}
+
+	/**
+	 * Returns the number of bytes of off-heap memory this message list takes
+	 * up (0 if the messages are kept on the heap).
+	 */
+	public long offHeapSize()
+		{
+		return arena == null ? 0L : arena.capacity();
+		}
+
+	/**
+	 * Returns the greatest serial number at or below <TT>from</TT> whose slot
+	 * holds a live message (0 if none). Runs of tombstones walked over are
+	 * remembered, so they are jumped over in one step next time.
+	 *
+	 * @param	from  Serial number.
+	 */
+	private int previous
+		(int from)
+		{
+		int s = from;
+		int runStart = 0;
+		while (s > 0)
+			{
+			Chunk chunk = chunk(s, false);
+			if (chunk == null)
+				{
+				// No message was ever added in this chunk.
+				if (runStart != 0)
+					setSkip(runStart, s);
+				runStart = 0;
+				s = (s & ~CHUNK_MASK) - 1;
+				continue;
+				}
+
+			int i = s & CHUNK_MASK;
+			int state = chunk.state(i);
+			if (state == MOVED)
+				{
+				// Look again in the chunk that replaced this one.
+				moved(chunk, s);
+				continue;
+				}
+			if (state == DEAD)
+				{
+				if (runStart == 0)
+					runStart = s;
+				int skip = chunk.skip(i);
+				s = skip > 0 ? skip - 1 : s - 1;
+				continue;
+				}
+
+			// The run of tombstones, if any, ends here.
+			if (runStart != 0)
+				setSkip(runStart, s);
+			runStart = 0;
+			if (state == LIVE)
+				return s;
+			-- s;
+			}
+		if (runStart != 0)
+			setSkip(runStart, 0);
+		return 0;
+		}
+
+	/**
+	 * Remember that every slot above serial <TT>to</TT> up to and including
+	 * serial <TT>from</TT> holds a tombstone.
+	 */
+	private void setSkip
+		(int from,
+		 int to)
+		{
+		if (from - to > 1)
+			chunk(from, false).setSkip(from & CHUNK_MASK, to + 1);
+		}
+
+	/**
+	 * Wait for the given frozen <TT>chunk</TT> to be replaced, and return the
+	 * chunk that replaced it, which holds the slot of serial <TT>num</TT>.
+	 */
+	private Chunk moved
+		(Chunk chunk,
+		 int num)
+		{
+		Chunk next;
+		while ((next = chunk(num, false)) == chunk)
+			Thread.yield();
+		return next;
+		}
+
+	/**
+	 * Returns the chunk holding the slot of serial <TT>num</TT>, allocating it
+	 * if <TT>create</TT> is true, or null if there is no such chunk.
+	 */
+	private Chunk chunk
+		(int num,
+		 boolean create)
+		{
+		if (num <= 0)
+			{
+			if (create)
+				throw new IllegalArgumentException
+					("MessageList: Invalid serial number " + num);
+			return null;
+			}
+		int index = num >>> CHUNK_BITS;
+		Chunk[] dir = chunks;
+		if (index < dir.length && dir[index] != null)
+			return dir[index];
+		if (! create)
+			return null;
+
+		synchronized (growLock)
+			{
+			dir = chunks;
+			if (index >= dir.length)
+				dir = Arrays.copyOf(dir, Math.max(index + 1, 2 * dir.length));
+			if (dir[index] == null)
+				dir[index] = tier != null && tier.isSpilled(index) ?
+					new ColdChunk(index << CHUNK_BITS, null) :
+					arena == null ? new HeapChunk() : new ArenaChunk();
+			chunks = dir;
+			return dir[index];
+			}
+		}
 	}
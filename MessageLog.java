@@ -0,0 +1,515 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+/**
+ * Class MessageLog provides an append-only write-ahead log of the messages
+ * added to and removed from a microblog in the P2Patter system.
+ * <P>
+ * The log is a series of segment files named <I>name</I><TT>.</TT><I>n</I><TT>.log</TT>
+ * in the log directory, where <I>n</I> is the segment number. Records are always
+ * appended to the newest segment. Rolling the log starts a new segment, so that
+ * once a snapshot of the message list has been taken at that point, all the
+ * older segments can be deleted.
+ * <P>
+ * Each record is written as its payload length, a CRC-32 of the payload, and
+ * the payload itself: a record type, the serial number, and for an added
+ * message the date/time and UTF-8 text. A torn record at the end of the log,
+ * left by a crash in the middle of a write, is detected by its length or CRC
+ * and cut off when the log is replayed.
+ * <P>
+ * Records are durable only once <TT>sync()</TT> returns. Syncs use group
+ * commit: the first poster to need a sync waits for the group commit window,
+ * then forces the log to disk once on behalf of every record appended so far,
+ * while the other posters simply wait for it. Class MessageLog is thread
+ * safe.
+ */
+public class MessageLog
+	{
+	/**
+	 * Record type of an added message.
+	 */
+	public static final byte ADD = 1;
+
+	/**
+	 * Record type of a removed message.
+	 */
+	public static final byte REMOVE = 2;
+
+	/**
+	 * Length of the record header (payload length and CRC).
+	 */
+	private static final int HEADER = 8;
+
+	private File dir;
+	private String name;
+	private long window;
+
+	private long segment;
+	private FileChannel channel;
+
+	private ByteBuffer buffer = ByteBuffer.allocate(1024);
+	private CRC32 crc = new CRC32();
+
+	/**
+	 * Logical position just past the last appended record, counted across all
+	 * segments written since this log was opened.
+	 */
+	private long written;
+
+	/**
+	 * Logical position up to which all records are known to be on disk.
+	 */
+	private long durable;
+	private boolean syncing;
+	private Object syncLock = new Object();
+
+	/**
+	 * Construct a new message log for the microblog with the given owner
+	 * <TT>name</TT> in the given directory. The log is opened by
+	 * <TT>replay()</TT>.
+	 *
+	 * @param	dir	Log directory.
+	 * @param	name	Microblog owner name.
+	 * @param	window	Group commit window (milliseconds).
+	 */
+	public MessageLog
+		(File dir,
+		 String name,
+		 long window)
+		{
+		this.dir = dir;
+		this.name = name;
+		this.window = window;
+		}
+
+	/**
+	 * Replay the segments of this log numbered <TT>from</TT> onwards into the
+	 * given message <TT>list</TT>, then open the newest segment for appending.
+	 * Any torn record at the end of the newest segment is cut off so new
+	 * records are appended after the last good one. Call this method once,
+	 * before appending any record.
+	 *
+	 * @param	list  Message list.
+	 * @param	from  First segment number to replay.
+	 *
+	 * @return	int  Highest serial number found in the log (0 if none).
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized int replay
+		(MessageList list,
+		 long from)
+		throws IOException
+		{
+		ArrayList<Long> segments = segments();
+		int last = 0;
+		long position = 0;
+		segment = from;
+		for (long n : segments)
+			{
+			if (n < from)
+				continue;
+			if (channel != null)
+				channel.close();
+			segment = n;
+			channel = open(n);
+			position = 0;
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (position + HEADER <= size)
+				{
+				header.clear();
+				readFully(header, position);
+				int length = header.getInt(0);
+				int check = header.getInt(4);
+				if (length < 5 || position + HEADER + length > size)
+					break;
+
+				ByteBuffer payload = ByteBuffer.allocate(length);
+				readFully(payload, position + HEADER);
+				crc.reset();
+				crc.update(payload.array(), 0, length);
+				if ((int) crc.getValue() != check)
+					break;
+
+				byte type = payload.get();
+				int num = payload.getInt();
+				if (type == ADD)
+					{
+					long time = payload.getLong();
+					String text = new String(payload.array(), payload.position(),
+						payload.remaining(), StandardCharsets.UTF_8);
+					list.add(num, new Message(num, time, text));
+					last = Math.max(last, num);
+					}
+				else if (type == REMOVE)
+					{
+					list.tombstone(num);
+					}
+				position += HEADER + length;
+				}
+			}
+
+		if (channel == null)
+			channel = open(segment);
+		channel.truncate(position);
+		channel.position(position);
+		return last;
+		}
+
+	/**
+	 * Add a message to the given message <TT>list</TT> and append a record of
+	 * it to this log, as one step with respect to the other appends and to
+	 * <TT>roll()</TT>. The message can be removed from the list only once it
+	 * is there, so the record of its removal always comes after this record in
+	 * the log, never in an older segment that a snapshot lets be deleted. The
+	 * record is not durable until <TT>sync()</TT> is called with the returned
+	 * position.
+	 *
+	 * @param	list	Message list.
+	 * @param	num	Serial number.
+	 * @param	time	Message date/time (epoch milliseconds).
+	 * @param	text	Message text.
+	 *
+	 * @return	long  Log position just past the record.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized long appendAdd
+		(MessageList list,
+		 int num,
+		 long time,
+		 String text)
+		throws IOException
+		{
+		list.add(num, new Message(num, time, text));
+		return appendAdd(num, time, text);
+		}
+
+	/**
+	 * Append a record of an added message to this log. The record is not
+	 * durable until <TT>sync()</TT> is called with the returned position.
+	 *
+	 * @param	num	Serial number.
+	 * @param	time	Message date/time (epoch milliseconds).
+	 * @param	text	Message text.
+	 *
+	 * @return	long  Log position just past the record.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized long appendAdd
+		(int num,
+		 long time,
+		 String text)
+		throws IOException
+		{
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		begin(HEADER + 13 + bytes.length);
+		buffer.put(ADD).putInt(num).putLong(time).put(bytes);
+		return end();
+		}
+
+	/**
+	 * Append a record of a removed message to this log. The record is not
+	 * durable until <TT>sync()</TT> is called with the returned position.
+	 *
+	 * @param	num	Serial number.
+	 *
+	 * @return	long  Log position just past the record.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized long appendRemove
+		(int num)
+		throws IOException
+		{
+		begin(HEADER + 5);
+		buffer.put(REMOVE).putInt(num);
+		return end();
+		}
+
+	/**
+	 * Wait until every record up to the given log <TT>position</TT> is on disk.
+	 *
+	 * @param	position  Log position returned by an append method.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public void sync
+		(long position)
+		throws IOException
+		{
+		for (;;)
+			{
+			// Either wait for the sync in progress, or become the poster who
+			// does the next sync.
+			synchronized (syncLock)
+				{
+				while (syncing && durable < position)
+					{
+					try
+						{
+						syncLock.wait();
+						}
+					catch (InterruptedException ie)
+						{
+						Thread.currentThread().interrupt();
+						throw new IOException("MessageLog.sync(): Interrupted", ie);
+						}
+					}
+				if (durable >= position)
+					return;
+				syncing = true;
+				}
+
+			try
+				{
+				// Let concurrent posters append within the group commit window,
+				// then force everything appended so far with one fsync.
+				if (window > 0)
+					Thread.sleep(window);
+				long target;
+				FileChannel current;
+				synchronized (this)
+					{
+					target = written;
+					current = channel;
+					}
+				try
+					{
+					current.force(false);
+					}
+				catch (ClosedChannelException cce)
+					{
+					// The segment was rolled, which forced it already.
+					}
+				markDurable(target);
+				}
+			catch (InterruptedException ie)
+				{
+				Thread.currentThread().interrupt();
+				throw new IOException("MessageLog.sync(): Interrupted", ie);
+				}
+			finally
+				{
+				synchronized (syncLock)
+					{
+					syncing = false;
+					syncLock.notifyAll();
+					}
+				}
+			}
+		}
+
+	/**
+	 * Roll this log: force the newest segment to disk and start a new segment.
+	 * Every record appended before this call is in an older segment, and every
+	 * record appended after it is in the new segment or a later one.
+	 *
+	 * @return	long  Segment number of the new segment.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized long roll()
+		throws IOException
+		{
+		channel.force(false);
+		markDurable(written);
+		FileChannel next = open(segment + 1);
+		syncDirectory(dir);
+		channel.close();
+		channel = next;
+		return ++ segment;
+		}
+
+	/**
+	 * Delete the segments of this log numbered before the given
+	 * <TT>segment</TT>.
+	 *
+	 * @param	segment  Segment number.
+	 *
+	 * @exception	IOException
+	 *		Thrown if a segment could not be deleted.
+	 */
+	public void deleteBefore
+		(long segment)
+		throws IOException
+		{
+		for (long n : segments())
+			{
+			if (n < segment && !segmentFile(n).delete())
+				throw new IOException
+					("MessageLog.deleteBefore(): Cannot delete " + segmentFile(n));
+			}
+		}
+
+	/**
+	 * Close this log.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized void close()
+		throws IOException
+		{
+		channel.close();
+		}
+
+	/**
+	 * Force the entries of the given directory to disk, so files created in,
+	 * renamed into, or deleted from it stay that way after a crash. Nothing is
+	 * done on a platform that cannot open a directory for this.
+	 *
+	 * @param	dir  Directory.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public static void syncDirectory
+		(File dir)
+		throws IOException
+		{
+		FileChannel channel;
+		try
+			{
+			channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			}
+		catch (IOException ioe)
+			{
+			return;
+			}
+		try
+			{
+			channel.force(true);
+			}
+		finally
+			{
+			channel.close();
+			}
+		}
+
+	/**
+	 * Record that all records up to the given logical <TT>position</TT> are
+	 * on disk.
+	 */
+	private void markDurable
+		(long position)
+		{
+		synchronized (syncLock)
+			{
+			durable = Math.max(durable, position);
+			}
+		}
+
+	/**
+	 * Start encoding a record of the given total <TT>length</TT>.
+	 */
+	private void begin
+		(int length)
+		{
+		if (buffer.capacity() < length)
+			buffer = ByteBuffer.allocate(Math.max(length, buffer.capacity() * 2));
+		buffer.clear();
+		buffer.position(HEADER);
+		}
+
+	/**
+	 * Fill in the record header and write the encoded record.
+	 */
+	private long end()
+		throws IOException
+		{
+		int length = buffer.position() - HEADER;
+		crc.reset();
+		crc.update(buffer.array(), HEADER, length);
+		buffer.putInt(0, length);
+		buffer.putInt(4, (int) crc.getValue());
+		buffer.flip();
+		while (buffer.hasRemaining())
+			written += channel.write(buffer);
+		return written;
+		}
+
+	/**
+	 * Read the given <TT>buffer</TT> full from the given segment
+	 * <TT>position</TT>.
+	 */
+	private void readFully
+		(ByteBuffer buffer,
+		 long position)
+		throws IOException
+		{
+		while (buffer.hasRemaining())
+			{
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new IOException("MessageLog.replay(): Unexpected end of log");
+			position += n;
+			}
+		buffer.flip();
+		}
+
+	/**
+	 * Open the segment with the given number <TT>n</TT>, creating it if needed.
+	 */
+	private FileChannel open
+		(long n)
+		throws IOException
+		{
+		return FileChannel.open(segmentFile(n).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+	/**
+	 * Returns the file of the segment with the given number <TT>n</TT>.
+	 */
+	private File segmentFile
+		(long n)
+		{
+		return new File(dir, name + "." + n + ".log");
+		}
+
+	/**
+	 * Returns the numbers of the existing segments in ascending order.
+	 */
+	private ArrayList<Long> segments()
+		{
+		ArrayList<Long> segments = new ArrayList<Long>();
+		String prefix = name + ".";
+		String[] files = dir.list();
+		if (files == null)
+			return segments;
+		for (String file : files)
+			{
+			if (file.length() > prefix.length() + 4 &&
+					file.startsWith(prefix) && file.endsWith(".log"))
+				{
+				try
+					{
+					segments.add(Long.parseLong
+						(file.substring(prefix.length(), file.length() - 4)));
+					}
+				catch (NumberFormatException nfe)
+					{
+					}
+				}
+			}
+		Collections.sort(segments);
+		return segments;
+		}
+	}
@@ -0,0 +1,112 @@
+import java.io.Serializable;
+
+/**
+ * Class MessagePage encapsulates a run of messages from one microblog in the
+ * P2Patter system. The page holds the microblog owner name once, followed by
+ * the serial number, date/time, and text of each message in ascending order of
+ * serial number. A page that is one of a series of pages going back through a
+ * microblog's history also holds the cursor of the next, older page. Class
+ * MessagePage is serializable so it can be returned from remote method calls
+ * in a single round trip.
+ */
+public class MessagePage
+	implements Serializable
+	{
+	/**
+	 * Pinned, since pages are returned over RMI to peers that may have been
+	 * compiled separately.
+	 */
+	private static final long serialVersionUID = -5097722445242116807L;
+
+	/**
+	 * This microblog's owner name.
+	 */
+	public final String name;
+
+	/**
+	 * The messages' serial numbers.
+	 */
+	public final int[] num;
+
+	/**
+	 * The messages' date/time (epoch milliseconds).
+	 */
+	public final long[] time;
+
+	/**
+	 * The messages' text.
+	 */
+	public final String[] text;
+
+	/**
+	 * The serial number to ask for messages before to get the next, older
+	 * page (0 if there are no older messages).
+	 */
+	public final int next;
+
+	/**
+	 * Create a new message page with no next page. The three arrays must have
+	 * the same length and be in ascending order of serial number.
+	 *
+	 * @param	name	Microblog owner name.
+	 * @param	num	Serial numbers.
+	 * @param	time	Message dates/time (epoch milliseconds).
+	 * @param	text	Message texts.
+	 */
+	public MessagePage
+		(String name,
+		 int[] num,
+		 long[] time,
+		 String[] text)
+		{
+		this(name, num, time, text, 0);
+		}
+
+	/**
+	 * Create a new message page. The three arrays must have the same length
+	 * and be in ascending order of serial number.
+	 *
+	 * @param	name	Microblog owner name.
+	 * @param	num	Serial numbers.
+	 * @param	time	Message dates/time (epoch milliseconds).
+	 * @param	text	Message texts.
+	 * @param	next	Cursor of the next, older page (0 if none).
+	 */
+	public MessagePage
+		(String name,
+		 int[] num,
+		 long[] time,
+		 String[] text,
+		 int next)
+		{
+		this.name = name;
+		this.num = num;
+		this.time = time;
+		this.text = text;
+		this.next = next;
+		}
+
+	/**
+	 * Returns the number of messages in this page.
+	 *
+	 * @return	int  Number of messages.
+	 */
+	public int size()
+		{
+		return num.length;
+		}
+
+	/**
+	 * Returns the complete content of the message at the given <TT>index</TT>
+	 * of this page.
+	 *
+	 * @param	index  Index (0 = oldest message of the page).
+	 *
+	 * @return	String  Complete message content.
+	 */
+	public String getCont
+		(int index)
+		{
+		return Message.render(name, num[index], time[index], text[index]);
+		}
+	}
@@ -0,0 +1,359 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Class MessageSnapshot provides the snapshot file of a microblog's message
+ * list in the P2Patter system. A snapshot holds only the live messages, so the
+ * removed messages are dropped whenever a snapshot is taken, and it records the
+ * message log segment from which replay must carry on.
+ * <P>
+ * The snapshot is a compact binary file: a header with the magic number, the
+ * format version, the highest serial number ever used, the log segment number,
+ * the message count, and a CRC-32 of the body; then for each message its serial
+ * number, date/time, text length, and UTF-8 text. A snapshot is copied from the
+ * message list a chunk at a time and written through a buffer to a temporary
+ * file, forced to disk, and renamed into place, and the directory is then
+ * forced too, so a crash never leaves a partial snapshot behind. A snapshot is
+ * loaded through memory mappings of up to 1 GB of the file each, so a snapshot
+ * may be larger than one mapping can be.
+ */
+public class MessageSnapshot
+	{
+	private static final int MAGIC = 0x50325053;
+	private static final int VERSION = 1;
+	private static final int HEADER = 28;
+
+	/**
+	 * Size of the buffer a snapshot is written through (bytes).
+	 */
+	private static final int BUFFER = 1 << 20;
+
+	private File file;
+
+	/**
+	 * Greatest size of one mapping of the file (bytes).
+	 */
+	private int window;
+
+	/**
+	 * Highest serial number ever used, as of the last load.
+	 */
+	private int last;
+
+	/**
+	 * First log segment to replay, as of the last load.
+	 */
+	private long segment;
+
+	/**
+	 * Construct a new message snapshot in the given <TT>file</TT>.
+	 *
+	 * @param	file  Snapshot file.
+	 */
+	public MessageSnapshot
+		(File file)
+		{
+		this(file, 1 << 30);
+		}
+
+	/**
+	 * Construct a new message snapshot in the given <TT>file</TT>, loaded
+	 * through mappings of at most <TT>window</TT> bytes each.
+	 *
+	 * @param	file	Snapshot file.
+	 * @param	window	Greatest size of one mapping (bytes).
+	 */
+	MessageSnapshot
+		(File file,
+		 int window)
+		{
+		this.file = file;
+		this.window = Math.max(window, HEADER);
+		}
+
+	/**
+	 * Load this snapshot into the given message <TT>list</TT>. If there is no
+	 * snapshot file, the message list is left empty.
+	 *
+	 * @param	list  Message list.
+	 *
+	 * @return	boolean  True if a snapshot was loaded, false if there is none.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred or the snapshot is corrupt.
+	 */
+	public boolean load
+		(MessageList list)
+		throws IOException
+		{
+		last = 0;
+		segment = 0;
+		if (! file.exists())
+			return false;
+
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+			{
+			long size = channel.size();
+			if (size < HEADER)
+				throw new IOException("MessageSnapshot.load(): Not a snapshot: " + file);
+			Mapping map = new Mapping(channel, size);
+			map.need(HEADER);
+			if (map.getInt() != MAGIC)
+				throw new IOException("MessageSnapshot.load(): Not a snapshot: " + file);
+			if (map.getInt() != VERSION)
+				throw new IOException("MessageSnapshot.load(): Unknown version: " + file);
+			int last = map.getInt();
+			long segment = map.getLong();
+			int count = map.getInt();
+			int check = map.getInt();
+
+			// Check the whole body before adding any message.
+			CRC32 crc = new CRC32();
+			for (long position = HEADER; position < size; position += window)
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.min(window, size - position)));
+			if ((int) crc.getValue() != check)
+				throw new IOException("MessageSnapshot.load(): Corrupt snapshot: " + file);
+
+			byte[] bytes = new byte[256];
+			for (int i = 0; i < count; ++ i)
+				{
+				map.need(16);
+				int num = map.getInt();
+				long time = map.getLong();
+				int length = map.getInt();
+				if (length < 0)
+					throw new IOException("MessageSnapshot.load(): Corrupt snapshot: " + file);
+				if (bytes.length < length)
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				map.get(bytes, length);
+				list.add(num, new Message(num, time,
+					new String(bytes, 0, length, StandardCharsets.UTF_8)));
+				}
+
+			this.last = last;
+			this.segment = segment;
+			return true;
+			}
+		finally
+			{
+			channel.close();
+			}
+		}
+
+	/**
+	 * Returns the highest serial number ever used, as of the last load.
+	 *
+	 * @return	int  Serial number (0 if none).
+	 */
+	public int getLast()
+		{
+		return last;
+		}
+
+	/**
+	 * Returns the first log segment to replay after the last load.
+	 *
+	 * @return	long  Segment number.
+	 */
+	public long getSegment()
+		{
+		return segment;
+		}
+
+	/**
+	 * Write a new snapshot holding the live messages of the given
+	 * <TT>list</TT>, replacing the previous snapshot. The messages are copied
+	 * from the list one chunk at a time as they are written, so the snapshot
+	 * never needs them all in memory at once; messages changed meanwhile may
+	 * or may not be in the snapshot.
+	 *
+	 * @param	list	 Message list.
+	 * @param	last	 Highest serial number ever used.
+	 * @param	segment  First log segment not covered by the snapshot.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public void write
+		(MessageList list,
+		 int last,
+		 long segment)
+		throws IOException
+		{
+		File temp = new File(file.getPath() + ".tmp");
+		FileChannel channel = FileChannel.open(temp.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.WRITE);
+		try
+			{
+			// Write the body after room for the header, taking its CRC on the
+			// way, then fill in the header.
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER);
+			CRC32 crc = new CRC32();
+			channel.position(HEADER);
+			int count = 0;
+			int after = 0;
+			do
+				{
+				MessagePage page = list.queryChunk(after);
+				for (int i = 0; i < page.size(); ++ i)
+					{
+					byte[] text = page.text[i].getBytes(StandardCharsets.UTF_8);
+					if (buffer.remaining() < 16 + text.length)
+						flush(channel, buffer, crc);
+					buffer.putInt(page.num[i]);
+					buffer.putLong(page.time[i]);
+					buffer.putInt(text.length);
+					if (buffer.remaining() < text.length)
+						{
+						flush(channel, buffer, crc);
+						crc.update(text);
+						writeFully(channel, ByteBuffer.wrap(text), channel.position());
+						channel.position(channel.position() + text.length);
+						}
+					else
+						buffer.put(text);
+					}
+				count += page.size();
+				after = page.next;
+				}
+			while (after != 0);
+			flush(channel, buffer, crc);
+
+			buffer.clear();
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(last);
+			buffer.putLong(segment);
+			buffer.putInt(count);
+			buffer.putInt((int) crc.getValue());
+			buffer.flip();
+			writeFully(channel, buffer, 0);
+			channel.force(true);
+			}
+		finally
+			{
+			channel.close();
+			}
+
+		Files.move(temp.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			MessageLog.syncDirectory(dir);
+		}
+
+	/**
+	 * Write out the contents of the given <TT>buffer</TT> at the channel's
+	 * position, adding them to the given <TT>crc</TT>, and clear the buffer.
+	 */
+	private static void flush
+		(FileChannel channel,
+		 ByteBuffer buffer,
+		 CRC32 crc)
+		throws IOException
+		{
+		buffer.flip();
+		crc.update(buffer.array(), 0, buffer.limit());
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+		}
+
+	/**
+	 * Write out the given <TT>buffer</TT> at the given file
+	 * <TT>position</TT>.
+	 */
+	private static void writeFully
+		(FileChannel channel,
+		 ByteBuffer buffer,
+		 long position)
+		throws IOException
+		{
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+		}
+
+	/**
+	 * Sequential reader of the snapshot file through a sliding memory mapping.
+	 * The mapping is moved forward whenever the next field does not fit in
+	 * what is left of it.
+	 */
+	private class Mapping
+		{
+		private final FileChannel channel;
+		private final long size;
+		private MappedByteBuffer map;
+
+		/**
+		 * File position of the start of the mapping.
+		 */
+		private long base;
+
+		public Mapping
+			(FileChannel channel,
+			 long size)
+			{
+			this.channel = channel;
+			this.size = size;
+			}
+
+		/**
+		 * Make sure the next <TT>n</TT> bytes, at most a window's worth, are
+		 * mapped.
+		 */
+		public void need
+			(int n)
+			throws IOException
+			{
+			if (map != null && map.remaining() >= n)
+				return;
+			long position = map == null ? 0 : base + map.position();
+			if (size - position < n)
+				throw new IOException
+					("MessageSnapshot.load(): Corrupt snapshot: " + file);
+			base = position;
+			map = channel.map(FileChannel.MapMode.READ_ONLY, base,
+				Math.min(window, size - base));
+			}
+
+		public int getInt()
+			{
+			return map.getInt();
+			}
+
+		public long getLong()
+			{
+			return map.getLong();
+			}
+
+		/**
+		 * Read the next <TT>length</TT> bytes into <TT>bytes</TT>, moving the
+		 * mapping forward as often as needed.
+		 */
+		public void get
+			(byte[] bytes,
+			 int length)
+			throws IOException
+			{
+			int offset = 0;
+			while (offset < length)
+				{
+				need(1);
+				int n = Math.min(length - offset, map.remaining());
+				map.get(bytes, offset, n);
+				offset += n;
+				}
+			}
+		}
+	}
@@ -3,13 +3,19 @@ import edu.rit.ds.RemoteEventGenerator;
 import edu.rit.ds.RemoteEventListener;
 import edu.rit.ds.registry.AlreadyBoundException;
 import edu.rit.ds.registry.RegistryProxy;
+import java.io.File;
 import java.io.IOException;
 import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class Microblog provides a Java RMI distributed microblog object in the P2Patter system.
@@ -18,10 +24,65 @@ import java.util.Date;
  * <BR><I>host</I> = The name of the host computer where the Registry Server is running
  * <BR><I>port</I> = The port number to which the Registry Server is listening
  * <BR><I>name</I> = The microblog owner's name
+ * <P>
+ * If the <TT>p2patter.microblog.dir</TT> system property names a directory, the
+ * microblog keeps a write-ahead log of its messages in the segment files
+ * <I>name</I><TT>.</TT><I>n</I><TT>.log</TT> in that directory, and rebuilds its
+ * messages from the snapshot file <I>name</I><TT>.snapshot</TT> plus the log when
+ * it starts. The group commit window of the log in milliseconds is given by the
+ * <TT>p2patter.microblog.syncwindow</TT> system property (default 2). A new
+ * snapshot is taken in the background, and the log segments it covers are
+ * deleted, every <TT>p2patter.microblog.snapshotinterval</TT> milliseconds
+ * (default 60000).
+ * <P>
+ * Events are delivered to the listeners by an EventDispatcher with
+ * <TT>p2patter.microblog.fanoutthreads</TT> worker threads (default 8) and a
+ * queue of <TT>p2patter.microblog.fanoutqueue</TT> events per listener (default
+ * 1024). A listener is dropped after <TT>p2patter.microblog.fanoutdrops</TT>
+ * events in a row were discarded because its queue was full (default 256).
+ * Listeners added with <TT>addBatchListener()</TT> get batches of up to
+ * <TT>p2patter.microblog.batchsize</TT> messages (default 64, at most
+ * <TT>WireForm.MAX_COUNT</TT>), each waiting up
+ * to <TT>p2patter.microblog.batchlinger</TT> milliseconds (default 5) for more
+ * messages. While more than <TT>p2patter.microblog.seqonlyabove</TT> listeners
+ * (default 1000) are added, events carry only the serial numbers of the new
+ * messages, and the listeners get the messages with <TT>getMessages()</TT>.
+ * <P>
+ * The microblog records the latency of every remote operation and publishes
+ * it, along with its message, tombstone, and listener counts, as the JMX MXBean
+ * <TT>p2patter:type=Microblog,name=</TT><I>name</I>. If the
+ * <TT>p2patter.microblog.metricsinterval</TT> system property is set, the
+ * metrics are also printed to the standard error every that many milliseconds.
+ * <P>
+ * If the <TT>p2patter.microblog.search</TT> system property is true, the
+ * microblog keeps a full-text SearchIndex of its messages, which
+ * <TT>search()</TT> uses. The index is built from the message list when the
+ * microblog starts, and kept up to date as messages are added and removed.
+ * Search is off by default, since the index costs memory and time on every
+ * post that a microblog nobody searches should not pay.
+ * <P>
+ * Any number of clients may add and remove messages at once. Serial numbers
+ * are handed out atomically and the message list is lock-free, so posters
+ * contend only briefly on the message log, and not at all if there is no log.
  */
 public class Microblog 
 	implements MicroblogRef
 	{
+	/**
+	 * Lease interval time of a listener (milliseconds).
+	 */
+	private static final long LEASE = 5000;
+
+	/**
+	 * Greatest number of messages returned in one page of history.
+	 */
+	private static final int MAX_PAGE = 1000;
+
+	/**
+	 * Greatest number of messages added in one call of <TT>addMessages()</TT>.
+	 */
+	public static final int MAX_BATCH = 1000;
+
 	private String host;
 	private int port;
 	private String name;
@@ -29,9 +90,15 @@ public class Microblog
 	private RegistryProxy registry;
 	private MessageFactory factory;
 	private MessageList list;
+	private SearchIndex index;
+	private MessageClock clock;
+	private MessageLog log;
+	private MessageSnapshot snapshot;
+	private AtomicBoolean dirty = new AtomicBoolean();
+	private ScheduledExecutorService snapshotter;
 	private RemoteEventGenerator<MicroblogEvent> eventGenerator;
-
-	private AddMessage message;
+	private EventDispatcher dispatcher;
+	private MicroblogMetrics metrics;
 
 	/**
 	 * Construct a new microblog object.
@@ -66,14 +133,7 @@ public class Microblog
 		port = parseInt(args[1], "port");
 		name = args[2];
 		
-		// Generate a message list for the microblog.
-		list = new MessageList(name);
-		
-		// Prepare to add/remove the message.
-		factory = new MessageFactory(name);
-		
-		// Prepare to generate remote events.
-		eventGenerator = new RemoteEventGenerator<MicroblogEvent>();
+		open();
 		
 		// Get a proxy for the Registry Server. 
 		try
@@ -121,6 +181,144 @@ public class Microblog
 			}
 		}
 
+	/**
+	 * Construct a new microblog object with the given owner <TT>name</TT> that
+	 * is neither exported nor bound into a Registry Server. Such a microblog is
+	 * called directly by code in the same JVM, such as the LoadHarness.
+	 *
+	 * @param	name  Microblog owner name.
+	 *
+	 * @exception  	IOException
+	 *      	Thrown if an I/O error occurred.
+	 */
+	Microblog
+		(String name)
+		throws IOException
+		{
+		this.name = name;
+		open();
+		}
+
+	/**
+	 * Set up the message list, the message log, and the event dispatcher of
+	 * this microblog.
+	 *
+	 * @exception  	IOException
+	 *      	Thrown if an I/O error occurred.
+	 */
+	private void open()
+		throws IOException
+		{
+		// Generate a message list for the microblog.
+		list = new MessageList(name);
+		
+		// Rebuild the message list from the snapshot and the message log, if any.
+		int last = 0;
+		String dir = System.getProperty("p2patter.microblog.dir");
+		if (dir != null)
+			{
+			snapshot = new MessageSnapshot(new File(dir, name + ".snapshot"));
+			snapshot.load(list);
+			log = new MessageLog(new File(dir), name,
+				Long.getLong("p2patter.microblog.syncwindow", 2));
+			last = Math.max(snapshot.getLast(), log.replay(list, snapshot.getSegment()));
+			}
+		
+		// Index the messages for full-text search.
+		if (Boolean.getBoolean("p2patter.microblog.search"))
+			{
+			index = new SearchIndex(list);
+			index.addAll();
+			}
+		
+		// Prepare to add/remove the message.
+		factory = new MessageFactory(name, last);
+		clock = new MessageClock();
+		
+		// Prepare to generate remote events, and to fan them out to the
+		// listeners without making the posters wait.
+		eventGenerator = new RemoteEventGenerator<MicroblogEvent>();
+		dispatcher = new EventDispatcher
+			(Integer.getInteger("p2patter.microblog.fanoutthreads", 8),
+			 Integer.getInteger("p2patter.microblog.fanoutqueue", 1024),
+			 Integer.getInteger("p2patter.microblog.fanoutdrops", 256),
+			 2 * LEASE,
+			 Long.getLong("p2patter.microblog.batchlinger", 5),
+			 Math.min(Integer.getInteger("p2patter.microblog.batchsize", 64),
+				WireForm.MAX_COUNT),
+			 Integer.getInteger("p2patter.microblog.seqonlyabove", 1000));
+		
+		// Record and publish the metrics.
+		metrics = new MicroblogMetrics(name, list, dispatcher, index);
+		metrics.register();
+		long metricsInterval = Long.getLong("p2patter.microblog.metricsinterval", 0);
+		if (metricsInterval > 0)
+			metrics.startDump(metricsInterval);
+		
+		// Take snapshots of the message list in the background.
+		if (log != null)
+			{
+			long interval = Long.getLong("p2patter.microblog.snapshotinterval", 60000);
+			snapshotter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+				{
+				public Thread newThread(Runnable r)
+					{
+					Thread thread = new Thread(r, "Microblog snapshot");
+					thread.setDaemon(true);
+					return thread;
+					}
+				});
+			snapshotter.scheduleWithFixedDelay(new Runnable()
+				{
+				public void run()
+					{
+					// Any exception would cancel the schedule, so catch them all
+					// and try again next time.
+					try
+						{
+						takeSnapshot();
+						}
+					catch (Exception e)
+						{
+						dirty.set(true);
+						System.err.println
+							("\nMicroblog(): Cannot take a snapshot of \"" + name + "\": " + e);
+						}
+					}
+				}, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+
+	/**
+	 * Shut down this microblog: stop taking snapshots, close the message log,
+	 * stop the event dispatcher, and unregister the metrics. This is for a
+	 * microblog made with the <TT>Microblog(String)</TT> constructor, such as
+	 * in a test, which is done with it before the JVM exits.
+	 *
+	 * @exception  	IOException
+	 *      	Thrown if an I/O error occurred.
+	 */
+	void close()
+		throws IOException
+		{
+		if (snapshotter != null)
+			{
+			snapshotter.shutdown();
+			try
+				{
+				snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+				}
+			catch (InterruptedException ie)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		if (log != null)
+			log.close();
+		dispatcher.shutdown();
+		metrics.unregister();
+		}
+
 	/**
 	 * Add the message with the given message text. This method is called by the
 	 * AddMessage client program to add the given message to specify microblog.
@@ -140,25 +338,95 @@ public class Microblog
 		(String text) 
 		throws RemoteException 
 		{
-		// Generate the date/time with specify format.
-		SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-		Calendar cal = Calendar.getInstance();
-		cal.set(Calendar.MILLISECOND, 0);
-		Date toDay = cal.getTime();
-		String date = format.format(toDay);
+		long start = System.nanoTime();
 		
-		// Create a new message
-		message = factory.createMessage(text, date);
+		// Create a new message, stamped with the date/time in the same step
+		// as its serial number, add it to the message list, and append it to
+		// the message log.
+		AddMessage message = factory.createMessage(text, clock);
 		int num = message.num;
-		String cont = "--------------------------------------------------------------------------------\n" +
-			       name + " -- Message " + num + " -- " + date + "\n" + 
-			       text;
-		Message mess = new Message(name, num, toDay, cont);
-		list.add(num, mess);
+		String date = message.date;
+		long time = clock.parse(date);
+		String cont = Message.render(name, num, date, text);
+		long position = addToList(num, time, text);
+		if (index != null)
+			index.add(num, text);
+		
+		// Wait for the message to be durable.
+		if (log != null)
+			syncLog(position);
 		
-		// Report a MicroblogEvent to any remote event listeners.
+		// Report a MicroblogEvent to any remote event listeners. This only
+		// queues the event for each listener.
 		eventGenerator.reportEvent(new MicroblogEvent(name, message));
 		
+		metrics.addMessage.record(System.nanoTime() - start);
+		return cont;
+		}
+	
+	/**
+	 * Add messages with the given message texts in bulk. The messages get a
+	 * contiguous range of serial numbers and the same date/time, are made
+	 * durable with one message log sync, and are reported to the listeners in
+	 * one fan-out pass. At most 1000 messages may be added in one call.
+	 *
+	 * @param	texts  Message texts.
+	 *
+	 * @return	String[]  The complete message contents, in the same order as
+	 *		the texts.
+	 *
+	 * @exception  	IllegalArgumentException
+	 *		(unchecked exception) Thrown if <TT>texts</TT> is null, holds a
+	 *		null text, or holds more than 1000 texts.
+	 * @exception  	RemoteException
+	 *     	       	Thrown if a remote error occurred.
+	 */
+	public String[] addMessages
+		(List<String> texts)
+		throws RemoteException
+		{
+		long start = System.nanoTime();
+		if (texts == null)
+			throw new IllegalArgumentException
+				("\nMicroblog(): No message texts");
+		if (texts.size() > MAX_BATCH)
+			throw new IllegalArgumentException
+				("\nMicroblog(): More than " + MAX_BATCH + " messages in one call");
+		for (String text : texts)
+			if (text == null)
+				throw new IllegalArgumentException
+					("\nMicroblog(): Null message text");
+		if (texts.isEmpty())
+			return new String[0];
+		
+		// Create the new messages, stamped with the date/time in the same step
+		// as their serial numbers, add them to the message list, and append
+		// them to the message log.
+		AddMessage[] messages = factory.createMessages(texts, clock);
+		String date = messages[0].date;
+		long time = clock.parse(date);
+		String[] cont = new String[messages.length];
+		long position = 0;
+		for (int i = 0; i < messages.length; ++ i)
+			{
+			int num = messages[i].num;
+			String text = messages[i].text;
+			cont[i] = Message.render(name, num, date, text);
+			position = addToList(num, time, text);
+			if (index != null)
+				index.add(num, text);
+			}
+		
+		// Wait for the messages to be durable.
+		if (log != null)
+			syncLog(position);
+		
+		// Report all the messages to any remote event listeners at once. The
+		// dispatcher splits the batch up again for listeners that do not
+		// want batches.
+		eventGenerator.reportEvent(new MicroblogBatchEvent(name, messages));
+		
+		metrics.addMessages.record(System.nanoTime() - start);
 		return cont;
 		}
 	
@@ -182,11 +450,28 @@ public class Microblog
 		(int num) 
 		throws RemoteException 
 		{
-		// Delete the message
+		long start = System.nanoTime();
+		
+		// Delete the message. Only the one caller whose removal takes effect
+		// appends it to the message log.
 		factory.deleteMessage(num);
-		String cont = list.query(num).getCont();
-		list.remove(num);
-
+		Message mess = list.remove(num);
+		if (mess == null)
+			{
+			metrics.removeMessage.record(System.nanoTime() - start);
+			return null;
+			}
+		String cont = mess.getCont(name);
+		if (index != null)
+			index.remove(num, mess.getText());
+		long position = 0;
+		if (log != null)
+			position = appendRemove(num);
+		
+		// Wait for the removal to be durable.
+		if (log != null)
+			syncLog(position);
+		metrics.removeMessage.record(System.nanoTime() - start);
 		return cont;
 		}
 
@@ -205,9 +490,57 @@ public class Microblog
 		throws RemoteException 
 		{
 		// Return the lease and set the lease interval time to 5 seconds.
-		return eventGenerator.addListener(listener, 5000);
+		// The generator reports to a local subscriber, which queues the
+		// events for delivery to the listener.
+		long start = System.nanoTime();
+		Lease lease = eventGenerator.addListener(dispatcher.subscribe(listener, false), LEASE);
+		metrics.addListener.record(System.nanoTime() - start);
+		return lease;
+		}
+
+	/**
+	 * Add the given remote event listener to this microblog, reporting events
+	 * in batches. Whenever messages are added to this microblog, this microblog
+	 * will report them to the given listener in MicroblogBatchEvents of one or
+	 * more messages each.
+	 *
+	 * @param  	listener  Remote event listener.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public Lease addBatchListener
+		(RemoteEventListener<MicroblogEvent> listener)
+		throws RemoteException 
+		{
+		// Return the lease and set the lease interval time to 5 seconds.
+		long start = System.nanoTime();
+		Lease lease = eventGenerator.addListener(dispatcher.subscribe(listener, true), LEASE);
+		metrics.addListener.record(System.nanoTime() - start);
+		return lease;
 		}
 	
+	/**
+	 * Returns the metrics of this microblog.
+	 *
+	 * @return	MicroblogMetrics  Metrics.
+	 */
+	public MicroblogMetrics getMetrics()
+		{
+		return metrics;
+		}
+
+	/**
+	 * Returns the event dispatcher of this microblog, which reports the
+	 * listeners' queue depths and drop counts.
+	 *
+	 * @return	EventDispatcher  Event dispatcher.
+	 */
+	public EventDispatcher getDispatcher()
+		{
+		return dispatcher;
+		}
+
 	/**
 	 * Get the date/time of 2 most recently messages from this microblog's message 
 	 * list.
@@ -220,7 +553,10 @@ public class Microblog
 	public Date[] getRecentTime()
 		throws RemoteException
 		{		
-		return list.queryRecentTime();
+		long start = System.nanoTime();
+		Date[] result = list.queryRecentTime();
+		metrics.getRecentTime.record(System.nanoTime() - start);
+		return result;
 		}
 
 	/**
@@ -235,7 +571,10 @@ public class Microblog
 	public int[] getRecentNum()
 		throws RemoteException
 		{		
-		return list.queryRecentNum();
+		long start = System.nanoTime();
+		int[] result = list.queryRecentNum();
+		metrics.getRecentNum.record(System.nanoTime() - start);
+		return result;
 		}
 
 	/**
@@ -250,7 +589,10 @@ public class Microblog
 	public String getRecentName()
 		throws RemoteException
 		{		
-		return list.queryRecentName();
+		long start = System.nanoTime();
+		String result = list.queryRecentName();
+		metrics.getRecentName.record(System.nanoTime() - start);
+		return result;
 		}
 
 	/**
@@ -265,7 +607,250 @@ public class Microblog
 	public String[] getRecentCont()
 		throws RemoteException
 		{		
-		return list.queryRecentCont();
+		long start = System.nanoTime();
+		String[] result = list.queryRecentCont();
+		metrics.getRecentCont.record(System.nanoTime() - start);
+		return result;
+		}
+
+	/**
+	 * Get the owner name, serial numbers, date/time, and complete message content
+	 * of the <TT>count</TT> most recently messages from this microblog's message
+	 * list, all in a single page. At most 1000 messages are returned. The
+	 * message list is not locked while the page is made, so a message added or
+	 * removed meanwhile may or may not be in it.
+	 *
+	 * @param	count  Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getRecentMessages
+		(int count)
+		throws RemoteException
+		{
+		long start = System.nanoTime();
+		MessagePage page = list.queryRecent(Math.min(count, MAX_PAGE));
+		metrics.getRecentMessages.record(System.nanoTime() - start);
+		return page;
+		}
+
+	/**
+	 * Get a page of up to <TT>count</TT> messages with serial numbers less than
+	 * <TT>before</TT> from this microblog's message list, going back from the
+	 * newest such message and skipping removed messages. At most 1000 messages
+	 * are returned per page.
+	 *
+	 * @param	before	Upper bound (exclusive) of the serial numbers, or 0 for
+	 *			the newest messages.
+	 * @param	count	Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getMessagesBefore
+		(int before,
+		 int count)
+		throws RemoteException
+		{
+		long start = System.nanoTime();
+		MessagePage page = list.queryBefore(before, Math.min(count, MAX_PAGE));
+		metrics.getMessagesBefore.record(System.nanoTime() - start);
+		return page;
+		}
+
+	/**
+	 * Get a page of up to <TT>count</TT> messages with serial numbers greater
+	 * than <TT>after</TT> from this microblog's message list, going forward
+	 * from the oldest such message and skipping removed messages. At most 1000
+	 * messages are returned per page.
+	 *
+	 * @param	after	Lower bound (exclusive) of the serial numbers.
+	 * @param	count	Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getMessagesAfter
+		(int after,
+		 int count)
+		throws RemoteException
+		{
+		long start = System.nanoTime();
+		MessagePage page = list.queryAfter(after, Math.min(count, MAX_PAGE));
+		metrics.getMessagesAfter.record(System.nanoTime() - start);
+		return page;
+		}
+
+	/**
+	 * Get the messages with the given serial numbers from this microblog's
+	 * message list, such as the ones reported by sequence-only events. Removed
+	 * messages are left out. At most 1000 serial numbers are looked up.
+	 *
+	 * @param	nums  Serial numbers.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getMessages
+		(int[] nums)
+		throws RemoteException
+		{
+		long start = System.nanoTime();
+		MessagePage page = list.queryNums
+			(nums.length > MAX_PAGE ? Arrays.copyOf(nums, MAX_PAGE) : nums);
+		metrics.getMessages.record(System.nanoTime() - start);
+		return page;
+		}
+
+	/**
+	 * Search this microblog's messages for the given query. A message matches
+	 * if it contains every word of the query, ignoring case; a word is a run of
+	 * letters and digits. The newest matching messages are returned, at most
+	 * <TT>limit</TT> of them and at most 1000.
+	 *
+	 * @param	query  Query text.
+	 * @param	limit  Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred, or search is not
+	 *		enabled on this microblog.
+	 */
+	public MessagePage search
+		(String query,
+		 int limit)
+		throws RemoteException
+		{
+		long start = System.nanoTime();
+		if (index == null)
+			throw new RemoteException
+				("\nMicroblog(): Search is not enabled for \"" + name + "\"");
+		MessagePage page = index.search(query, Math.min(limit, MAX_PAGE));
+		metrics.search.record(System.nanoTime() - start);
+		return page;
+		}
+
+	/**
+	 * Add a message to the message list and, if there is a message log, append
+	 * a record of it to the log in the same step. A snapshot therefore never
+	 * misses a message whose record it lets be deleted, and a removal is never
+	 * logged ahead of the addition it undoes.
+	 *
+	 * @param	num	Serial number.
+	 * @param	time	Message date/time (epoch milliseconds).
+	 * @param	text	Message text.
+	 *
+	 * @return	long  Log position just past the record (0 if no log).
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if the message log could not be written.
+	 */
+	private long addToList
+		(int num,
+		 long time,
+		 String text)
+		throws RemoteException
+		{
+		if (log == null)
+			{
+			list.add(num, new Message(num, time, text));
+			return 0;
+			}
+		dirty.set(true);
+		try
+			{
+			return log.appendAdd(list, num, time, text);
+			}
+		catch (IOException ioe)
+			{
+			throw new RemoteException
+				("\nMicroblog(): Cannot write the message log", ioe);
+			}
+		}
+
+	/**
+	 * Append a record of a removed message to the message log. Call this
+	 * method after the message has been removed from the message list.
+	 *
+	 * @param	num	Serial number.
+	 *
+	 * @return	long  Log position just past the record.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if the message log could not be written.
+	 */
+	private long appendRemove
+		(int num)
+		throws RemoteException
+		{
+		dirty.set(true);
+		try
+			{
+			return log.appendRemove(num);
+			}
+		catch (IOException ioe)
+			{
+			throw new RemoteException
+				("\nMicroblog(): Cannot write the message log", ioe);
+			}
+		}
+
+	/**
+	 * Take a snapshot of this microblog's message list, then delete the message
+	 * log segments it covers. Nothing is done if no message has been added or
+	 * removed since the last snapshot.
+	 *
+	 * @exception  	IOException
+	 *             	Thrown if an I/O error occurred.
+	 */
+	private void takeSnapshot()
+		throws IOException
+		{
+		if (! dirty.getAndSet(false))
+			return;
+		
+		// Roll the log, then copy the live messages. Every record in the old
+		// segments was changed in the message list no later than it was
+		// appended, so the copy covers them all; a change the copy also picks
+		// up from the new segments is replayed again harmlessly.
+		long segment = log.roll();
+		int last = factory.getNum();
+		
+		snapshot.write(list, last, segment);
+		log.deleteBefore(segment);
+		}
+
+	/**
+	 * Wait for the message log to be durable up to the given <TT>position</TT>.
+	 *
+	 * @param	position  Log position.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if the message log could not be synced.
+	 */
+	private void syncLog
+		(long position)
+		throws RemoteException
+		{
+		try
+			{
+			log.sync(position);
+			}
+		catch (IOException ioe)
+			{
+			throw new RemoteException
+				("\nMicroblog(): Cannot sync the message log", ioe);
+			}
 		}
 
 	/**
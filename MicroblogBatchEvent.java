@@ -0,0 +1,83 @@
+/**
+ * Class MicroblogBatchEvent encapsulates a batch of remote events generated by a
+ * microblog in the P2Patter system. A batch event reports several addMessage
+ * activities with one remote call, and is sent only to the listeners that asked
+ * for batches. The messages are in the order they were added; the
+ * <TT>message</TT> field holds the last of them.
+ * <P>
+ * A batch event of <I>n</I> messages is reported with the sequence number of
+ * its last message, so the listener's next sequence number after a batch
+ * numbered <I>s</I> is <I>s</I>+1, and the batch itself covers sequence numbers
+ * <I>s</I>-<I>n</I>+1 through <I>s</I>.
+ * <P>
+ * A sequence-only batch event carries just the serial numbers of the messages,
+ * and its <TT>messages</TT> is null.
+ */
+public class MicroblogBatchEvent
+	extends MicroblogEvent
+	{
+	/**
+	 * Pinned to the value this class had before the <TT>nums</TT> field was
+	 * added, so a peer running the earlier version can still read a batch.
+	 */
+	private static final long serialVersionUID = 789809507324415962L;
+
+	public final AddMessage[] messages;
+	public final int[] nums;
+
+	/**
+	 * Create a new microblog batch event.
+	 *
+	 * @param	name	  Microblog owner name.
+	 * @param	messages  AddMessage objects that were received (at least one).
+	 */
+	public MicroblogBatchEvent
+		(String name,
+		 AddMessage[] messages)
+		{
+		super(name, messages[messages.length - 1]);
+		this.messages = messages;
+		this.nums = new int[messages.length];
+		for (int i = 0; i < messages.length; ++ i)
+			this.nums[i] = messages[i].num;
+		}
+
+	/**
+	 * Create a new sequence-only microblog batch event.
+	 *
+	 * @param	name  Microblog owner name.
+	 * @param	nums  Serial numbers of the messages that were received (at
+	 *		      least one).
+	 */
+	public MicroblogBatchEvent
+		(String name,
+		 int[] nums)
+		{
+		super(name, nums[nums.length - 1]);
+		this.messages = null;
+		this.nums = nums;
+		}
+
+	/**
+	 * Fill in the serial numbers of a batch event sent in the default
+	 * serialized form by a peer whose batch events did not have them.
+	 *
+	 * @return	Object  This batch event, or a batch event with its serial
+	 *			numbers.
+	 */
+	private Object readResolve()
+		{
+		return nums == null && messages != null ?
+			new MicroblogBatchEvent(name, messages) : this;
+		}
+
+	/**
+	 * Replace this batch event with its compact wire form when it is serialized.
+	 *
+	 * @return	Object  Wire form, or this batch event if compact wire forms are off.
+	 */
+	private Object writeReplace()
+		{
+		return WireForm.COMPACT ? new WireForm(this) : this;
+		}
+	}
@@ -4,12 +4,32 @@ import edu.rit.ds.RemoteEvent;
  * Class MicroblogEvent encapsulates a remote event generated by a microblog 
  * in the P2Patter system. The microblog events are used to report addMessage 
  * activity to the follow programs.
+ * <P>
+ * A sequence-only event carries just the owner name and the serial number of
+ * the added message, and its <TT>message</TT> is null; the listener gets the
+ * message itself from the microblog with <TT>getMessages()</TT>. A microblog
+ * with many listeners reports sequence-only events, so it does not send every
+ * message text to every listener.
+ * <P>
+ * Microblog events are sent in their compact wire form (see class WireForm).
  */
 public class MicroblogEvent 
 	extends RemoteEvent
 	{
+	/**
+	 * Pinned to the value this class had before sequence-only events were
+	 * added, so peers that serialize it by default stay compatible.
+	 */
+	private static final long serialVersionUID = -6076007011261403521L;
+
 	public final String name;
 	public final AddMessage message;
+	public final int num;
+	
+	/**
+	 * The sequence-only form of this event, made when first asked for.
+	 */
+	private transient MicroblogEvent sequenceOnly;
 	
 	/**
 	 * Create a new microblog event.
@@ -23,5 +43,60 @@ public class MicroblogEvent
 		{
 		this.name = name;
 		this.message = message;
+		this.num = message.num;
+		}
+	
+	/**
+	 * Create a new sequence-only microblog event.
+	 *
+	 * @param	name  Microblog owner name.
+	 * @param	num   Serial number of the message that was received.
+	 */
+	public MicroblogEvent
+		(String name,
+		 int num)
+		{
+		this.name = name;
+		this.message = null;
+		this.num = num;
+		}
+	
+	/**
+	 * Returns the sequence-only form of this event. The same object is returned
+	 * every time, so an event reported to many listeners is slimmed only once.
+	 *
+	 * @return	MicroblogEvent  Sequence-only event.
+	 */
+	public MicroblogEvent sequenceOnly()
+		{
+		MicroblogEvent event = sequenceOnly;
+		if (event == null)
+			{
+			event = message == null ? this : new MicroblogEvent(name, num);
+			sequenceOnly = event;
+			}
+		return event;
+		}
+
+	/**
+	 * Fill in the serial number of an event sent in the default serialized
+	 * form by a peer whose events did not have one.
+	 *
+	 * @return	Object  This event, or an event with its serial number.
+	 */
+	private Object readResolve()
+		{
+		return message != null && num != message.num ?
+			new MicroblogEvent(name, message) : this;
+		}
+
+	/**
+	 * Replace this event with its compact wire form when it is serialized.
+	 *
+	 * @return	Object  Wire form, or this event if compact wire forms are off.
+	 */
+	private Object writeReplace()
+		{
+		return WireForm.COMPACT ? new WireForm(this) : this;
 		}
 	}
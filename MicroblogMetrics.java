@@ -0,0 +1,295 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class MicroblogMetrics records what a microblog in the P2Patter system is
+ * doing: a latency histogram for each remote operation, plus the message,
+ * tombstone, and listener counts, the off-heap memory size, the search index
+ * size, and the event delivery timings, which it reads from the microblog's
+ * message list, search index, and event dispatcher when asked.
+ * <P>
+ * The microblog times each operation with <TT>System.nanoTime()</TT> and
+ * records the latency in the operation's histogram, which costs two clock
+ * reads and a few uncontended atomic increments per call. The metrics are
+ * published as the JMX MXBean <TT>p2patter:type=Microblog,name=</TT><I>name</I>,
+ * and can also be printed to the standard error periodically.
+ */
+public class MicroblogMetrics
+	implements MicroblogMetricsMXBean
+	{
+	private static final double MICROS = 1000.0;
+
+	public final LatencyHistogram addMessage = new LatencyHistogram();
+	public final LatencyHistogram addMessages = new LatencyHistogram();
+	public final LatencyHistogram removeMessage = new LatencyHistogram();
+	public final LatencyHistogram addListener = new LatencyHistogram();
+	public final LatencyHistogram getRecentTime = new LatencyHistogram();
+	public final LatencyHistogram getRecentNum = new LatencyHistogram();
+	public final LatencyHistogram getRecentName = new LatencyHistogram();
+	public final LatencyHistogram getRecentCont = new LatencyHistogram();
+	public final LatencyHistogram getRecentMessages = new LatencyHistogram();
+	public final LatencyHistogram getMessagesBefore = new LatencyHistogram();
+	public final LatencyHistogram getMessagesAfter = new LatencyHistogram();
+	public final LatencyHistogram getMessages = new LatencyHistogram();
+	public final LatencyHistogram search = new LatencyHistogram();
+
+	private String name;
+	private MessageList list;
+	private EventDispatcher dispatcher;
+	private SearchIndex index;
+	private ScheduledExecutorService dumper;
+
+	/**
+	 * Construct a new metrics object for the microblog with the given owner
+	 * <TT>name</TT>, message <TT>list</TT>, event <TT>dispatcher</TT>, and
+	 * search <TT>index</TT>.
+	 *
+	 * @param	name	    Microblog owner name.
+	 * @param	list	    Message list.
+	 * @param	dispatcher  Event dispatcher.
+	 * @param	index	    Search index, or null if there is none.
+	 */
+	public MicroblogMetrics
+		(String name,
+		 MessageList list,
+		 EventDispatcher dispatcher,
+		 SearchIndex index)
+		{
+		this.name = name;
+		this.list = list;
+		this.dispatcher = dispatcher;
+		this.index = index;
+		}
+
+	/**
+	 * Register these metrics with the platform MBean server. A failure is
+	 * reported on the standard error but does not stop the microblog.
+	 */
+	public void register()
+		{
+		try
+			{
+			ManagementFactory.getPlatformMBeanServer().registerMBean
+				(this, new ObjectName
+					("p2patter:type=Microblog,name=" + ObjectName.quote(name)));
+			}
+		catch (JMException jme)
+			{
+			System.err.println
+				("\nMicroblogMetrics(): Cannot register metrics for \"" + name + "\": " + jme);
+			}
+		}
+
+	/**
+	 * Unregister these metrics from the platform MBean server, and stop
+	 * printing them.
+	 */
+	public void unregister()
+		{
+		if (dumper != null)
+			dumper.shutdown();
+		try
+			{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean
+				(new ObjectName
+					("p2patter:type=Microblog,name=" + ObjectName.quote(name)));
+			}
+		catch (JMException jme)
+			{
+			}
+		}
+
+	/**
+	 * Print these metrics to the standard error every <TT>interval</TT>
+	 * milliseconds, from a background thread.
+	 *
+	 * @param	interval  Interval (milliseconds).
+	 */
+	public void startDump
+		(long interval)
+		{
+		dumper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+			public Thread newThread(Runnable r)
+				{
+				Thread thread = new Thread(r, "Microblog metrics");
+				thread.setDaemon(true);
+				return thread;
+				}
+			});
+		dumper.scheduleWithFixedDelay(new Runnable()
+			{
+			public void run()
+				{
+				System.err.print(dump());
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+
+	/**
+	 * Returns these metrics as text, one <TT>key value</TT> line each, with
+	 * latencies in microseconds.
+	 *
+	 * @return	String  Metrics.
+	 */
+	public String dump()
+		{
+		StringBuilder b = new StringBuilder();
+		String p = "microblog." + name + ".";
+		b.append(p).append("messages ").append(getMessageCount()).append('\n');
+		b.append(p).append("tombstones ").append(getTombstoneCount()).append('\n');
+		b.append(p).append("offheap_bytes ").append(getOffHeapSize()).append('\n');
+		b.append(p).append("search_index_bytes ").append(getSearchIndexSize()).append('\n');
+		b.append(p).append("listeners ").append(getListenerCount()).append('\n');
+		b.append(p).append("queue_depth ").append(getQueueDepth()).append('\n');
+		b.append(p).append("max_queue_depth ").append(getMaxQueueDepth()).append('\n');
+		b.append(p).append("event_drops ").append(getEventDropCount()).append('\n');
+		b.append(p).append("dropped_listeners ").append(getDroppedListenerCount()).append('\n');
+		b.append(p).append("AddMessage_us ").append(getAddMessage()).append('\n');
+		b.append(p).append("addMessages_us ").append(getAddMessages()).append('\n');
+		b.append(p).append("RemoveMessage_us ").append(getRemoveMessage()).append('\n');
+		b.append(p).append("addListener_us ").append(getAddListener()).append('\n');
+		b.append(p).append("getRecentTime_us ").append(getGetRecentTime()).append('\n');
+		b.append(p).append("getRecentNum_us ").append(getGetRecentNum()).append('\n');
+		b.append(p).append("getRecentName_us ").append(getGetRecentName()).append('\n');
+		b.append(p).append("getRecentCont_us ").append(getGetRecentCont()).append('\n');
+		b.append(p).append("getRecentMessages_us ").append(getGetRecentMessages()).append('\n');
+		b.append(p).append("getMessagesBefore_us ").append(getGetMessagesBefore()).append('\n');
+		b.append(p).append("getMessagesAfter_us ").append(getGetMessagesAfter()).append('\n');
+		b.append(p).append("getMessages_us ").append(getGetMessages()).append('\n');
+		b.append(p).append("search_us ").append(getSearch()).append('\n');
+		b.append(p).append("event_queue_wait_us ").append(getEventQueueWait()).append('\n');
+		b.append(p).append("event_delivery_us ").append(getEventDelivery()).append('\n');
+		return b.toString();
+		}
+
+	public String getName()
+		{
+		return name;
+		}
+
+	public int getMessageCount()
+		{
+		return list.size();
+		}
+
+	public int getTombstoneCount()
+		{
+		return list.removedCount();
+		}
+
+	public long getOffHeapSize()
+		{
+		return list.offHeapSize();
+		}
+
+	public long getSearchIndexSize()
+		{
+		return index == null ? 0 : index.sizeInBytes();
+		}
+
+	public int getListenerCount()
+		{
+		return dispatcher.getListenerCount();
+		}
+
+	public int getQueueDepth()
+		{
+		return dispatcher.getQueueDepth();
+		}
+
+	public int getMaxQueueDepth()
+		{
+		return dispatcher.getMaxQueueDepth();
+		}
+
+	public long getEventDropCount()
+		{
+		return dispatcher.getDropCount();
+		}
+
+	public long getDroppedListenerCount()
+		{
+		return dispatcher.getDroppedListenerCount();
+		}
+
+	public LatencyHistogram.Snapshot getAddMessage()
+		{
+		return addMessage.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getAddMessages()
+		{
+		return addMessages.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getRemoveMessage()
+		{
+		return removeMessage.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getAddListener()
+		{
+		return addListener.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetRecentTime()
+		{
+		return getRecentTime.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetRecentNum()
+		{
+		return getRecentNum.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetRecentName()
+		{
+		return getRecentName.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetRecentCont()
+		{
+		return getRecentCont.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetRecentMessages()
+		{
+		return getRecentMessages.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetMessagesBefore()
+		{
+		return getMessagesBefore.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetMessagesAfter()
+		{
+		return getMessagesAfter.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getGetMessages()
+		{
+		return getMessages.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getSearch()
+		{
+		return search.snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getEventQueueWait()
+		{
+		return dispatcher.getQueueWait().snapshot(MICROS);
+		}
+
+	public LatencyHistogram.Snapshot getEventDelivery()
+		{
+		return dispatcher.getDeliveryTime().snapshot(MICROS);
+		}
+	}
@@ -0,0 +1,138 @@
+/**
+ * Interface MicroblogMetricsMXBean specifies the JMX management interface of
+ * the metrics of a microblog in the P2Patter system. Each operation's latency
+ * is published as a snapshot of its histogram, in microseconds; the count of a
+ * snapshot is the number of calls so far.
+ */
+public interface MicroblogMetricsMXBean
+	{
+	/**
+	 * Returns the microblog owner name.
+	 */
+	public String getName();
+
+	/**
+	 * Returns the number of live messages.
+	 */
+	public int getMessageCount();
+
+	/**
+	 * Returns the number of removed messages (tombstones) not yet compacted
+	 * away.
+	 */
+	public int getTombstoneCount();
+
+	/**
+	 * Returns the number of bytes of off-heap memory the message list takes up.
+	 */
+	public long getOffHeapSize();
+
+	/**
+	 * Returns the approximate number of bytes the search index takes up, or 0
+	 * if there is no search index.
+	 */
+	public long getSearchIndexSize();
+
+	/**
+	 * Returns the number of listeners being delivered to.
+	 */
+	public int getListenerCount();
+
+	/**
+	 * Returns the total number of events waiting in all listeners' queues.
+	 */
+	public int getQueueDepth();
+
+	/**
+	 * Returns the greatest number of events waiting in any one listener's
+	 * queue.
+	 */
+	public int getMaxQueueDepth();
+
+	/**
+	 * Returns the number of events discarded because a listener's queue was
+	 * full.
+	 */
+	public long getEventDropCount();
+
+	/**
+	 * Returns the number of listeners dropped for falling behind or failing.
+	 */
+	public long getDroppedListenerCount();
+
+	/**
+	 * Returns the latency of <TT>AddMessage()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getAddMessage();
+
+	/**
+	 * Returns the latency of <TT>addMessages()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getAddMessages();
+
+	/**
+	 * Returns the latency of <TT>RemoveMessage()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getRemoveMessage();
+
+	/**
+	 * Returns the latency of <TT>addListener()</TT> and
+	 * <TT>addBatchListener()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getAddListener();
+
+	/**
+	 * Returns the latency of <TT>getRecentTime()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetRecentTime();
+
+	/**
+	 * Returns the latency of <TT>getRecentNum()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetRecentNum();
+
+	/**
+	 * Returns the latency of <TT>getRecentName()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetRecentName();
+
+	/**
+	 * Returns the latency of <TT>getRecentCont()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetRecentCont();
+
+	/**
+	 * Returns the latency of <TT>getRecentMessages()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetRecentMessages();
+
+	/**
+	 * Returns the latency of <TT>getMessagesBefore()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetMessagesBefore();
+
+	/**
+	 * Returns the latency of <TT>getMessagesAfter()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetMessagesAfter();
+
+	/**
+	 * Returns the latency of <TT>getMessages()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getGetMessages();
+
+	/**
+	 * Returns the latency of <TT>search()</TT>.
+	 */
+	public LatencyHistogram.Snapshot getSearch();
+
+	/**
+	 * Returns the time events wait in a listener's queue before delivery.
+	 */
+	public LatencyHistogram.Snapshot getEventQueueWait();
+
+	/**
+	 * Returns the time each remote call to a listener takes.
+	 */
+	public LatencyHistogram.Snapshot getEventDelivery();
+	}
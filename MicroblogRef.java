@@ -3,6 +3,7 @@ import edu.rit.ds.RemoteEventListener;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.Date;
+import java.util.List;
 
 /**
  * Interface MicroblogRef specifies the Java RMI remote interface for a distributed
@@ -30,6 +31,27 @@ public interface MicroblogRef
 		(String text)
 		throws RemoteException;
 	
+	/**
+	 * Add messages with the given message texts in bulk. The messages get a
+	 * contiguous range of serial numbers and the same date/time, and are
+	 * reported to the listeners in one fan-out pass. At most 1000 messages may
+	 * be added in one call.
+	 *
+	 * @param	texts  Message texts.
+	 *
+	 * @return	String[]  The complete message contents, in the same order as
+	 *		the texts.
+	 *
+	 * @exception  	IllegalArgumentException
+	 *		(unchecked exception) Thrown if <TT>texts</TT> is null, holds a
+	 *		null text, or holds more than 1000 texts.
+	 * @exception  	RemoteException
+	 *     	       	Thrown if a remote error occurred.
+	 */
+	public String[] addMessages
+		(List<String> texts)
+		throws RemoteException;
+	
 	/**
 	 * Remove the message with the given message text. This method is called by 
 	 * the RemoveMessage client program to remove the given message from specify 		 
@@ -64,6 +86,21 @@ public interface MicroblogRef
 		(RemoteEventListener<MicroblogEvent> listener)
 		throws RemoteException;
 	
+	/**
+	 * Add the given remote event listener to this microblog, reporting events
+	 * in batches. Whenever messages are added to this microblog, this microblog
+	 * will report them to the given listener in MicroblogBatchEvents of one or
+	 * more messages each.
+	 *
+	 * @param  	listener  Remote event listener.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public Lease addBatchListener
+		(RemoteEventListener<MicroblogEvent> listener)
+		throws RemoteException;
+	
 	/**
 	 * Get the date/time of 2 most recently messages from this microblog's message 
 	 * list.
@@ -111,4 +148,100 @@ public interface MicroblogRef
 	 */
 	public String[] getRecentCont()
 		throws RemoteException;
+
+	/**
+	 * Get the owner name, serial numbers, date/time, and complete message content
+	 * of the <TT>count</TT> most recently messages from this microblog's message
+	 * list, all in a single page. A microblog may return fewer messages than
+	 * asked for; a message added or removed during the call may or may not be
+	 * in the page.
+	 *
+	 * @param	count  Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getRecentMessages
+		(int count)
+		throws RemoteException;
+
+	/**
+	 * Get a page of up to <TT>count</TT> messages with serial numbers less than
+	 * <TT>before</TT> from this microblog's message list, going back from the
+	 * newest such message and skipping removed messages. To go back through the
+	 * whole history, start with <TT>before</TT> = 0 and then pass the
+	 * <TT>next</TT> cursor of each page until it is 0. The microblog may return
+	 * fewer than <TT>count</TT> messages per page.
+	 *
+	 * @param	before	Upper bound (exclusive) of the serial numbers, or 0 for
+	 *			the newest messages.
+	 * @param	count	Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getMessagesBefore
+		(int before,
+		 int count)
+		throws RemoteException;
+
+	/**
+	 * Get a page of up to <TT>count</TT> messages with serial numbers greater
+	 * than <TT>after</TT> from this microblog's message list, going forward
+	 * from the oldest such message and skipping removed messages. To catch up
+	 * on everything after a given serial number, pass the <TT>next</TT> cursor
+	 * of each page until it is 0. The microblog may return fewer than
+	 * <TT>count</TT> messages per page.
+	 *
+	 * @param	after	Lower bound (exclusive) of the serial numbers.
+	 * @param	count	Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getMessagesAfter
+		(int after,
+		 int count)
+		throws RemoteException;
+
+	/**
+	 * Get the messages with the given serial numbers from this microblog's
+	 * message list, such as the ones reported by sequence-only events. Removed
+	 * messages are left out.
+	 *
+	 * @param	nums  Serial numbers.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public MessagePage getMessages
+		(int[] nums)
+		throws RemoteException;
+
+	/**
+	 * Search this microblog's messages for the given query. A message matches
+	 * if it contains every word of the query, ignoring case. The newest
+	 * matching messages are returned, at most <TT>limit</TT> of them.
+	 *
+	 * @param	query  Query text.
+	 * @param	limit  Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages in ascending order of serial number.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred, or search is not
+	 *		enabled on this microblog.
+	 */
+	public MessagePage search
+		(String query,
+		 int limit)
+		throws RemoteException;
 	}
@@ -0,0 +1,368 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class OutputSink prints the output of the follow program in the P2Patter
+ * system without making the caller wait for the output to be consumed.
+ * <P>
+ * The caller only puts a message, or a line of text, on a bounded queue. A
+ * single writer thread takes everything queued at once, renders it into one
+ * reused buffer, writes the buffer out, and flushes once per batch; so the
+ * output stays in the order it was queued however many threads queue it.
+ * <P>
+ * When the queue is full, the overflow policy decides what happens:
+ * <UL>
+ * <LI><TT>BLOCK</TT> -- the caller waits for room in the queue.
+ * <LI><TT>DROP_OLDEST</TT> -- the oldest queued item is discarded to make room.
+ * <LI><TT>SPILL</TT> -- the caller appends the item to a temporary spill file
+ * instead, and so does every caller after it, until the writer has caught up
+ * with the queue and copied the spill file out. Nothing is lost, and the order
+ * is kept.
+ * </UL>
+ */
+public class OutputSink
+	{
+	/**
+	 * What to do when the queue is full.
+	 */
+	public enum Policy
+		{
+		BLOCK, DROP_OLDEST, SPILL
+		}
+
+	private static final String NEWLINE = System.lineSeparator();
+
+	/**
+	 * Greatest buffer capacity kept between batches (characters).
+	 */
+	private static final int MAX_BUFFER = 1 << 20;
+
+	private Writer out;
+	private Policy policy;
+	private ArrayBlockingQueue<Object> queue;
+	private Thread writer;
+	private volatile boolean closed;
+	private AtomicLong dropCount = new AtomicLong();
+
+	// Spill state, guarded by spillLock.
+	private Object spillLock = new Object();
+	private boolean spilling;
+	private File spillFile;
+	private Writer spillOut;
+	private StringBuilder spillBuffer = new StringBuilder();
+	private char[] spillChars = new char[0];
+
+	/**
+	 * Construct a new output sink that writes to the given <TT>out</TT>.
+	 *
+	 * @param	out	  Output writer.
+	 * @param	capacity  Capacity of the queue.
+	 * @param	policy	  Overflow policy.
+	 */
+	public OutputSink
+		(Writer out,
+		 int capacity,
+		 Policy policy)
+		{
+		this.out = out;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+		this.writer = new Thread(new Runnable()
+			{
+			public void run()
+				{
+				drain();
+				}
+			}, "Follow output");
+		this.writer.setDaemon(true);
+		this.writer.start();
+		}
+
+	/**
+	 * Returns a writer to the standard output, or to the file with the given
+	 * <TT>name</TT> if it is not null. The file is appended to.
+	 *
+	 * @param	name  File name, or null.
+	 *
+	 * @return	Writer  Output writer.
+	 *
+	 * @exception	IOException
+	 *		Thrown if the file could not be opened.
+	 */
+	public static Writer open
+		(String name)
+		throws IOException
+		{
+		FileOutputStream stream = name == null ?
+			new FileOutputStream(FileDescriptor.out) :
+			new FileOutputStream(name, true);
+		return new BufferedWriter
+			(new OutputStreamWriter(stream, Charset.defaultCharset()), 1 << 16);
+		}
+
+	/**
+	 * Queue the complete content of the given <TT>message</TT> to be printed,
+	 * followed by a line separator.
+	 *
+	 * @param	message  Message.
+	 */
+	public void print
+		(AddMessage message)
+		{
+		put(message);
+		}
+
+	/**
+	 * Queue the given <TT>line</TT> of text to be printed, followed by a line
+	 * separator.
+	 *
+	 * @param	line  Line of text.
+	 */
+	public void println
+		(String line)
+		{
+		put(line);
+		}
+
+	/**
+	 * Returns the number of items discarded because the queue was full.
+	 *
+	 * @return	long  Discarded item count.
+	 */
+	public long getDropCount()
+		{
+		return dropCount.get();
+		}
+
+	/**
+	 * Print everything queued so far, then stop the writer thread. Waits at
+	 * most the given <TT>timeout</TT> for the output to drain.
+	 *
+	 * @param	timeout  Timeout (milliseconds).
+	 */
+	public void close
+		(long timeout)
+		{
+		closed = true;
+		writer.interrupt();
+		try
+			{
+			writer.join(timeout);
+			}
+		catch (InterruptedException ie)
+			{
+			Thread.currentThread().interrupt();
+			}
+		}
+
+	/**
+	 * Queue the given item according to the overflow policy.
+	 */
+	private void put
+		(Object item)
+		{
+		switch (policy)
+			{
+			case BLOCK:
+				try
+					{
+					queue.put(item);
+					}
+				catch (InterruptedException ie)
+					{
+					Thread.currentThread().interrupt();
+					}
+				break;
+			case DROP_OLDEST:
+				while (! queue.offer(item))
+					{
+					if (queue.poll() != null)
+						dropCount.incrementAndGet();
+					}
+				break;
+			case SPILL:
+				synchronized (spillLock)
+					{
+					// Once spilling has started, everything goes to the
+					// spill file until the writer has copied it out, so
+					// nothing overtakes what is already there.
+					if (! spilling && queue.offer(item))
+						return;
+					spill(item);
+					}
+				break;
+			}
+		}
+
+	/**
+	 * Append the given item to the spill file. Call this method while holding
+	 * the spill lock.
+	 */
+	private void spill
+		(Object item)
+		{
+		try
+			{
+			if (spillOut == null)
+				{
+				spillFile = File.createTempFile("follow", ".spill");
+				spillFile.deleteOnExit();
+				spillOut = new BufferedWriter(new OutputStreamWriter
+					(new FileOutputStream(spillFile), Charset.defaultCharset()), 1 << 16);
+				}
+			spilling = true;
+			spillBuffer.setLength(0);
+			render(spillBuffer, item);
+			spillChars = write(spillOut, spillBuffer, spillChars);
+			}
+		catch (IOException ioe)
+			{
+			// The spill file cannot be written: fall back to discarding.
+			dropCount.incrementAndGet();
+			}
+		}
+
+	/**
+	 * Print queued items in batches until closed.
+	 */
+	private void drain()
+		{
+		ArrayList<Object> batch = new ArrayList<Object>();
+		StringBuilder buffer = new StringBuilder(1 << 12);
+		char[] chars = new char[0];
+		for (;;)
+			{
+			try
+				{
+				// Wait for an item, then take everything queued behind it.
+				Object first = closed ?
+					queue.poll() :
+					queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first != null)
+					{
+					batch.add(first);
+					queue.drainTo(batch);
+					for (Object item : batch)
+						render(buffer, item);
+					batch.clear();
+					chars = write(out, buffer, chars);
+					out.flush();
+					if (buffer.capacity() > MAX_BUFFER)
+						{
+						buffer = new StringBuilder(1 << 12);
+						chars = new char[0];
+						}
+					buffer.setLength(0);
+					}
+				else if (! unspill() && closed)
+					{
+					out.flush();
+					return;
+					}
+				}
+			catch (InterruptedException ie)
+				{
+				// Interrupted by close(): print what is left and stop.
+				}
+			catch (IOException ioe)
+				{
+				System.err.println("\nOutputSink(): Cannot write output: " + ioe);
+				return;
+				}
+			}
+		}
+
+	/**
+	 * If items were spilled, copy the spill file to the output and stop
+	 * spilling. Call this method only from the writer thread, with the queue
+	 * empty.
+	 *
+	 * @return	boolean  True if a spill file was copied.
+	 */
+	private boolean unspill()
+		throws IOException
+		{
+		File file;
+		synchronized (spillLock)
+			{
+			if (! spilling)
+				return false;
+			// Nothing can have been queued since spilling started, so the
+			// spill file holds the oldest items still to print.
+			spillOut.close();
+			spillOut = null;
+			file = spillFile;
+			spillFile = null;
+			spilling = false;
+			}
+
+		BufferedReader reader = Files.newBufferedReader(file.toPath(), Charset.defaultCharset());
+		try
+			{
+			char[] chars = new char[1 << 16];
+			int n;
+			while ((n = reader.read(chars)) > 0)
+				out.write(chars, 0, n);
+			out.flush();
+			}
+		finally
+			{
+			reader.close();
+			file.delete();
+			}
+		return true;
+		}
+
+	/**
+	 * Write the contents of the given <TT>buffer</TT> to the given writer
+	 * through the given <TT>chars</TT> array, without copying the buffer into a
+	 * string.
+	 *
+	 * @return	char[]  The array, or a larger one if it was too small.
+	 */
+	private static char[] write
+		(Writer w,
+		 StringBuilder buffer,
+		 char[] chars)
+		throws IOException
+		{
+		int length = buffer.length();
+		if (chars.length < length)
+			chars = new char[Math.max(length, 2 * chars.length)];
+		buffer.getChars(0, length, chars, 0);
+		w.write(chars, 0, length);
+		return chars;
+		}
+
+	/**
+	 * Render the given item into the buffer <TT>b</TT>, followed by a line
+	 * separator.
+	 */
+	private static void render
+		(StringBuilder b,
+		 Object item)
+		{
+		if (item instanceof AddMessage)
+			{
+			AddMessage message = (AddMessage) item;
+			Message.render(b, message.name, message.num, message.date, message.text);
+			}
+		else
+			{
+			b.append(item);
+			}
+		b.append(NEWLINE);
+		}
+	}
@@ -0,0 +1,581 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class SearchIndex provides a full-text search index over the messages of a
+ * microblog in the P2Patter system. It maps each term to the serial numbers of
+ * the messages that contain it, and is updated as messages are added and
+ * removed.
+ * <P>
+ * A term is a run of letters and digits, lowercased, and cut to 64 characters.
+ * A search finds the messages that contain every term of the query, newest
+ * first.
+ * <P>
+ * The serial numbers of a term are kept in a posting list, in ascending order,
+ * in blocks of 128. A block holds its first serial number as is and the rest as
+ * variable-length differences from the one before, so a posting usually takes
+ * one or two bytes. The newest 64 postings wait in a small sorted tail before
+ * they are encoded, so messages indexed slightly out of order by concurrent
+ * posters still go in cheaply. A posting older than the encoded ones waits in
+ * a sorted late buffer instead, which is merged into the encoded postings once
+ * it holds an eighth of the list (at most 4096 postings), so a message indexed
+ * late does not cost a rewrite of the whole list. A search walks the posting lists back from the
+ * newest posting, decoding only the blocks it lands in, and jumps from list to
+ * list (starting with the shortest) to the greatest serial number they all
+ * hold, so its cost depends on the number of results asked for and not on the
+ * length of the lists.
+ * <P>
+ * A removed message is left in the posting lists and filtered out of search
+ * results by asking the message list whether it is still there. Once half of a
+ * posting list is removed messages, the list is rewritten without them.
+ * <P>
+ * Posting lists are changed while holding their own locks; a search copies the
+ * few fields it needs under the lock and then reads the list without it, since
+ * encoded postings are never changed in place, only appended to or replaced.
+ */
+public class SearchIndex
+	{
+	private static final int BLOCK = 128;
+	private static final int TAIL = 64;
+	private static final int MAX_TERM = 64;
+	private static final int LATE = 4096;
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * Posting list of one term.
+	 */
+	private static class Postings
+		{
+		// Guarded by this posting list's lock.
+		private byte[] data = new byte[8];
+		private int length;
+		private int[] blockFirst = new int[1];
+		private int[] blockOffset = new int[1];
+		private int blocks;
+		private int inLastBlock;
+		private int last;
+		private int[] tail = new int[4];
+		private int tailSize;
+		private int count;
+		private int dead;
+
+		/**
+		 * Postings older than the last encoded one, in ascending order.
+		 * Replaced, never changed in place, so a cursor can share it.
+		 */
+		private int[] late = NONE;
+
+		/**
+		 * Add the given serial number.
+		 */
+		public synchronized void add
+			(int num)
+			{
+			if (num <= last)
+				{
+				// Older than the encoded postings: put it in the late buffer,
+				// and merge the buffer in once it is large.
+				int i = Arrays.binarySearch(late, num);
+				if (i >= 0 || encoded().seek(num) == num)
+					return;
+				i = -i - 1;
+				int[] merged = new int[late.length + 1];
+				System.arraycopy(late, 0, merged, 0, i);
+				merged[i] = num;
+				System.arraycopy(late, i, merged, i + 1, late.length - i);
+				late = merged;
+				++ count;
+				if (late.length >= Math.max(TAIL, Math.min(count / 8, LATE)))
+					encode(all(), count);
+				return;
+				}
+
+			// Insert into the sorted tail.
+			int i = tailSize;
+			while (i > 0 && tail[i - 1] > num)
+				-- i;
+			if (i > 0 && tail[i - 1] == num)
+				return;
+			if (tailSize == tail.length)
+				tail = Arrays.copyOf(tail, Math.min(TAIL, 2 * tail.length));
+			System.arraycopy(tail, i, tail, i + 1, tailSize - i);
+			tail[i] = num;
+			++ tailSize;
+			++ count;
+
+			// Encode the older half of a full tail.
+			if (tailSize == TAIL)
+				{
+				for (int j = 0; j < TAIL / 2; ++ j)
+					append(tail[j]);
+				System.arraycopy(tail, TAIL / 2, tail, 0, TAIL - TAIL / 2);
+				tailSize -= TAIL / 2;
+				}
+			}
+
+		/**
+		 * Count one posting as a removed message.
+		 *
+		 * @return	boolean  True if the list should be rewritten.
+		 */
+		public synchronized boolean kill()
+			{
+			++ dead;
+			return dead >= 32 && 2 * dead >= count;
+			}
+
+		/**
+		 * Rewrite the list without the messages no longer in the given
+		 * <TT>list</TT>.
+		 */
+		public synchronized void compact
+			(MessageList list)
+			{
+			int[] nums = all();
+			int n = 0;
+			for (int num : nums)
+				{
+				if (list.contains(num))
+					nums[n++] = num;
+				}
+			encode(nums, n);
+			}
+
+		/**
+		 * Returns a cursor over the postings as they are now.
+		 */
+		public synchronized Cursor cursor()
+			{
+			return new Cursor(data, length, blockFirst, blockOffset, blocks,
+				Arrays.copyOf(tail, tailSize), late, count);
+			}
+
+		/**
+		 * Returns the approximate memory size of this posting list (bytes).
+		 */
+		public synchronized long size()
+			{
+			return 64 + 16 * 4 + data.length +
+				4L * (blockFirst.length + blockOffset.length + tail.length + late.length);
+			}
+
+		/**
+		 * Returns a cursor over the encoded postings alone.
+		 */
+		private Cursor encoded()
+			{
+			return new Cursor(data, length, blockFirst, blockOffset, blocks,
+				NONE, NONE, count);
+			}
+
+		/**
+		 * Returns all the postings in ascending order, the late ones merged in.
+		 */
+		private int[] all()
+			{
+			int[] nums = new int[count];
+			int n = 0;
+			int k = 0;
+			Cursor cursor = encoded();
+			for (int b = 0; b < blocks; ++ b)
+				{
+				cursor.decode(b);
+				for (int j = 0; j < cursor.decodedSize; ++ j)
+					{
+					int num = cursor.decoded[j];
+					while (k < late.length && late[k] < num)
+						nums[n++] = late[k++];
+					nums[n++] = num;
+					}
+				}
+			while (k < late.length)
+				nums[n++] = late[k++];
+			System.arraycopy(tail, 0, nums, n, tailSize);
+			return nums;
+			}
+
+		/**
+		 * Replace the postings with the first <TT>n</TT> of the given ones,
+		 * which are in ascending order.
+		 */
+		private void encode
+			(int[] nums,
+			 int n)
+			{
+			data = new byte[Math.max(8, n + n / 2)];
+			length = 0;
+			blockFirst = new int[Math.max(1, (n + BLOCK - 1) / BLOCK)];
+			blockOffset = new int[blockFirst.length];
+			blocks = 0;
+			inLastBlock = 0;
+			last = 0;
+			tail = new int[4];
+			tailSize = 0;
+			late = NONE;
+			for (int i = 0; i < n; ++ i)
+				append(nums[i]);
+			count = n;
+			dead = 0;
+			}
+
+		/**
+		 * Append the given serial number, greater than the last, to the
+		 * encoded postings.
+		 */
+		private void append
+			(int num)
+			{
+			if (blocks == 0 || inLastBlock == BLOCK)
+				{
+				if (blocks == blockFirst.length)
+					{
+					blockFirst = Arrays.copyOf(blockFirst, 2 * blocks);
+					blockOffset = Arrays.copyOf(blockOffset, 2 * blocks);
+					}
+				blockFirst[blocks] = num;
+				blockOffset[blocks] = length;
+				++ blocks;
+				inLastBlock = 1;
+				}
+			else
+				{
+				if (data.length - length < 5)
+					data = Arrays.copyOf(data, data.length + data.length / 2 + 5);
+				int delta = num - last;
+				while ((delta & ~0x7F) != 0)
+					{
+					data[length++] = (byte) ((delta & 0x7F) | 0x80);
+					delta >>>= 7;
+					}
+				data[length++] = (byte) delta;
+				++ inLastBlock;
+				}
+			last = num;
+			}
+		}
+
+	/**
+	 * Cursor over a copy of a posting list's fields, which moves back from the
+	 * newest posting.
+	 */
+	private static class Cursor
+		{
+		private final byte[] data;
+		private final int length;
+		private final int[] blockFirst;
+		private final int[] blockOffset;
+		private final int blocks;
+		private final int[] tail;
+		private final int[] late;
+		public final int count;
+
+		private int decodedBlock = -1;
+		private int[] decoded = new int[BLOCK];
+		private int decodedSize;
+
+		public Cursor
+			(byte[] data,
+			 int length,
+			 int[] blockFirst,
+			 int[] blockOffset,
+			 int blocks,
+			 int[] tail,
+			 int[] late,
+			 int count)
+			{
+			this.data = data;
+			this.length = length;
+			this.blockFirst = blockFirst;
+			this.blockOffset = blockOffset;
+			this.blocks = blocks;
+			this.tail = tail;
+			this.late = late;
+			this.count = count;
+			}
+
+		/**
+		 * Returns the greatest posting at or below <TT>target</TT>, or 0 if
+		 * there is none.
+		 */
+		public int seek
+			(int target)
+			{
+			if (tail.length > 0 && tail[0] <= target)
+				return tail[floor(tail, tail.length, target)];
+			int found = late.length > 0 && late[0] <= target ?
+				late[floor(late, late.length, target)] : 0;
+
+			// Find the last block starting at or below the target.
+			int lo = 0;
+			int hi = blocks - 1;
+			if (hi < 0 || blockFirst[0] > target)
+				return found;
+			while (lo < hi)
+				{
+				int mid = (lo + hi + 1) >>> 1;
+				if (blockFirst[mid] <= target)
+					lo = mid;
+				else
+					hi = mid - 1;
+				}
+			decode(lo);
+			return Math.max(found, decoded[floor(decoded, decodedSize, target)]);
+			}
+
+		/**
+		 * Decode block <TT>b</TT>, unless it is decoded already.
+		 */
+		public void decode
+			(int b)
+			{
+			if (b == decodedBlock)
+				return;
+			int offset = blockOffset[b];
+			int end = b + 1 < blocks ? blockOffset[b + 1] : length;
+			int num = blockFirst[b];
+			int n = 0;
+			decoded[n++] = num;
+			while (offset < end)
+				{
+				int delta = 0;
+				int shift = 0;
+				byte x;
+				do
+					{
+					x = data[offset++];
+					delta |= (x & 0x7F) << shift;
+					shift += 7;
+					}
+				while (x < 0);
+				num += delta;
+				decoded[n++] = num;
+				}
+			decodedSize = n;
+			decodedBlock = b;
+			}
+
+		/**
+		 * Returns the index of the greatest of the first <TT>n</TT> elements
+		 * of <TT>a</TT> at or below <TT>target</TT>; <TT>a[0]</TT> must be at
+		 * or below it.
+		 */
+		private static int floor
+			(int[] a,
+			 int n,
+			 int target)
+			{
+			int lo = 0;
+			int hi = n - 1;
+			while (lo < hi)
+				{
+				int mid = (lo + hi + 1) >>> 1;
+				if (a[mid] <= target)
+					lo = mid;
+				else
+					hi = mid - 1;
+				}
+			return lo;
+			}
+		}
+
+	private MessageList list;
+	private ConcurrentHashMap<String, Postings> postings =
+		new ConcurrentHashMap<String, Postings>();
+
+	/**
+	 * Construct a new, empty search index over the messages of the given
+	 * message <TT>list</TT>.
+	 *
+	 * @param	list  Message list.
+	 */
+	public SearchIndex
+		(MessageList list)
+		{
+		this.list = list;
+		}
+
+	/**
+	 * Index all the messages now in the message list.
+	 */
+	public void addAll()
+		{
+		int after = 0;
+		do
+			{
+			MessagePage page = list.queryAfter(after, 1000);
+			for (int i = 0; i < page.size(); ++ i)
+				add(page.num[i], page.text[i]);
+			after = page.next;
+			}
+		while (after != 0);
+		}
+
+	/**
+	 * Index the message with the given serial <TT>num</TT> and <TT>text</TT>.
+	 *
+	 * @param	num   Serial number.
+	 * @param	text  Message text.
+	 */
+	public void add
+		(int num,
+		 String text)
+		{
+		for (String term : terms(text))
+			{
+			Postings p = postings.get(term);
+			if (p == null)
+				{
+				p = new Postings();
+				Postings q = postings.putIfAbsent(term, p);
+				if (q != null)
+					p = q;
+				}
+			p.add(num);
+			}
+		}
+
+	/**
+	 * Note that the message with the given serial <TT>num</TT> and
+	 * <TT>text</TT> has been removed from the message list.
+	 *
+	 * @param	num   Serial number.
+	 * @param	text  Message text.
+	 */
+	public void remove
+		(int num,
+		 String text)
+		{
+		for (String term : terms(text))
+			{
+			Postings p = postings.get(term);
+			if (p != null && p.kill())
+				p.compact(list);
+			}
+		}
+
+	/**
+	 * Find the up to <TT>limit</TT> newest messages that contain every term of
+	 * the given <TT>query</TT>. The messages are returned in one page in
+	 * ascending order of serial number. A query with no terms finds nothing.
+	 *
+	 * @param	query  Query text.
+	 * @param	limit  Maximum number of messages.
+	 *
+	 * @return	MessagePage  Page of messages.
+	 */
+	public MessagePage search
+		(String query,
+		 int limit)
+		{
+		ArrayList<String> terms = terms(query);
+		Cursor[] cursors = new Cursor[terms.size()];
+		for (int i = 0; i < cursors.length; ++ i)
+			{
+			Postings p = postings.get(terms.get(i));
+			if (p == null)
+				return list.queryNums(new int[0]);
+			cursors[i] = p.cursor();
+			}
+
+		// Leapfrog back from the newest posting, shortest list first.
+		Arrays.sort(cursors, new Comparator<Cursor>()
+			{
+			public int compare(Cursor a, Cursor b)
+				{
+				return Integer.compare(a.count, b.count);
+				}
+			});
+		int[] found = new int[Math.max(0, Math.min(limit, 64))];
+		int n = 0;
+		int target = Integer.MAX_VALUE;
+		while (cursors.length > 0 && n < limit && target > 0)
+			{
+			target = cursors[0].seek(target);
+			boolean all = target > 0;
+			for (int i = 1; all && i < cursors.length; ++ i)
+				{
+				int num = cursors[i].seek(target);
+				if (num < target)
+					{
+					target = num;
+					all = false;
+					}
+				}
+			if (all)
+				{
+				if (list.contains(target))
+					{
+					if (n == found.length)
+						found = Arrays.copyOf(found, (int) Math.min((long) limit, 2L * n));
+					found[n++] = target;
+					}
+				-- target;
+				}
+			}
+		return list.queryNums(Arrays.copyOf(found, n));
+		}
+
+	/**
+	 * Returns the approximate memory size of this search index (bytes): the
+	 * posting lists plus the terms and their hash map entries.
+	 *
+	 * @return	long  Size.
+	 */
+	public long sizeInBytes()
+		{
+		long size = 0;
+		for (Map.Entry<String, Postings> entry : postings.entrySet())
+			size += 48 + 40 + 2 * entry.getKey().length() + entry.getValue().size();
+		return size;
+		}
+
+	/**
+	 * Returns the number of distinct terms in this search index.
+	 *
+	 * @return	int  Term count.
+	 */
+	public int termCount()
+		{
+		return postings.size();
+		}
+
+	/**
+	 * Returns the distinct terms of the given <TT>text</TT>, in order of first
+	 * appearance.
+	 */
+	private static ArrayList<String> terms
+		(String text)
+		{
+		ArrayList<String> terms = new ArrayList<String>();
+		HashSet<String> seen = new HashSet<String>();
+		int n = text.length();
+		int i = 0;
+		while (i < n)
+			{
+			int c = text.codePointAt(i);
+			if (! Character.isLetterOrDigit(c))
+				{
+				i += Character.charCount(c);
+				continue;
+				}
+			int start = i;
+			int end = i;
+			int length = 0;
+			while (i < n && Character.isLetterOrDigit(c = text.codePointAt(i)))
+				{
+				i += Character.charCount(c);
+				if (++ length <= MAX_TERM)
+					end = i;
+				}
+			String term = text.substring(start, end).toLowerCase(Locale.ROOT);
+			if (seen.add(term))
+				terms.add(term);
+			}
+		return terms;
+		}
+	}
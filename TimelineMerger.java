@@ -0,0 +1,107 @@
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Class TimelineMerger merges the message pages of several microblogs into one
+ * timeline in the P2Patter system. Each page is already in ascending order of
+ * serial number, which MessageFactory makes ascending order of date/time too,
+ * so the pages are merged with a priority queue holding one cursor per page. The merged messages come out in ascending order of
+ * date/time, then owner name, then serial number, one complete message content
+ * at a time, without the whole timeline ever being held in memory.
+ */
+public class TimelineMerger
+	implements Iterator<String>
+	{
+	/**
+	 * Cursor into one message page. Cursors are ordered by the date/time, then
+	 * owner name, then serial number of the page's next message.
+	 */
+	private static class Cursor
+		implements Comparable<Cursor>
+		{
+		private MessagePage page;
+		private int index;
+
+		public Cursor
+			(MessagePage page)
+			{
+			this.page = page;
+			}
+
+		public boolean advance()
+			{
+			return ++ index < page.size();
+			}
+
+		public int compareTo
+			(Cursor other)
+			{
+			long time = page.time[index];
+			long otherTime = other.page.time[other.index];
+			if (time != otherTime)
+				return time < otherTime ? -1 : 1;
+			int result = page.name.compareTo(other.page.name);
+			if (result != 0)
+				return result;
+			int num = page.num[index];
+			int otherNum = other.page.num[other.index];
+			return num < otherNum ? -1 : num == otherNum ? 0 : 1;
+			}
+		}
+
+	private PriorityQueue<Cursor> queue;
+
+	/**
+	 * Construct a new timeline merger over the given message <TT>pages</TT>.
+	 *
+	 * @param	pages  Message pages, each in ascending order of serial number.
+	 */
+	public TimelineMerger
+		(Collection<MessagePage> pages)
+		{
+		queue = new PriorityQueue<Cursor>(Math.max(1, pages.size()));
+		for (MessagePage page : pages)
+			{
+			if (page.size() > 0)
+				queue.add(new Cursor(page));
+			}
+		}
+
+	/**
+	 * Determine if there are more messages in the merged timeline.
+	 */
+	public boolean hasNext()
+		{
+		return !queue.isEmpty();
+		}
+
+	/**
+	 * Returns the complete content of the next message of the merged timeline.
+	 *
+	 * @exception	NoSuchElementException
+	 *		(unchecked exception) Thrown if there are no more messages.
+	 */
+	public String next()
+		{
+		Cursor cursor = queue.poll();
+		if (cursor == null)
+			throw new NoSuchElementException();
+		String cont = cursor.page.getCont(cursor.index);
+		if (cursor.advance())
+			queue.add(cursor);
+		return cont;
+		}
+
+	/**
+	 * Not supported.
+	 *
+	 * @exception	UnsupportedOperationException
+	 *		(unchecked exception) Always thrown.
+	 */
+	public void remove()
+		{
+		throw new UnsupportedOperationException();
+		}
+	}
@@ -0,0 +1,83 @@
+import java.io.Serializable;
+
+/**
+ * Class TimelinePage encapsulates a run of messages from a home timeline in the
+ * P2Patter system. Unlike a MessagePage, the messages may come from several
+ * microblogs, so each message has its own owner name. Class TimelinePage is
+ * serializable so it can be returned from remote method calls in a single
+ * round trip; each owner name is sent only once however many of its messages
+ * the page holds.
+ */
+public class TimelinePage
+	implements Serializable
+	{
+	/**
+	 * Pinned, so a timeline service and its clients need not be compiled
+	 * together.
+	 */
+	private static final long serialVersionUID = -2875085793217193280L;
+
+	/**
+	 * The messages' owner names.
+	 */
+	public final String[] name;
+
+	/**
+	 * The messages' serial numbers.
+	 */
+	public final int[] num;
+
+	/**
+	 * The messages' date/time (epoch milliseconds).
+	 */
+	public final long[] time;
+
+	/**
+	 * The messages' text.
+	 */
+	public final String[] text;
+
+	/**
+	 * Create a new timeline page. The four arrays must have the same length.
+	 *
+	 * @param	name	Microblog owner names.
+	 * @param	num	Serial numbers.
+	 * @param	time	Message dates/time (epoch milliseconds).
+	 * @param	text	Message texts.
+	 */
+	public TimelinePage
+		(String[] name,
+		 int[] num,
+		 long[] time,
+		 String[] text)
+		{
+		this.name = name;
+		this.num = num;
+		this.time = time;
+		this.text = text;
+		}
+
+	/**
+	 * Returns the number of messages in this page.
+	 *
+	 * @return	int  Number of messages.
+	 */
+	public int size()
+		{
+		return num.length;
+		}
+
+	/**
+	 * Returns the complete content of the message at the given <TT>index</TT>
+	 * of this page.
+	 *
+	 * @param	index  Index (0 = oldest message of the page).
+	 *
+	 * @return	String  Complete message content.
+	 */
+	public String getCont
+		(int index)
+		{
+		return Message.render(name[index], num[index], time[index], text[index]);
+		}
+	}
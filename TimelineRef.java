@@ -0,0 +1,59 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Interface TimelineRef specifies the Java RMI remote interface for a distributed
+ * timeline service object in the P2Patter system.
+ */
+public interface TimelineRef
+	extends Remote
+	{
+	/**
+	 * Make the given <TT>user</TT> follow the microblog with the given owner
+	 * <TT>name</TT>. The user's home timeline gets the microblog's recent
+	 * messages at once, and each new message from then on.
+	 *
+	 * @param	user  User name.
+	 * @param	name  Microblog owner name.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public void follow
+		(String user,
+		 String name)
+		throws RemoteException;
+
+	/**
+	 * Make the given <TT>user</TT> stop following the microblog with the given
+	 * owner <TT>name</TT>. Messages already in the user's home timeline stay
+	 * there until newer messages push them out.
+	 *
+	 * @param	user  User name.
+	 * @param	name  Microblog owner name.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public void unfollow
+		(String user,
+		 String name)
+		throws RemoteException;
+
+	/**
+	 * Get the <TT>count</TT> most recent messages of the given <TT>user</TT>'s
+	 * home timeline: the messages of all the microblogs the user follows.
+	 *
+	 * @param	user   User name.
+	 * @param	count  Maximum number of messages.
+	 *
+	 * @return	TimelinePage  Page of messages, oldest first.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public TimelinePage getTimeline
+		(String user,
+		 int count)
+		throws RemoteException;
+	}
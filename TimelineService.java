@@ -0,0 +1,636 @@
+import edu.rit.ds.Lease;
+import edu.rit.ds.RemoteEventListener;
+import edu.rit.ds.registry.AlreadyBoundException;
+import edu.rit.ds.registry.NotBoundException;
+import edu.rit.ds.registry.RegistryEvent;
+import edu.rit.ds.registry.RegistryEventFilter;
+import edu.rit.ds.registry.RegistryEventListener;
+import edu.rit.ds.registry.RegistryProxy;
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Class TimelineService provides a Java RMI distributed timeline service object
+ * in the P2Patter system. It keeps a home timeline for each user: the most
+ * recent messages of all the microblogs the user follows.
+ * <P>
+ * Usage: java Start TimelineService <I>host</I> <I>port</I> <I>name</I>
+ * <BR><I>host</I> = The name of the host computer where the Registry Server is running
+ * <BR><I>port</I> = The port number to which the Registry Server is listening
+ * <BR><I>name</I> = The timeline service's name
+ * <P>
+ * The service listens to each followed microblog once, however many users
+ * follow it, and adds each new message to the home timeline of every user who
+ * follows that microblog (fan-out on write). The message itself is shared; a
+ * home timeline is a ring buffer of references to messages, holding at most
+ * <TT>p2patter.timeline.cap</TT> messages (default 800), so reading a page of
+ * a home timeline costs only the size of the page however many microblogs the
+ * user follows. A new message is put in its place by date/time, since events
+ * from different microblogs may arrive out of that order. When a user follows a
+ * microblog, its recent messages are merged into the user's home timeline in
+ * order of date/time. When a followed microblog is rebound, the service listens
+ * to it again; once no user follows a microblog, the service stops listening to
+ * it.
+ */
+public class TimelineService
+	implements TimelineRef
+	{
+	/**
+	 * Greatest number of messages returned in one page of a timeline.
+	 */
+	private static final int MAX_PAGE = 1000;
+
+	/**
+	 * One message in the home timelines. Entries are immutable and shared by
+	 * all the timelines that hold them.
+	 */
+	private static class Entry
+		{
+		public final String name;
+		public final int num;
+		public final long time;
+		public final String text;
+
+		public Entry
+			(String name,
+			 int num,
+			 long time,
+			 String text)
+			{
+			this.name = name;
+			this.num = num;
+			this.time = time;
+			this.text = text;
+			}
+
+		/**
+		 * Returns true if this entry comes before the given <TT>other</TT>
+		 * entry in order of date/time, then owner name, then serial number.
+		 */
+		public boolean before
+			(Entry other)
+			{
+			if (time != other.time)
+				return time < other.time;
+			int result = name.compareTo(other.name);
+			if (result != 0)
+				return result < 0;
+			return num < other.num;
+			}
+		}
+
+	/**
+	 * Home timeline of one user: a ring buffer of entries, oldest first.
+	 */
+	private static class Timeline
+		{
+		private Entry[] ring;
+		private int start;
+		private int size;
+
+		/**
+		 * Greatest serial number merged in from each microblog. Events for
+		 * messages up to that serial number are already in the ring.
+		 */
+		private HashMap<String, Integer> merged = new HashMap<String, Integer>();
+
+		public Timeline
+			(int cap)
+			{
+			ring = new Entry[cap];
+			}
+
+		/**
+		 * Add the given new entry in its place in order of date/time, pushing
+		 * out the oldest entry if the ring is full. An entry usually belongs
+		 * after the newest one, so the place is looked for from the newest end.
+		 */
+		public synchronized void add
+			(Entry entry)
+			{
+			Integer last = merged.get(entry.name);
+			if (last != null && entry.num <= last)
+				return;
+
+			// Find how many of the newest entries come after the new one.
+			int later = 0;
+			while (later < size &&
+					entry.before(ring[(start + size - 1 - later) % ring.length]))
+				++ later;
+			if (size == ring.length)
+				{
+				// The ring is full; the new entry is dropped if it is the
+				// oldest, or else the oldest entry is.
+				if (later == size)
+					return;
+				start = (start + 1) % ring.length;
+				-- size;
+				}
+
+			// Move the later entries up one place and put the new one in.
+			for (int i = 0; i < later; ++ i)
+				{
+				int to = (start + size - i) % ring.length;
+				ring[to] = ring[(to + ring.length - 1) % ring.length];
+				}
+			ring[(start + size - later) % ring.length] = entry;
+			++ size;
+			}
+
+		/**
+		 * Merge the given page of a microblog's messages into this timeline in
+		 * order of date/time, keeping the newest entries that fit.
+		 */
+		public synchronized void merge
+			(MessagePage page)
+			{
+			// Leave out the messages this timeline already holds.
+			HashSet<Integer> held = new HashSet<Integer>();
+			for (int i = 0; i < size; ++ i)
+				{
+				Entry entry = ring[(start + i) % ring.length];
+				if (entry.name.equals(page.name))
+					held.add(entry.num);
+				}
+			Entry[] incoming = new Entry[page.size()];
+			int n = 0;
+			for (int i = 0; i < page.size(); ++ i)
+				{
+				if (! held.contains(page.num[i]))
+					incoming[n ++] = new Entry
+						(page.name, page.num[i], page.time[i], page.text[i]);
+				}
+			// A rebound microblog that lost its messages starts its serial
+			// numbers over, so this replaces rather than raises the mark.
+			if (page.size() > 0)
+				merged.put(page.name, page.num[page.size() - 1]);
+			else
+				merged.remove(page.name);
+			if (n == 0)
+				return;
+
+			// Merge the two runs from the newest end, keeping at most a ring
+			// full.
+			Entry[] result = new Entry[ring.length];
+			int r = Math.min(ring.length, size + n);
+			int a = size - 1;
+			int b = n - 1;
+			for (int k = r - 1; k >= 0; -- k)
+				{
+				if (b < 0 || (a >= 0 && incoming[b].before(ring[(start + a) % ring.length])))
+					result[k] = ring[(start + a --) % ring.length];
+				else
+					result[k] = incoming[b --];
+				}
+			ring = result;
+			start = 0;
+			size = r;
+			}
+
+		/**
+		 * Returns the <TT>count</TT> newest entries, oldest first.
+		 */
+		public synchronized TimelinePage page
+			(int count)
+			{
+			int n = Math.max(0, Math.min(count, size));
+			String[] name = new String[n];
+			int[] num = new int[n];
+			long[] time = new long[n];
+			String[] text = new String[n];
+			for (int i = 0; i < n; ++ i)
+				{
+				Entry entry = ring[(start + size - n + i) % ring.length];
+				name[i] = entry.name;
+				num[i] = entry.num;
+				time[i] = entry.time;
+				text[i] = entry.text;
+				}
+			return new TimelinePage(name, num, time, text);
+			}
+		}
+
+	/**
+	 * One followed microblog and the timelines of the users who follow it.
+	 */
+	private static class Source
+		{
+		public final String name;
+		public final CopyOnWriteArraySet<Timeline> followers =
+			new CopyOnWriteArraySet<Timeline>();
+		public MicroblogRef microblog;
+
+		/**
+		 * Lease of the service's listener on the microblog, or null if not
+		 * listening.
+		 */
+		public Lease lease;
+
+		public Source
+			(String name)
+			{
+			this.name = name;
+			}
+		}
+
+	private String host;
+	private int port;
+	private String name;
+	private int cap;
+
+	private RegistryProxy registry;
+	private MessageClock clock = new MessageClock();
+	private ConcurrentHashMap<String, Timeline> timelines =
+		new ConcurrentHashMap<String, Timeline>();
+	private ConcurrentHashMap<String, Source> sources =
+		new ConcurrentHashMap<String, Source>();
+	private RemoteEventListener<MicroblogEvent> mbListener;
+	private RegistryEventListener rBoundListener;
+	private RegistryEventListener rUnboundListener;
+
+	/**
+	 * Construct a new timeline service object.
+	 * <P>
+	 * The command line arguments are:
+	 * <BR><TT>args[0]</TT> = The name of the host computer where the Registry Server is running
+	 * <BR><TT>args[1]</TT> = The port number to which the Registry Server is listening
+	 * <BR><TT>args[2]</TT> = The timeline service's name
+	 *
+	 * @param	args  Command line arguments.
+	 *
+	 * @exception  	IllegalArgumentException
+	 *		(unchecked exception) Thrown if there was a problem
+	 *		with the command line arguments.
+	 *
+	 * @exception  	IOException
+	 *      	Thrown if an I/O error or a remote error occurred.
+	 */
+	public TimelineService
+		(String[] args)
+		throws IOException
+		{
+		// Parse command line arguments.
+		if (args.length != 3)
+			{
+			throw new IllegalArgumentException
+				("\nUsage: java Start TimelineService <host> <port> <name>\n" +
+				 "<host> = The name of the host computer where the Registry Server is running\n" +
+				 "<port> = The port number to which the Registry Server is listening\n" +
+				 "<name> = The timeline service's name");
+			}
+		host = args[0];
+		port = parseInt(args[1], "port");
+		name = args[2];
+		cap = Math.max(1, Integer.getInteger("p2patter.timeline.cap", 800));
+
+		// Get a proxy for the Registry Server.
+		try
+			{
+			registry = new RegistryProxy(host, port);
+			}
+		catch (RemoteException re)
+			{
+			throw new RemoteException
+				("\nTimelineService(): No Registry Server running at the given host and port");
+			}
+
+		// Export a remote event listener object for receiving the new messages
+		// of the followed microblogs, and add each one to the timelines of
+		// the microblog's followers.
+		mbListener = new RemoteEventListener<MicroblogEvent>()
+			{
+			public void report(long seq, MicroblogEvent mbEvent)
+				{
+				Source source = sources.get(mbEvent.name);
+				if (source == null)
+					return;
+				AddMessage[] messages = mbEvent instanceof MicroblogBatchEvent ?
+					((MicroblogBatchEvent) mbEvent).messages :
+					mbEvent.message != null ? new AddMessage[] {mbEvent.message} : null;
+				if (messages == null)
+					{
+					// Sequence-only event: get the messages from the microblog.
+					getMessages(source, mbEvent instanceof MicroblogBatchEvent ?
+						((MicroblogBatchEvent) mbEvent).nums :
+						new int[] {mbEvent.num});
+					return;
+					}
+				for (AddMessage message : messages)
+					{
+					Entry entry = new Entry(message.name, message.num,
+						clock.parse(message.date), message.text);
+					for (Timeline timeline : source.followers)
+						timeline.add(entry);
+					}
+				}
+			};
+		UnicastRemoteObject.exportObject(mbListener, 0);
+
+		// Export remote event listener objects for listening to a followed
+		// microblog again when it is rebound.
+		rBoundListener = new RegistryEventListener()
+			{
+			public void report(long seq, RegistryEvent rEvent)
+				{
+				Source source = sources.get(rEvent.objectName());
+				if (source != null && ! source.followers.isEmpty())
+					{
+					try
+						{
+						MicroblogRef microblog = subscribe(source);
+						if (microblog != null)
+							{
+							MessagePage page = microblog.getRecentMessages(cap);
+							for (Timeline timeline : source.followers)
+								timeline.merge(page);
+							}
+						}
+					catch (RemoteException re)
+						{
+						System.err.println
+							("\nTimelineService(): Cannot follow " + source.name + " -- " + re);
+						}
+					}
+				}
+			};
+		UnicastRemoteObject.exportObject(rBoundListener, 0);
+		rUnboundListener = new RegistryEventListener()
+			{
+			public void report(long seq, RegistryEvent rEvent)
+				{
+				Source source = sources.get(rEvent.objectName());
+				if (source != null)
+					{
+					synchronized (source)
+						{
+						source.lease = null;
+						source.microblog = null;
+						}
+					}
+				}
+			};
+		UnicastRemoteObject.exportObject(rUnboundListener, 0);
+		registry.addEventListener(rBoundListener,
+			new RegistryEventFilter().reportType("Microblog").reportBound());
+		registry.addEventListener(rUnboundListener,
+			new RegistryEventFilter().reportType("Microblog").reportUnbound());
+
+		// Export this timeline service.
+		UnicastRemoteObject.exportObject(this, 0);
+
+		// Bind this timeline service into the Registry Server.
+		try
+			{
+			registry.bind (name, this, 5000);
+			}
+		catch (AlreadyBoundException albe)
+			{
+			try
+				{
+				UnicastRemoteObject.unexportObject(this, true);
+				}
+			catch (NoSuchObjectException nsoe)
+				{
+				}
+			throw new IllegalArgumentException
+				("\nTimelineService(): <name> = \"" + name + "\" already exists");
+			}
+		catch (RemoteException re)
+			{
+			try
+				{
+				UnicastRemoteObject.unexportObject(this, true);
+				}
+			catch (NoSuchObjectException nsoe)
+				{
+				}
+			throw re;
+			}
+		}
+
+	/**
+	 * Make the given <TT>user</TT> follow the microblog with the given owner
+	 * <TT>name</TT>. If the microblog is not bound yet, the user follows it as
+	 * soon as it is.
+	 *
+	 * @param	user  User name.
+	 * @param	name  Microblog owner name.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public void follow
+		(String user,
+		 String name)
+		throws RemoteException
+		{
+		Timeline timeline = timelines.get(user);
+		if (timeline == null)
+			{
+			Timeline newTimeline = new Timeline(cap);
+			timeline = timelines.putIfAbsent(user, newTimeline);
+			if (timeline == null)
+				timeline = newTimeline;
+			}
+		Source source = sources.get(name);
+		if (source == null)
+			{
+			Source newSource = new Source(name);
+			source = sources.putIfAbsent(name, newSource);
+			if (source == null)
+				source = newSource;
+			}
+
+		// Listen to the microblog first, so no message falls between its
+		// recent messages and its events. If that fails, the user does not
+		// follow the microblog, so following it again tries again.
+		if (! source.followers.add(timeline))
+			return;
+		boolean followed = false;
+		try
+			{
+			MicroblogRef microblog = subscribe(source);
+			if (microblog != null)
+				timeline.merge(microblog.getRecentMessages(cap));
+			followed = true;
+			}
+		finally
+			{
+			if (! followed)
+				release(source, timeline);
+			}
+		}
+
+	/**
+	 * Make the given <TT>user</TT> stop following the microblog with the given
+	 * owner <TT>name</TT>.
+	 *
+	 * @param	user  User name.
+	 * @param	name  Microblog owner name.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public void unfollow
+		(String user,
+		 String name)
+		throws RemoteException
+		{
+		Timeline timeline = timelines.get(user);
+		Source source = sources.get(name);
+		if (timeline != null && source != null)
+			release(source, timeline);
+		}
+
+	/**
+	 * Get the <TT>count</TT> most recent messages of the given <TT>user</TT>'s
+	 * home timeline. At most 1000 messages are returned.
+	 *
+	 * @param	user   User name.
+	 * @param	count  Maximum number of messages.
+	 *
+	 * @return	TimelinePage  Page of messages, oldest first.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	public TimelinePage getTimeline
+		(String user,
+		 int count)
+		throws RemoteException
+		{
+		Timeline timeline = timelines.get(user);
+		if (timeline == null)
+			return new TimelinePage(new String[0], new int[0], new long[0], new String[0]);
+		return timeline.page(Math.min(count, MAX_PAGE));
+		}
+
+	/**
+	 * Add the messages of the given source's microblog with the given serial
+	 * numbers, reported by a sequence-only event, to the timelines of the
+	 * source's followers. They are got in one remote call.
+	 *
+	 * @param	source  Source.
+	 * @param	nums	Serial numbers.
+	 */
+	private void getMessages
+		(Source source,
+		 int[] nums)
+		{
+		MicroblogRef microblog = source.microblog;
+		if (microblog == null)
+			return;
+		try
+			{
+			MessagePage page = microblog.getMessages(nums);
+			for (int i = 0; i < page.size(); ++ i)
+				{
+				Entry entry = new Entry(page.name, page.num[i], page.time[i], page.text[i]);
+				for (Timeline timeline : source.followers)
+					timeline.add(entry);
+				}
+			}
+		catch (RemoteException re)
+			{
+			System.err.println
+				("\nTimelineService(): Cannot get messages from " + source.name + " -- " + re);
+			}
+		}
+
+	/**
+	 * Remove the given <TT>timeline</TT> from the given source's followers, and
+	 * stop listening to the source's microblog if that was the last one.
+	 *
+	 * @param	source	  Source.
+	 * @param	timeline  Timeline.
+	 */
+	private void release
+		(Source source,
+		 Timeline timeline)
+		{
+		synchronized (source)
+			{
+			if (! source.followers.remove(timeline) || ! source.followers.isEmpty())
+				return;
+			if (source.lease != null)
+				{
+				try
+					{
+					source.lease.cancel();
+					}
+				catch (RemoteException re)
+					{
+					// The microblog is gone, or will drop the listener when
+					// the lease runs out.
+					}
+				}
+			source.lease = null;
+			source.microblog = null;
+			}
+		}
+
+	/**
+	 * Listen to the given source's microblog, unless already listening.
+	 *
+	 * @param	source  Source.
+	 *
+	 * @return	MicroblogRef  The microblog, or null if it is not bound.
+	 *
+	 * @exception  	RemoteException
+	 *             	Thrown if a remote error occurred.
+	 */
+	private MicroblogRef subscribe
+		(Source source)
+		throws RemoteException
+		{
+		synchronized (source)
+			{
+			if (source.microblog != null)
+				return source.microblog;
+			try
+				{
+				MicroblogRef microblog = (MicroblogRef) registry.lookup(source.name);
+				source.lease = microblog.addBatchListener(mbListener);
+				source.microblog = microblog;
+				return microblog;
+				}
+			catch (NotBoundException nbe)
+				{
+				return null;
+				}
+			}
+		}
+
+	/**
+	 * Parse an integer command line argument.
+	 *
+	 * @param	arg	Command line argument.
+	 * @param	object  Invalid object name.
+	 *
+	 * @return	Integer value of <TT>arg</TT>.
+	 *
+	 * @exception	IllegalArgumentException
+	 *     		(unchecked exception) Thrown if <TT>arg</TT> cannot be parsed as an
+	 *     		integer.
+	 */
+	private static int parseInt
+		(String arg,
+		 String object)
+		{
+		try
+			{
+			return Integer.parseInt(arg);
+			}
+		catch (NumberFormatException e)
+			{
+			throw new IllegalArgumentException
+				("\nTimelineService(): Invalid <"+object+">: \""+arg+"\"");
+			}
+		}
+	}
@@ -0,0 +1,445 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class WireForm is the compact serialized form of the messages and microblog
+ * events in the P2Patter system. Classes AddMessage, MicroblogEvent, and
+ * MicroblogBatchEvent replace themselves with a wire form when they are
+ * serialized, and the wire form resolves back into the original object when it
+ * is deserialized.
+ * <P>
+ * Default serialization writes the class descriptor and the field names of
+ * every class in an event, and the formatted date/time of every message. The
+ * wire form instead writes:
+ * <UL>
+ * <LI>A version byte and a kind byte.
+ * <LI>The microblog owner name, once per event.
+ * <LI>For each message, the serial number as a variable-length integer (in a
+ * batch, the difference from the previous one), the date/time as epoch seconds
+ * (in a batch, the difference from the previous one), and the text in UTF-8.
+ * </UL>
+ * The sender's offset from UTC is written once, so the receiver shows each
+ * date/time exactly as the sender formatted it. A date/time that is not in the
+ * message date/time format, or falls in a daylight saving change, is written as
+ * text instead.
+ * <P>
+ * Version 1 is the only version so far. A later version may only append data
+ * after what version 1 writes; an older reader skips what it does not know, so
+ * old and new peers can exchange wire forms.
+ * <P>
+ * A peer that predates the wire form cannot read it. A peer talking to such
+ * peers must set the <TT>p2patter.wire.compact</TT> system property to false,
+ * which makes it send the default serialized form; every peer with this class
+ * reads both forms. The default forms stay compatible only as far as the
+ * classes do: their serial version UIDs are pinned, an older peer ignores the
+ * fields added since (the serial numbers of an event), and a newer peer fills
+ * those fields in from the messages of an older peer's event. A sequence-only
+ * event has no messages, so an older listener cannot use it; a microblog with
+ * older listeners must keep <TT>p2patter.microblog.seqonlyabove</TT> above its
+ * number of listeners.
+ * <P>
+ * A string longer than <TT>MAX_LENGTH</TT> bytes, or a batch of more than
+ * <TT>MAX_COUNT</TT> messages, is rejected as corrupt before anything is
+ * allocated for it.
+ */
+public class WireForm
+	implements Externalizable
+	{
+	/**
+	 * Pinned to the value of the first version, so that changing the members
+	 * of this class never breaks an older reader. The wire form's own version
+	 * byte, not this, tells the versions apart.
+	 */
+	private static final long serialVersionUID = 8262935656834855729L;
+
+	/**
+	 * True if objects are sent in their wire form.
+	 */
+	public static final boolean COMPACT =
+		Boolean.parseBoolean(System.getProperty("p2patter.wire.compact", "true"));
+
+	/**
+	 * The most UTF-8 bytes in a string read from a wire form.
+	 */
+	public static final int MAX_LENGTH = 1 << 20;
+
+	/**
+	 * The most messages or serial numbers in a batch read from a wire form.
+	 */
+	public static final int MAX_COUNT = 1 << 16;
+
+	private static final int VERSION = 1;
+
+	private static final int MESSAGE = 1;
+	private static final int EVENT = 2;
+	private static final int SEQUENCE_EVENT = 3;
+	private static final int BATCH_EVENT = 4;
+	private static final int SEQUENCE_BATCH_EVENT = 5;
+
+	private static final MessageClock clock = new MessageClock();
+
+	private Object object;
+
+	// Epoch seconds of the message last read by readMessage().
+	private long lastSeconds;
+
+	/**
+	 * Construct a new, empty wire form, to be filled in by
+	 * <TT>readExternal()</TT>.
+	 */
+	public WireForm()
+		{
+		}
+
+	/**
+	 * Construct a new wire form of the given <TT>object</TT>, which is an
+	 * AddMessage, a MicroblogEvent, or a MicroblogBatchEvent.
+	 *
+	 * @param	object  Object.
+	 */
+	public WireForm
+		(Object object)
+		{
+		this.object = object;
+		}
+
+	/**
+	 * Write this wire form to the given <TT>out</TT>.
+	 *
+	 * @param	out  Object output.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public void writeExternal
+		(ObjectOutput out)
+		throws IOException
+		{
+		out.writeByte(VERSION);
+		if (object instanceof AddMessage)
+			{
+			AddMessage message = (AddMessage) object;
+			out.writeByte(MESSAGE);
+			writeString(out, message.name);
+			int offset = clock.offset(System.currentTimeMillis());
+			writeVarLong(out, zigzag(offset));
+			writeMessage(out, message, 0, 0, offset);
+			}
+		else if (object instanceof MicroblogBatchEvent)
+			{
+			MicroblogBatchEvent event = (MicroblogBatchEvent) object;
+			if (event.messages == null)
+				{
+				out.writeByte(SEQUENCE_BATCH_EVENT);
+				writeString(out, event.name);
+				writeVarLong(out, event.nums.length);
+				int num = 0;
+				for (int i = 0; i < event.nums.length; ++ i)
+					{
+					writeVarLong(out, zigzag((long) event.nums[i] - num));
+					num = event.nums[i];
+					}
+				}
+			else
+				{
+				out.writeByte(BATCH_EVENT);
+				writeString(out, event.name);
+				int offset = clock.offset(System.currentTimeMillis());
+				writeVarLong(out, zigzag(offset));
+				writeVarLong(out, event.messages.length);
+				int num = 0;
+				long seconds = 0;
+				for (AddMessage message : event.messages)
+					{
+					seconds = writeMessage(out, message, num, seconds, offset);
+					num = message.num;
+					}
+				}
+			}
+		else
+			{
+			MicroblogEvent event = (MicroblogEvent) object;
+			if (event.message == null)
+				{
+				out.writeByte(SEQUENCE_EVENT);
+				writeString(out, event.name);
+				writeVarLong(out, zigzag(event.num));
+				}
+			else
+				{
+				out.writeByte(EVENT);
+				writeString(out, event.name);
+				int offset = clock.offset(System.currentTimeMillis());
+				writeVarLong(out, zigzag(offset));
+				writeMessage(out, event.message, 0, 0, offset);
+				}
+			}
+		}
+
+	/**
+	 * Read this wire form from the given <TT>in</TT>.
+	 *
+	 * @param	in  Object input.
+	 *
+	 * @exception	IOException
+	 *		Thrown if an I/O error occurred, or the data is not a wire
+	 *		form.
+	 */
+	public void readExternal
+		(ObjectInput in)
+		throws IOException
+		{
+		int version = in.readUnsignedByte();
+		if (version < 1)
+			throw new InvalidObjectException
+				("WireForm: Invalid version " + version);
+		int kind = in.readUnsignedByte();
+		String name = readString(in);
+		switch (kind)
+			{
+			case MESSAGE:
+				{
+				int offset = (int) unzigzag(readVarLong(in));
+				object = readMessage(in, name, 0, 0, offset);
+				break;
+				}
+			case EVENT:
+				{
+				int offset = (int) unzigzag(readVarLong(in));
+				object = new MicroblogEvent(name, readMessage(in, name, 0, 0, offset));
+				break;
+				}
+			case SEQUENCE_EVENT:
+				object = new MicroblogEvent(name, (int) unzigzag(readVarLong(in)));
+				break;
+			case BATCH_EVENT:
+				{
+				int offset = (int) unzigzag(readVarLong(in));
+				AddMessage[] messages = new AddMessage[readCount(in)];
+				int num = 0;
+				long seconds = 0;
+				for (int i = 0; i < messages.length; ++ i)
+					{
+					messages[i] = readMessage(in, name, num, seconds, offset);
+					num = messages[i].num;
+					seconds = lastSeconds;
+					}
+				object = new MicroblogBatchEvent(name, messages);
+				break;
+				}
+			case SEQUENCE_BATCH_EVENT:
+				{
+				int[] nums = new int[readCount(in)];
+				int num = 0;
+				for (int i = 0; i < nums.length; ++ i)
+					{
+					num = (int) (num + unzigzag(readVarLong(in)));
+					nums[i] = num;
+					}
+				object = new MicroblogBatchEvent(name, nums);
+				break;
+				}
+			default:
+				throw new InvalidObjectException
+					("WireForm: Invalid kind " + kind);
+			}
+		}
+
+	/**
+	 * Returns the object this wire form stands for.
+	 *
+	 * @return	Object  AddMessage, MicroblogEvent, or MicroblogBatchEvent.
+	 *
+	 * @exception	ObjectStreamException
+	 *		Thrown if this wire form is empty.
+	 */
+	protected Object readResolve()
+		throws ObjectStreamException
+		{
+		if (object == null)
+			throw new InvalidObjectException("WireForm: Empty wire form");
+		return object;
+		}
+
+	/**
+	 * Write the given <TT>message</TT>, without its owner name. Its serial
+	 * number and date/time are written as differences from the given
+	 * <TT>num</TT> and <TT>seconds</TT>.
+	 *
+	 * @return	long  Epoch seconds of the message, or <TT>seconds</TT> if its
+	 *		date/time was written as text.
+	 */
+	private static long writeMessage
+		(ObjectOutput out,
+		 AddMessage message,
+		 int num,
+		 long seconds,
+		 int offset)
+		throws IOException
+		{
+		writeVarLong(out, zigzag((long) message.num - num));
+		long time = toTime(message.date, offset);
+		if (time == Long.MIN_VALUE)
+			{
+			writeVarLong(out, 1);
+			writeString(out, message.date);
+			}
+		else
+			{
+			writeVarLong(out, zigzag(time / 1000 - seconds) << 1);
+			seconds = time / 1000;
+			}
+		writeString(out, message.text);
+		return seconds;
+		}
+
+	/**
+	 * Read a message written by <TT>writeMessage()</TT>, and set
+	 * <TT>lastSeconds</TT> to its epoch seconds.
+	 */
+	private AddMessage readMessage
+		(ObjectInput in,
+		 String name,
+		 int num,
+		 long seconds,
+		 int offset)
+		throws IOException
+		{
+		num = (int) (num + unzigzag(readVarLong(in)));
+		long tag = readVarLong(in);
+		String date;
+		if ((tag & 1) != 0)
+			{
+			date = readString(in);
+			}
+		else
+			{
+			seconds += unzigzag(tag >>> 1);
+			date = clock.format(seconds * 1000, offset);
+			}
+		lastSeconds = seconds;
+		return new AddMessage(name, num, date, readString(in));
+		}
+
+	/**
+	 * Returns the epoch milliseconds of the given message <TT>date</TT>, or
+	 * Long.MIN_VALUE if it would not be shown the same with the given
+	 * <TT>offset</TT> from UTC.
+	 */
+	private static long toTime
+		(String date,
+		 int offset)
+		{
+		try
+			{
+			long time = clock.parse(date);
+			return clock.offset(time) == offset ? time : Long.MIN_VALUE;
+			}
+		catch (IllegalArgumentException e)
+			{
+			return Long.MIN_VALUE;
+			}
+		}
+
+	/**
+	 * Read an element count.
+	 */
+	private static int readCount
+		(ObjectInput in)
+		throws IOException
+		{
+		long count = readVarLong(in);
+		if (count < 1 || count > MAX_COUNT)
+			throw new StreamCorruptedException("WireForm: Invalid count " + count);
+		return (int) count;
+		}
+
+	/**
+	 * Write the given string as its length in UTF-8 bytes followed by the
+	 * bytes.
+	 */
+	private static void writeString
+		(ObjectOutput out,
+		 String s)
+		throws IOException
+		{
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, b.length);
+		out.write(b);
+		}
+
+	/**
+	 * Read a string written by <TT>writeString()</TT>.
+	 */
+	private static String readString
+		(ObjectInput in)
+		throws IOException
+		{
+		long length = readVarLong(in);
+		if (length < 0 || length > MAX_LENGTH)
+			throw new StreamCorruptedException("WireForm: Invalid length " + length);
+		byte[] b = new byte[(int) length];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+		}
+
+	/**
+	 * Write the given non-negative <TT>value</TT> seven bits at a time, low
+	 * bits first, with the high bit of each byte set if more bytes follow.
+	 */
+	private static void writeVarLong
+		(ObjectOutput out,
+		 long value)
+		throws IOException
+		{
+		while ((value & ~0x7FL) != 0)
+			{
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+			}
+		out.writeByte((int) value);
+		}
+
+	/**
+	 * Read a value written by <TT>writeVarLong()</TT>.
+	 */
+	private static long readVarLong
+		(ObjectInput in)
+		throws IOException
+		{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+			{
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+			}
+		throw new StreamCorruptedException("WireForm: Invalid variable-length integer");
+		}
+
+	/**
+	 * Map a signed value to a non-negative one, small magnitudes to small
+	 * values.
+	 */
+	private static long zigzag
+		(long value)
+		{
+		return (value << 1) ^ (value >> 63);
+		}
+
+	/**
+	 * Undo <TT>zigzag()</TT>.
+	 */
+	private static long unzigzag
+		(long value)
+		{
+		return (value >>> 1) ^ -(value & 1);
+		}
+	}
@@ -0,0 +1,98 @@
+package p2patter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Class IngestBenchmark measures the posting throughput of one microblog's
+ * message factory and message list as the number of posting threads grows
+ * from 1 to 8. Each post takes a serial number, adds the message, and removes
+ * the message posted <TT>window</TT> posts before, so the list stays the same
+ * size. The slots of removed messages are not freed, so the factory and list
+ * are made afresh each iteration. The score is the total posts per second of
+ * all the threads. Run with
+ * <TT>-jvmArgsAppend -Dp2patter.microblog.offheap=true</TT> or
+ * <TT>-Dp2patter.microblog.hotwindow=</TT><I>n</I> to measure the other message
+ * stores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IngestBenchmark
+	{
+	@Param({"100000"})
+	public int window;
+
+	private MessageFactory factory;
+	private MessageList list;
+	private String text;
+	private String date;
+	private long time;
+
+	@Setup(Level.Iteration)
+	public void setUp()
+		{
+		char[] chars = new char[140];
+		Arrays.fill(chars, 'x');
+		text = new String(chars);
+		MessageClock clock = new MessageClock();
+		time = clock.now();
+		date = clock.format(time);
+		factory = new MessageFactory("ingest");
+		list = new MessageList("ingest");
+		}
+
+	private int post()
+		{
+		AddMessage message = factory.createMessage(text, date);
+		int num = message.num;
+		list.add(num, new Message(num, time, text));
+		if (num > window)
+			list.remove(num - window);
+		return num;
+		}
+
+	@Benchmark
+	@Threads(1)
+	public int post1()
+		{
+		return post();
+		}
+
+	@Benchmark
+	@Threads(2)
+	public int post2()
+		{
+		return post();
+		}
+
+	@Benchmark
+	@Threads(4)
+	public int post4()
+		{
+		return post();
+		}
+
+	@Benchmark
+	@Threads(8)
+	public int post8()
+		{
+		return post();
+		}
+	}
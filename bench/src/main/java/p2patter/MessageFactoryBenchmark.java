@@ -0,0 +1,66 @@
+package p2patter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Class MessageFactoryBenchmark measures creating a message with a
+ * MessageFactory, and the date/time and content building that
+ * <TT>Microblog.AddMessage()</TT> does for every message it adds.
+ * PostAllocationBenchmark measures what that allocates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageFactoryBenchmark
+	{
+	@Param({"140"})
+	public int size;
+
+	private MessageFactory factory;
+	private MessageClock clock;
+	private String text;
+	private String date;
+
+	@Setup
+	public void setUp()
+		{
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'x');
+		text = new String(chars);
+		factory = new MessageFactory("bench");
+		clock = new MessageClock();
+		date = clock.format(clock.now());
+		}
+
+	@Benchmark
+	public AddMessage createMessage()
+		{
+		return factory.createMessage(text, date);
+		}
+
+	/**
+	 * Stamp and render a message, without taking a serial number.
+	 */
+	@Benchmark
+	public String stampAndRender()
+		{
+		long time = clock.now();
+		String date = clock.format(time);
+		return Message.render("bench", 12345, date, text);
+		}
+	}
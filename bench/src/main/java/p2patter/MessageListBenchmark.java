@@ -0,0 +1,146 @@
+package p2patter;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Class MessageListBenchmark measures adding, removing, and querying the
+ * messages of a MessageList holding <TT>history</TT> messages of
+ * <TT>size</TT> characters each, of which a <TT>removed</TT> fraction, picked
+ * at random, has been removed, so the queries have gaps to skip.
+ * <P>
+ * Adding is measured on a fresh list each iteration, in short iterations so
+ * the list does not grow far past its history. Removing cannot be repeated on
+ * the same serial number, so it is timed in batches of 10000 calls on a fresh
+ * list, and its score is the time per batch; a batch removes the messages
+ * still there, newest first, then calls remove again on the ones removed
+ * before. Paging back through the whole
+ * list with queryBefore is measured one page per call, starting over from the
+ * newest message when it reaches the oldest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class MessageListBenchmark
+	{
+	private static final int BATCH = 10000;
+
+	@Param({"10000", "1000000"})
+	public int history;
+
+	@Param({"140"})
+	public int size;
+
+	@Param({"0", "0.3"})
+	public double removed;
+
+	private MessageList list;
+	private String text;
+	private long time;
+	private int next;
+	private int[] victims;
+	private int victim;
+	private int before;
+
+	/**
+	 * Make a list holding <TT>history</TT> messages.
+	 */
+	@Setup(Level.Iteration)
+	public void setUp()
+		{
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'x');
+		text = new String(chars);
+		time = new MessageClock().now();
+		list = new MessageList("bench");
+		for (int num = 1; num <= history; ++ num)
+			list.add(num, new Message(num, time, text));
+		Random random = new Random(1);
+		victims = new int[history];
+		int left = 0;
+		int gone = history;
+		for (int num = history; num >= 1; -- num)
+			if (random.nextDouble() < removed)
+				{
+				list.remove(num);
+				victims[-- gone] = num;
+				}
+			else
+				victims[left++] = num;
+		next = history + 1;
+		victim = 0;
+		before = 0;
+		}
+
+	@Benchmark
+	public void add()
+		{
+		list.add(next, new Message(next, time, text));
+		++ next;
+		}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	@Warmup(iterations = 20, batchSize = BATCH)
+	@Measurement(iterations = 20, batchSize = BATCH)
+	public Message remove()
+		{
+		return list.remove(victims[victim++]);
+		}
+
+	@Benchmark
+	public MessagePage queryRecent()
+		{
+		return list.queryRecent(20);
+		}
+
+	@Benchmark
+	public MessagePage queryBefore()
+		{
+		MessagePage page = list.queryBefore(before, 20);
+		before = page.next;
+		return page;
+		}
+
+	@Benchmark
+	public int[] queryRecentNum()
+		{
+		return list.queryRecentNum();
+		}
+
+	@Benchmark
+	public Date[] queryRecentTime()
+		{
+		return list.queryRecentTime();
+		}
+
+	@Benchmark
+	public String queryRecentName()
+		{
+		return list.queryRecentName();
+		}
+
+	@Benchmark
+	public String[] queryRecentCont()
+		{
+		return list.queryRecentCont();
+		}
+	}
@@ -0,0 +1,115 @@
+package p2patter;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Class MetricsBenchmark measures what the latency metrics add to every call
+ * of a microblog: two <TT>System.nanoTime()</TT> reads and one
+ * <TT>LatencyHistogram.record()</TT>. It measures that alone, and the
+ * in-memory part of <TT>Microblog.AddMessage()</TT> (stamp, render, and add
+ * the message to the list) with and without it, from 1 and from 4 threads
+ * sharing one histogram, as the threads of a microblog do. Each add removes the
+ * message added <TT>window</TT> adds before, so the list stays the same size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark
+	{
+	@Param({"100000"})
+	public int window;
+
+	private MessageFactory factory;
+	private MessageClock clock;
+	private MessageList list;
+	private LatencyHistogram histogram;
+	private String text;
+
+	@Setup(Level.Iteration)
+	public void setUp()
+		{
+		char[] chars = new char[140];
+		Arrays.fill(chars, 'x');
+		text = new String(chars);
+		factory = new MessageFactory("bench");
+		clock = new MessageClock();
+		list = new MessageList("bench");
+		histogram = new LatencyHistogram();
+		}
+
+	/**
+	 * Add a message as <TT>Microblog.AddMessage()</TT> does, less the message
+	 * log and the events.
+	 */
+	private String add()
+		{
+		AddMessage message = factory.createMessage(text, clock);
+		int num = message.num;
+		String cont = Message.render("bench", num, message.date, text);
+		list.add(num, new Message(num, clock.parse(message.date), text));
+		if (num > window)
+			list.remove(num - window);
+		return cont;
+		}
+
+	private String addRecorded()
+		{
+		long start = System.nanoTime();
+		String cont = add();
+		histogram.record(System.nanoTime() - start);
+		return cont;
+		}
+
+	@Benchmark
+	public long record()
+		{
+		long start = System.nanoTime();
+		histogram.record(System.nanoTime() - start);
+		return start;
+		}
+
+	@Benchmark
+	@Threads(1)
+	public String add1()
+		{
+		return add();
+		}
+
+	@Benchmark
+	@Threads(1)
+	public String addRecorded1()
+		{
+		return addRecorded();
+		}
+
+	@Benchmark
+	@Threads(4)
+	public String add4()
+		{
+		return add();
+		}
+
+	@Benchmark
+	@Threads(4)
+	public String addRecorded4()
+		{
+		return addRecorded();
+		}
+	}
@@ -0,0 +1,110 @@
+package p2patter;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Class PostAllocationBenchmark measures what <TT>Microblog.AddMessage()</TT>
+ * allocates to stamp, render, and store one message, now and as it was done
+ * before MessageClock: a new SimpleDateFormat and Calendar per post, and a
+ * stored message holding the owner name, a Date, and the complete message
+ * content. Run it with <TT>-prof gc</TT>; the <TT>gc.alloc.rate.norm</TT>
+ * score is the bytes allocated per post.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostAllocationBenchmark
+	{
+	/**
+	 * A stored message as it was before: owner name, serial number, date/time,
+	 * and complete message content.
+	 */
+	private static class OldMessage
+		{
+		private String name;
+		private int num;
+		private Date date;
+		private String cont;
+
+		public OldMessage
+			(String name,
+			 int num,
+			 Date date,
+			 String cont)
+			{
+			this.name = name;
+			this.num = num;
+			this.date = date;
+			this.cont = cont;
+			}
+		}
+
+	@Param({"140"})
+	public int size;
+
+	private MessageFactory factory;
+	private MessageClock clock;
+	private String text;
+
+	@Setup
+	public void setUp()
+		{
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'x');
+		text = new String(chars);
+		factory = new MessageFactory("bench");
+		clock = new MessageClock();
+		}
+
+	/**
+	 * Stamp, render, and store a message as <TT>Microblog.AddMessage()</TT>
+	 * does.
+	 */
+	@Benchmark
+	public Message post
+		(Blackhole reply)
+		{
+		AddMessage message = factory.createMessage(text, clock);
+		String date = message.date;
+		reply.consume(Message.render("bench", message.num, date, text));
+		return new Message(message.num, clock.parse(date), text);
+		}
+
+	/**
+	 * Stamp, render, and store a message as it was done before MessageClock.
+	 */
+	@Benchmark
+	public OldMessage oldPost()
+		{
+		SimpleDateFormat format = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+		Calendar cal = Calendar.getInstance();
+		cal.set(Calendar.MILLISECOND, 0);
+		Date toDay = cal.getTime();
+		String date = format.format(toDay);
+		AddMessage message = factory.createMessage(text, date);
+		int num = message.num;
+		String cont = Message.SEPARATOR + "\n" +
+			"bench -- Message " + num + " -- " + date + "\n" +
+			text;
+		return new OldMessage("bench", num, toDay, cont);
+		}
+	}
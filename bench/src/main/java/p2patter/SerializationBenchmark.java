@@ -0,0 +1,121 @@
+package p2patter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Class SerializationBenchmark measures serializing and deserializing an
+ * AddMessage and a MicroblogEvent of <TT>size</TT> characters, each on its own
+ * object stream as a remote call would. The benchmarks ending in
+ * <TT>Default</TT> run with compact wire forms turned off, so they measure the
+ * default serialized form.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark
+	{
+	@Param({"140"})
+	public int size;
+
+	private AddMessage message;
+	private MicroblogEvent event;
+	private byte[] messageBytes;
+	private byte[] eventBytes;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+
+	@Setup
+	public void setUp()
+		throws IOException
+		{
+		char[] chars = new char[size];
+		Arrays.fill(chars, 'x');
+		MessageClock clock = new MessageClock();
+		message = new AddMessage("bench", 12345, clock.format(clock.now()), new String(chars));
+		event = new MicroblogEvent("bench", message);
+		messageBytes = write(message);
+		eventBytes = write(event);
+		}
+
+	@Benchmark
+	public byte[] writeMessage()
+		throws IOException
+		{
+		return write(message);
+		}
+
+	@Benchmark
+	public Object readMessage()
+		throws Exception
+		{
+		return read(messageBytes);
+		}
+
+	@Benchmark
+	public byte[] writeEvent()
+		throws IOException
+		{
+		return write(event);
+		}
+
+	@Benchmark
+	public Object readEvent()
+		throws Exception
+		{
+		return read(eventBytes);
+		}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dp2patter.wire.compact=false")
+	public byte[] writeEventDefault()
+		throws IOException
+		{
+		return write(event);
+		}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dp2patter.wire.compact=false")
+	public Object readEventDefault()
+		throws Exception
+		{
+		return read(eventBytes);
+		}
+
+	private byte[] write
+		(Object object)
+		throws IOException
+		{
+		buffer.reset();
+		ObjectOutputStream out = new ObjectOutputStream(buffer);
+		out.writeObject(object);
+		out.close();
+		return buffer.toByteArray();
+		}
+
+	private static Object read
+		(byte[] bytes)
+		throws Exception
+		{
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		return in.readObject();
+		}
+	}
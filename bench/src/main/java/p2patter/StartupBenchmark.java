@@ -0,0 +1,93 @@
+package p2patter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Class StartupBenchmark measures how long a microblog with <TT>history</TT>
+ * messages takes to start, that is, to rebuild its message list from disk and
+ * get ready to post. With <TT>source</TT> = <TT>snapshot</TT> the messages
+ * are all in the snapshot file and the log is empty; with <TT>log</TT> they
+ * are all in the message log, as before the first snapshot is taken. Each
+ * start is timed once, since it is a one-time cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StartupBenchmark
+	{
+	@Param({"100000", "1000000"})
+	public int history;
+
+	@Param({"snapshot", "log"})
+	public String source;
+
+	private File dir;
+
+	/**
+	 * Write the snapshot and message log of a microblog holding
+	 * <TT>history</TT> messages.
+	 */
+	@Setup
+	public void setUp()
+		throws IOException
+		{
+		dir = Files.createTempDirectory("p2patter-startup").toFile();
+		System.setProperty("p2patter.microblog.dir", dir.getPath());
+		System.setProperty("p2patter.microblog.snapshotinterval", "3600000");
+
+		char[] chars = new char[140];
+		Arrays.fill(chars, 'x');
+		String text = new String(chars);
+		long time = new MessageClock().now();
+		MessageList list = new MessageList("startup");
+		MessageLog log = new MessageLog(dir, "startup", 0);
+		log.replay(list, 0);
+		for (int num = 1; num <= history; ++ num)
+			log.appendAdd(list, num, time, text);
+		if (source.equals("snapshot"))
+			{
+			long segment = log.roll();
+			new MessageSnapshot(new File(dir, "startup.snapshot")).write
+				(list, history, segment);
+			log.deleteBefore(segment);
+			}
+		log.close();
+		}
+
+	@TearDown
+	public void tearDown()
+		{
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+		}
+
+	@Benchmark
+	public int start()
+		throws IOException
+		{
+		Microblog microblog = new Microblog("startup");
+		int size = microblog.getMetrics().getMessageCount();
+		microblog.close();
+		return size;
+		}
+	}
@@ -0,0 +1,77 @@
+package p2patter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Class TimelineMergeBenchmark measures building Follow's initial timeline:
+ * merging the recent-message pages of <TT>microblogs</TT> followed microblogs,
+ * <TT>depth</TT> messages each, with a TimelineMerger. The messages are spread
+ * over the last hour, so messages of different microblogs often fall in the
+ * same second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimelineMergeBenchmark
+	{
+	@Param({"10", "100", "1000"})
+	public int microblogs;
+
+	@Param({"2", "20"})
+	public int depth;
+
+	private ArrayList<MessagePage> pages;
+
+	@Setup
+	public void setUp()
+		{
+		Random random = new Random(1);
+		char[] chars = new char[140];
+		Arrays.fill(chars, 'x');
+		String text = new String(chars);
+		long now = new MessageClock().now();
+		pages = new ArrayList<MessagePage>();
+		for (int m = 0; m < microblogs; ++ m)
+			{
+			int[] num = new int[depth];
+			long[] time = new long[depth];
+			String[] texts = new String[depth];
+			long t = now - 3600000L;
+			for (int i = 0; i < depth; ++ i)
+				{
+				t += random.nextInt(3600 / depth + 1) * 1000L;
+				num[i] = 100 + i;
+				time[i] = t;
+				texts[i] = text;
+				}
+			pages.add(new MessagePage("user" + m, num, time, texts));
+			}
+		}
+
+	@Benchmark
+	public void merge
+		(Blackhole blackhole)
+		{
+		TimelineMerger merger = new TimelineMerger(pages);
+		while (merger.hasNext())
+			blackhole.consume(merger.next());
+		}
+	}
@@ -0,0 +1,244 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Class ConcurrencyTest adds, removes, and queries messages from several
+ * threads at once, and checks that no serial number is lost or handed out
+ * twice, that exactly the removed messages are gone, and that every page a
+ * query returns is in strictly ascending order of serial number. The message
+ * list is checked on the heap, off the heap, and with a small hot window that
+ * spills old messages to disk while the threads run. It also checks that a
+ * later serial number never gets an earlier date/time, even when the posters'
+ * clock readings straddle second boundaries.
+ */
+public class ConcurrencyTest
+	{
+	private static final int THREADS = 8;
+	private static final int PER_THREAD = 20000;
+
+	@After
+	public void tearDown()
+		{
+		System.clearProperty("p2patter.microblog.offheap");
+		System.clearProperty("p2patter.microblog.arenablock");
+		System.clearProperty("p2patter.microblog.hotwindow");
+		System.clearProperty("p2patter.microblog.coldcache");
+		}
+
+	@Test
+	public void heapList()
+		throws Exception
+		{
+		stressList(new MessageList("heap"));
+		}
+
+	@Test
+	public void offHeapList()
+		throws Exception
+		{
+		System.setProperty("p2patter.microblog.offheap", "true");
+		System.setProperty("p2patter.microblog.arenablock", "65536");
+		stressList(new MessageList("offheap"));
+		}
+
+	@Test
+	public void spillingList()
+		throws Exception
+		{
+		System.setProperty("p2patter.microblog.hotwindow", "10000");
+		System.setProperty("p2patter.microblog.coldcache", "100");
+		stressList(new MessageList("spill"));
+		}
+
+	/**
+	 * Have each posting thread take serial numbers from one message factory,
+	 * add the messages, and remove every third of its own, while a reader
+	 * pages through the list.
+	 */
+	private static void stressList
+		(final MessageList list)
+		throws Exception
+		{
+		final MessageFactory factory = new MessageFactory("stress");
+		final int[][] taken = new int[THREADS][PER_THREAD];
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] posters = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++ t)
+			{
+			final int[] mine = taken[t];
+			posters[t] = new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						start.await();
+						for (int i = 0; i < PER_THREAD; ++ i)
+							{
+							AddMessage message = factory.createMessage("text " + i, "date");
+							mine[i] = message.num;
+							list.add(message.num, new Message(message.num, 1000L, message.text));
+							if (i % 3 == 2)
+								assertEquals("text " + (i - 1), list.remove(mine[i - 1]).getText());
+							}
+						}
+					catch (Throwable e)
+						{
+						record(errors, e);
+						}
+					}
+				};
+			posters[t].start();
+			}
+		Thread reader = new Thread()
+			{
+			public void run()
+				{
+				try
+					{
+					start.await();
+					while (! done.get())
+						{
+						checkAscending(list.queryRecent(100));
+						checkAscending(list.queryBefore(list.queryRecentNum()[0] / 2, 100));
+						checkAscending(list.queryAfter(list.queryRecentNum()[0] / 2, 100));
+						}
+					}
+				catch (Throwable e)
+					{
+					record(errors, e);
+					}
+				}
+			};
+		reader.start();
+		start.countDown();
+		for (Thread poster : posters)
+			poster.join();
+		done.set(true);
+		reader.join();
+		assertEquals(new ArrayList<Throwable>(), errors);
+
+		// Every serial number from 1 up was handed out exactly once.
+		int total = THREADS * PER_THREAD;
+		BitSet seen = new BitSet();
+		BitSet removed = new BitSet();
+		for (int[] mine : taken)
+			for (int i = 0; i < PER_THREAD; ++ i)
+				{
+				assertFalse("serial " + mine[i] + " handed out twice", seen.get(mine[i]));
+				seen.set(mine[i]);
+				if (i % 3 == 1 && i + 1 < PER_THREAD)
+					removed.set(mine[i]);
+				}
+		assertEquals(total, seen.cardinality());
+		assertEquals(total, seen.length() - 1);
+		assertEquals(total, factory.getNum());
+
+		// Exactly the removed messages are gone; the others are all there.
+		assertEquals(total - removed.cardinality(), list.size());
+		assertEquals(removed.cardinality(), list.removedCount());
+		int after = 0;
+		int expect = 0;
+		do
+			{
+			MessagePage page = list.queryAfter(after, 1000);
+			checkAscending(page);
+			for (int i = 0; i < page.size(); ++ i)
+				{
+				expect = removed.nextClearBit(expect + 1);
+				assertEquals(expect, page.num[i]);
+				}
+			after = page.next;
+			}
+		while (after != 0);
+		assertEquals(total, removed.nextClearBit(expect + 1) - 1);
+		}
+
+	@Test
+	public void datesFollowSerialNumbers()
+		throws Exception
+		{
+		// Each reading of this clock is up to three seconds off, as when
+		// posters are descheduled between reading the clock and taking a
+		// serial number.
+		final MessageClock clock = new MessageClock()
+			{
+			private final long base = super.now();
+
+			public long now()
+				{
+				return base + 1000L * new Random().nextInt(4);
+				}
+			};
+		final MessageFactory factory = new MessageFactory("a");
+		final long[] times = new long[THREADS * PER_THREAD + 1];
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<String> texts = new ArrayList<String>();
+		for (int i = 0; i < 4; ++ i)
+			texts.add("text " + i);
+		Thread[] posters = new Thread[THREADS];
+		for (int t = 0; t < THREADS; ++ t)
+			{
+			posters[t] = new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						start.await();
+						for (int i = 0; i < PER_THREAD; i += texts.size() + 1)
+							{
+							AddMessage message = factory.createMessage("text", clock);
+							times[message.num] = clock.parse(message.date);
+							for (AddMessage m : factory.createMessages(texts, clock))
+								times[m.num] = clock.parse(m.date);
+							}
+						}
+					catch (Throwable e)
+						{
+						record(errors, e);
+						}
+					}
+				};
+			posters[t].start();
+			}
+		start.countDown();
+		for (Thread poster : posters)
+			poster.join();
+		assertEquals(new ArrayList<Throwable>(), errors);
+
+		assertEquals(times.length - 1, factory.getNum());
+		for (int num = 2; num < times.length; ++ num)
+			assertTrue("serial " + num + " dated before serial " + (num - 1),
+				times[num - 1] <= times[num]);
+		}
+
+	private static void checkAscending
+		(MessagePage page)
+		{
+		for (int i = 1; i < page.size(); ++ i)
+			assertTrue("page out of order at " + page.num[i], page.num[i - 1] < page.num[i]);
+		}
+
+	private static void record
+		(List<Throwable> errors,
+		 Throwable e)
+		{
+		synchronized (errors)
+			{
+			errors.add(e);
+			}
+		}
+	}
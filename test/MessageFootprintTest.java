@@ -0,0 +1,84 @@
+import java.util.Date;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Class MessageFootprintTest measures the heap a message list takes per short
+ * message, against the old representation that kept the owner name, a Date,
+ * and the complete rendered content in every message. The footprint is the
+ * growth of the used heap, after garbage collection, while the messages are
+ * held.
+ */
+public class MessageFootprintTest
+	{
+	private static final int COUNT = 200000;
+	private static final String NAME = "alice";
+
+	/**
+	 * A stored message as it was before: owner name, serial number, date/time,
+	 * and complete message content.
+	 */
+	private static class OldMessage
+		{
+		private String name;
+		private int num;
+		private Date date;
+		private String cont;
+
+		public OldMessage
+			(String name,
+			 int num,
+			 Date date,
+			 String cont)
+			{
+			this.name = name;
+			this.num = num;
+			this.date = date;
+			this.cont = cont;
+			}
+		}
+
+	private static long usedHeap()
+		{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 5; ++ i)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+		}
+
+	/**
+	 * Returns a 20-character message text.
+	 */
+	private static String text
+		(int num)
+		{
+		return "short post number " + (10 + num % 90);
+		}
+
+	@Test
+	public void shortMessagesTakeLessThanHalf()
+		{
+		MessageClock clock = new MessageClock();
+		long time = clock.now();
+		String date = clock.format(time);
+
+		long before = usedHeap();
+		OldMessage[] old = new OldMessage[COUNT + 1];
+		for (int num = 1; num <= COUNT; ++ num)
+			old[num] = new OldMessage(NAME, num, new Date(time),
+				Message.render(NAME, num, date, text(num)));
+		double oldBytes = (double) (usedHeap() - before) / COUNT;
+		assertTrue(old[COUNT].cont.endsWith(text(COUNT)));
+		old = null;
+
+		before = usedHeap();
+		MessageList list = new MessageList(NAME);
+		for (int num = 1; num <= COUNT; ++ num)
+			list.add(num, new Message(num, time, text(num)));
+		double bytes = (double) (usedHeap() - before) / COUNT;
+		assertEquals(COUNT, list.size());
+
+		assertTrue("old " + oldBytes + " bytes, now " + bytes, bytes * 2 <= oldBytes);
+		}
+	}
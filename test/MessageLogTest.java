@@ -0,0 +1,245 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Class MessageLogTest checks that a microblog's message list comes back the
+ * same from its snapshot and message log, in particular when messages are
+ * removed right after they are added while snapshots are being taken.
+ */
+public class MessageLogTest
+	{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File dir;
+
+	@Before
+	public void setUp()
+		{
+		dir = folder.getRoot();
+		System.setProperty("p2patter.microblog.dir", dir.getPath());
+		System.setProperty("p2patter.microblog.syncwindow", "0");
+		System.setProperty("p2patter.microblog.snapshotinterval", "1");
+		}
+
+	@After
+	public void tearDown()
+		{
+		System.clearProperty("p2patter.microblog.dir");
+		System.clearProperty("p2patter.microblog.syncwindow");
+		System.clearProperty("p2patter.microblog.snapshotinterval");
+		}
+
+	@Test
+	public void replaysRemoveBeforeAdd()
+		throws Exception
+		{
+		MessageLog log = new MessageLog(dir, "a", 0);
+		log.replay(new MessageList("a"), 0);
+		log.appendRemove(5);
+		log.appendAdd(5, 1000L, "gone");
+		log.appendAdd(6, 1000L, "kept");
+		log.close();
+
+		MessageList list = new MessageList("a");
+		log = new MessageLog(dir, "a", 0);
+		assertEquals(6, log.replay(list, 0));
+		log.close();
+		assertNull(list.query(5));
+		assertEquals("kept", list.query(6).getText());
+		}
+
+	/**
+	 * Message list that, as soon as a message is added, has another thread
+	 * remove it, log the removal, and take a snapshot, as a client that saw
+	 * the message and a snapshot in the background might.
+	 */
+	private static class RacingList
+		extends MessageList
+		{
+		private MessageLog log;
+		private MessageSnapshot snapshot;
+		private Thread racer;
+		private Exception failure;
+
+		public RacingList
+			(MessageLog log,
+			 MessageSnapshot snapshot)
+			{
+			super("a");
+			this.log = log;
+			this.snapshot = snapshot;
+			}
+
+		public void add
+			(final int num,
+			 Message mess)
+			{
+			super.add(num, mess);
+			racer = new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						remove(num);
+						log.appendRemove(num);
+						long segment = log.roll();
+						snapshot.write(RacingList.this, num, segment);
+						log.deleteBefore(segment);
+						}
+					catch (Exception e)
+						{
+						failure = e;
+						}
+					}
+				};
+			racer.start();
+			try
+				{
+				// Give the racer every chance to get ahead of the add's record.
+				racer.join(200);
+				}
+			catch (InterruptedException ie)
+				{
+				Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+	@Test
+	public void logsRemoveAfterAdd()
+		throws Exception
+		{
+		File file = new File(dir, "a.snapshot");
+		MessageSnapshot snapshot = new MessageSnapshot(file);
+		MessageLog log = new MessageLog(dir, "a", 0);
+		RacingList racing = new RacingList(log, snapshot);
+		log.replay(racing, 0);
+		log.appendAdd(racing, 1, 1000L, "one");
+		racing.racer.join();
+		assertNull(racing.failure);
+		log.close();
+
+		// The removal came after the addition in the log, so the message does
+		// not come back from the snapshot and the remaining segments.
+		MessageList list = new MessageList("a");
+		assertTrue(snapshot.load(list));
+		log = new MessageLog(dir, "a", 0);
+		log.replay(list, snapshot.getSegment());
+		log.close();
+		assertFalse(list.contains(1));
+		assertEquals(0, list.size());
+		}
+
+	@Test
+	public void reopensAfterConcurrentSnapshots()
+		throws Exception
+		{
+		final Microblog microblog = new Microblog("stress");
+		final AtomicBoolean done = new AtomicBoolean();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		Thread[] adders = new Thread[2];
+		Thread[] removers = new Thread[2];
+		for (int t = 0; t < adders.length; ++ t)
+			{
+			adders[t] = new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						for (int i = 0; i < 5000; ++ i)
+							microblog.AddMessage("message " + i);
+						}
+					catch (Throwable e)
+						{
+						fail(errors, e);
+						}
+					}
+				};
+			}
+		for (int t = 0; t < removers.length; ++ t)
+			{
+			// Remove two in three of the newest messages as soon as they show
+			// up in the list, possibly before the posters have logged them,
+			// while snapshots roll the log every millisecond.
+			removers[t] = new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						while (! done.get())
+							for (int num : microblog.getRecentNum())
+								if (num % 3 != 0)
+									microblog.RemoveMessage(num);
+						}
+					catch (Throwable e)
+						{
+						fail(errors, e);
+						}
+					}
+				};
+			}
+		for (Thread thread : adders)
+			thread.start();
+		for (Thread thread : removers)
+			thread.start();
+		for (Thread thread : adders)
+			thread.join();
+		done.set(true);
+		for (Thread thread : removers)
+			thread.join();
+		assertEquals(new ArrayList<Throwable>(), errors);
+		List<Integer> before = live(microblog);
+		microblog.close();
+
+		Microblog reopened = new Microblog("stress");
+		List<Integer> after = live(reopened);
+		reopened.close();
+		assertTrue(before.size() >= 3333 && before.size() < 10000);
+		assertEquals(before, after);
+		}
+
+	private static void fail
+		(List<Throwable> errors,
+		 Throwable e)
+		{
+		synchronized (errors)
+			{
+			errors.add(e);
+			}
+		}
+
+	/**
+	 * Returns the serial numbers of the given microblog's live messages.
+	 */
+	private static List<Integer> live
+		(Microblog microblog)
+		throws Exception
+		{
+		List<Integer> nums = new ArrayList<Integer>();
+		int after = 0;
+		do
+			{
+			MessagePage page = microblog.getMessagesAfter(after, 1000);
+			for (int i = 0; i < page.size(); ++ i)
+				nums.add(page.num[i]);
+			after = page.next;
+			}
+		while (after != 0);
+		return nums;
+		}
+	}
@@ -0,0 +1,134 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Class MessageSnapshotTest checks that a snapshot loads back what was written,
+ * when it is loaded through mappings much smaller than the file, so records
+ * and texts straddle the mappings as they would past 2 GB, and when it was
+ * written from a message list that spills old messages to disk.
+ */
+public class MessageSnapshotTest
+	{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static MessagePage page
+		(int count)
+		{
+		int[] num = new int[count];
+		long[] time = new long[count];
+		String[] text = new String[count];
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < count; ++ i)
+			{
+			num[i] = 3 * i + 1;
+			time[i] = 1300000000000L + 1000L * i;
+			b.append(i % 2 == 0 ? "x" : "é€");
+			text[i] = b.toString();
+			}
+		return new MessagePage("a", num, time, text);
+		}
+
+	private static MessageList list
+		(MessagePage page)
+		{
+		MessageList list = new MessageList("a");
+		for (int i = 0; i < page.size(); ++ i)
+			list.add(page.num[i], new Message(page.num[i], page.time[i], page.text[i]));
+		return list;
+		}
+
+	@Test
+	public void loadsThroughSmallMappings()
+		throws IOException
+		{
+		File file = new File(folder.getRoot(), "a.snapshot");
+		MessagePage written = page(200);
+		new MessageSnapshot(file).write(list(written), 700, 9);
+
+		for (int window : new int[] {28, 45, 100, 4096})
+			{
+			MessageSnapshot snapshot = new MessageSnapshot(file, window);
+			MessageList list = new MessageList("a");
+			assertTrue(snapshot.load(list));
+			assertEquals(700, snapshot.getLast());
+			assertEquals(9, snapshot.getSegment());
+			assertEquals(written.size(), list.size());
+			for (int i = 0; i < written.size(); ++ i)
+				{
+				Message mess = list.query(written.num[i]);
+				assertEquals(written.time[i], mess.getTime());
+				assertEquals(written.text[i], mess.getText());
+				}
+			}
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+		}
+
+	@Test
+	public void writesSpilledMessages()
+		throws IOException
+		{
+		System.setProperty("p2patter.microblog.hotwindow", "5000");
+		System.setProperty("p2patter.microblog.coldcache", "10");
+		MessageList written;
+		try
+			{
+			written = new MessageList("a");
+			}
+		finally
+			{
+			System.clearProperty("p2patter.microblog.hotwindow");
+			System.clearProperty("p2patter.microblog.coldcache");
+			}
+		for (int num = 1; num <= 30000; ++ num)
+			if (num % 5000 != 0)
+				written.add(num, new Message(num, 1300000000000L + num, "text " + num));
+		for (int num = 7; num <= 30000; num += 7)
+			written.remove(num);
+		File file = new File(folder.getRoot(), "a.snapshot");
+		new MessageSnapshot(file).write(written, 30000, 2);
+
+		MessageList list = new MessageList("a");
+		assertTrue(new MessageSnapshot(file).load(list));
+		assertEquals(written.size(), list.size());
+		for (int num = 1; num <= 30000; ++ num)
+			{
+			Message mess = list.query(num);
+			if (num % 5000 == 0 || num % 7 == 0)
+				assertNull(mess);
+			else
+				assertEquals("text " + num, mess.getText());
+			}
+		}
+
+	@Test(expected = IOException.class)
+	public void rejectsCorruptSnapshot()
+		throws IOException
+		{
+		File file = new File(folder.getRoot(), "a.snapshot");
+		new MessageSnapshot(file).write(list(page(10)), 30, 1);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 1);
+		raf.write('!');
+		raf.close();
+		new MessageSnapshot(file, 45).load(new MessageList("a"));
+		}
+
+	@Test
+	public void loadsNothingWithoutFile()
+		throws IOException
+		{
+		MessageSnapshot snapshot = new MessageSnapshot(new File(folder.getRoot(), "none"));
+		MessageList list = new MessageList("a");
+		assertFalse(snapshot.load(list));
+		assertEquals(0, list.size());
+		}
+	}
@@ -0,0 +1,63 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Class MicroblogTest checks the argument checks of a microblog's bulk add.
+ */
+public class MicroblogTest
+	{
+	private Microblog microblog;
+
+	@Before
+	public void setUp()
+		throws Exception
+		{
+		microblog = new Microblog("bulk");
+		}
+
+	@After
+	public void tearDown()
+		throws Exception
+		{
+		microblog.close();
+		}
+
+	@Test
+	public void addsFullBatch()
+		throws Exception
+		{
+		List<String> texts = Collections.nCopies(Microblog.MAX_BATCH, "hello");
+		String[] cont = microblog.addMessages(texts);
+		assertEquals(Microblog.MAX_BATCH, cont.length);
+		assertEquals(Microblog.MAX_BATCH, microblog.getMetrics().getMessageCount());
+		}
+
+	@Test
+	public void rejectsBadBatches()
+		throws Exception
+		{
+		List<List<String>> bad = new ArrayList<List<String>>();
+		bad.add(null);
+		bad.add(Arrays.asList("one", null, "three"));
+		bad.add(Collections.nCopies(Microblog.MAX_BATCH + 1, "hello"));
+		for (List<String> texts : bad)
+			{
+			try
+				{
+				microblog.addMessages(texts);
+				fail("Accepted " + (texts == null ? null : texts.size() + " texts"));
+				}
+			catch (IllegalArgumentException iae)
+				{
+				}
+			}
+		assertEquals(0, microblog.getMetrics().getMessageCount());
+		}
+	}
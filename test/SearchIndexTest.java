@@ -0,0 +1,105 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Class SearchIndexTest checks a search index against a brute-force search of
+ * the same messages, when the messages are indexed far out of order, as when a
+ * late message lands behind thousands of encoded postings, and after some of
+ * them are removed.
+ */
+public class SearchIndexTest
+	{
+	private static final String[] WORDS =
+		{"alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta"};
+
+	@Test
+	public void matchesBruteForce()
+		{
+		Random random = new Random(1);
+		int count = 20000;
+		String[] texts = new String[count + 1];
+		for (int num = 1; num <= count; ++ num)
+			{
+			StringBuilder b = new StringBuilder();
+			for (int w = random.nextInt(4); w >= 0; -- w)
+				b.append(WORDS[(int) Math.min(WORDS.length - 1,
+					Math.abs(random.nextGaussian()) * 3)]).append(' ');
+			texts[num] = b.toString();
+			}
+
+		// Index most messages in order, and every tenth one much later, in
+		// shuffled order.
+		MessageList list = new MessageList("a");
+		SearchIndex index = new SearchIndex(list);
+		List<Integer> late = new ArrayList<Integer>();
+		for (int num = 1; num <= count; ++ num)
+			{
+			if (num % 10 == 0)
+				{
+				late.add(num);
+				continue;
+				}
+			list.add(num, new Message(num, num, texts[num]));
+			index.add(num, texts[num]);
+			}
+		Collections.shuffle(late, random);
+		for (int num : late)
+			{
+			list.add(num, new Message(num, num, texts[num]));
+			index.add(num, texts[num]);
+			}
+		check(list, index, texts, random);
+
+		// Remove a third of the messages and check again.
+		for (int num = 1; num <= count; ++ num)
+			if (random.nextInt(3) == 0)
+				{
+				list.remove(num);
+				index.remove(num, texts[num]);
+				}
+		check(list, index, texts, random);
+		}
+
+	private static void check
+		(MessageList list,
+		 SearchIndex index,
+		 String[] texts,
+		 Random random)
+		{
+		for (int q = 0; q < 200; ++ q)
+			{
+			String[] query = random.nextBoolean() ?
+				new String[] {WORDS[random.nextInt(WORDS.length)]} :
+				new String[] {WORDS[random.nextInt(WORDS.length)],
+					WORDS[random.nextInt(WORDS.length)].toUpperCase()};
+			int limit = 1 + random.nextInt(50);
+
+			int[] expected = new int[limit];
+			int n = 0;
+			for (int num = texts.length - 1; num >= 1 && n < limit; -- num)
+				if (list.contains(num) && matches(texts[num], query))
+					expected[n++] = num;
+			expected = Arrays.copyOf(expected, n);
+			Arrays.sort(expected);
+
+			MessagePage page = index.search(query[0] + (query.length > 1 ? " " + query[1] : ""), limit);
+			assertArrayEquals(Arrays.toString(query), expected, page.num);
+			}
+		}
+
+	private static boolean matches
+		(String text,
+		 String[] query)
+		{
+		List<String> words = Arrays.asList(text.split(" "));
+		for (String word : query)
+			if (! words.contains(word.toLowerCase()))
+				return false;
+		return true;
+		}
+	}
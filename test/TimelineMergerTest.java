@@ -0,0 +1,225 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Class TimelineMergerTest checks that TimelineMerger orders an initial
+ * timeline the way Follow's former insertion sort did, on random message
+ * pages, and that it fully orders pages with many ties.
+ */
+public class TimelineMergerTest
+	{
+	private static final long BASE = 1300000000000L;
+
+	/**
+	 * One message of a page, as Follow's former insertion sort held it.
+	 */
+	private static class Entry
+		{
+		private String name;
+		private int num;
+		private long time;
+		private String cont;
+
+		public Entry
+			(MessagePage page,
+			 int i)
+			{
+			this.name = page.name;
+			this.num = page.num[i];
+			this.time = page.time[i];
+			this.cont = page.getCont(i);
+			}
+		}
+
+	/**
+	 * Merge the pages with Follow's former insertion sort, ported as is.
+	 */
+	private static List<String> insertionSort
+		(List<MessagePage> pages)
+		{
+		LinkedList<Entry> initial = new LinkedList<Entry>();
+		for (MessagePage page : pages)
+			{
+			for (int i = 0; i < page.size(); ++ i)
+				{
+				Entry mess = new Entry(page, i);
+				if (initial.isEmpty())
+					{
+					initial.add(mess);
+					continue;
+					}
+				Entry tm = initial.getFirst();
+				while (tm != null)
+					{
+					if (mess.time < tm.time)
+						{
+						initial.add(initial.indexOf(tm), mess);
+						break;
+						}
+					else if (mess.time == tm.time &&
+							mess.name.compareTo(tm.name) < 0)
+						{
+						initial.add(initial.indexOf(tm), mess);
+						break;
+						}
+					else if (mess.time == tm.time &&
+							mess.name.compareTo(tm.name) == 0)
+						{
+						if (mess.num < tm.num)
+							initial.add(initial.indexOf(tm), mess);
+						else
+							initial.add(initial.indexOf(tm) + 1, mess);
+						break;
+						}
+					else if (initial.indexOf(tm) + 1 == initial.size())
+						{
+						initial.add(mess);
+						break;
+						}
+					else
+						{
+						tm = initial.get(initial.indexOf(tm) + 1);
+						}
+					}
+				}
+			}
+		List<String> result = new ArrayList<String>();
+		for (Entry entry : initial)
+			result.add(entry.cont);
+		return result;
+		}
+
+	/**
+	 * Merge the pages with a full sort by date/time, owner name, and serial
+	 * number.
+	 */
+	private static List<String> fullSort
+		(List<MessagePage> pages)
+		{
+		List<Entry> entries = new ArrayList<Entry>();
+		for (MessagePage page : pages)
+			for (int i = 0; i < page.size(); ++ i)
+				entries.add(new Entry(page, i));
+		Collections.sort(entries, new Comparator<Entry>()
+			{
+			public int compare
+				(Entry a,
+				 Entry b)
+				{
+				if (a.time != b.time)
+					return a.time < b.time ? -1 : 1;
+				int result = a.name.compareTo(b.name);
+				if (result != 0)
+					return result;
+				return a.num < b.num ? -1 : a.num == b.num ? 0 : 1;
+				}
+			});
+		List<String> result = new ArrayList<String>();
+		for (Entry entry : entries)
+			result.add(entry.cont);
+		return result;
+		}
+
+	private static List<String> merge
+		(List<MessagePage> pages)
+		{
+		List<String> result = new ArrayList<String>();
+		TimelineMerger merger = new TimelineMerger(pages);
+		while (merger.hasNext())
+			result.add(merger.next());
+		return result;
+		}
+
+	/**
+	 * Make random pages for up to <TT>microblogs</TT> microblogs of up to
+	 * <TT>depth</TT> messages each, in ascending order of serial number and
+	 * date/time. Each microblog posts at most <TT>perSecond</TT> messages in
+	 * any one second, spread over <TT>seconds</TT> seconds.
+	 */
+	private static List<MessagePage> randomPages
+		(Random random,
+		 int microblogs,
+		 int depth,
+		 int perSecond,
+		 int seconds)
+		{
+		List<MessagePage> pages = new ArrayList<MessagePage>();
+		int count = random.nextInt(microblogs + 1);
+		for (int m = 0; m < count; ++ m)
+			{
+			int size = random.nextInt(depth + 1);
+			int[] num = new int[size];
+			long[] time = new long[size];
+			String[] text = new String[size];
+			int n = random.nextInt(1000);
+			long t = BASE + random.nextInt(seconds) * 1000L;
+			int inSecond = 0;
+			for (int i = 0; i < size; ++ i)
+				{
+				n += 1 + random.nextInt(3);
+				if (inSecond == perSecond || random.nextInt(3) == 0)
+					{
+					t += (1 + random.nextInt(seconds)) * 1000L;
+					inSecond = 0;
+					}
+				++ inSecond;
+				num[i] = n;
+				time[i] = t;
+				text[i] = "text " + random.nextInt(100);
+				}
+			pages.add(new MessagePage("user" + m, num, time, text));
+			}
+		Collections.shuffle(pages, random);
+		return pages;
+		}
+
+	@Test
+	public void matchesFormerInsertionSort()
+		{
+		Random random = new Random(20110301);
+		for (int trial = 0; trial < 2000; ++ trial)
+			{
+			// The former sort misplaced a third message from one microblog in
+			// the same second, so at most two are posted per second here.
+			List<MessagePage> pages = randomPages(random, 12, 8, 2, 4);
+			assertEquals("trial " + trial, insertionSort(pages), merge(pages));
+			}
+		}
+
+	@Test
+	public void ordersManyTies()
+		{
+		Random random = new Random(42);
+		for (int trial = 0; trial < 2000; ++ trial)
+			{
+			List<MessagePage> pages = randomPages(random, 12, 20, 20, 2);
+			assertEquals("trial " + trial, fullSort(pages), merge(pages));
+			}
+		}
+
+	@Test
+	public void mergesEmptyPages()
+		{
+		List<MessagePage> pages = Arrays.asList
+			(new MessagePage("a", new int[0], new long[0], new String[0]),
+			 new MessagePage("b", new int[] {1}, new long[] {BASE},
+				new String[] {"hello"}));
+		assertEquals(fullSort(pages), merge(pages));
+		assertFalse(new TimelineMerger(new ArrayList<MessagePage>()).hasNext());
+		}
+
+	@Test(expected = NoSuchElementException.class)
+	public void throwsWhenExhausted()
+		{
+		new TimelineMerger(new ArrayList<MessagePage>()).next();
+		}
+	}
@@ -0,0 +1,128 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Class WireFormTest checks that messages and events come back from their wire
+ * form as they were sent, and that a wire form claiming a huge string or batch
+ * is rejected before anything is allocated for it.
+ */
+public class WireFormTest
+	{
+	private static final MessageClock clock = new MessageClock();
+
+	private static Object roundTrip
+		(Object object)
+		throws Exception
+		{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(object);
+		out.close();
+		return new ObjectInputStream
+			(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		}
+
+	private static AddMessage message
+		(int num,
+		 long time)
+		{
+		return new AddMessage("a", num, clock.format(time), "text é€ " + num);
+		}
+
+	private static void assertSame
+		(AddMessage expected,
+		 AddMessage actual)
+		{
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.num, actual.num);
+		assertEquals(expected.date, actual.date);
+		assertEquals(expected.text, actual.text);
+		}
+
+	@Test
+	public void roundTripsMessagesAndEvents()
+		throws Exception
+		{
+		long now = clock.now();
+		AddMessage message = message(7, now);
+		assertSame(message, (AddMessage) roundTrip(message));
+
+		MicroblogEvent event = (MicroblogEvent) roundTrip(new MicroblogEvent("a", message));
+		assertEquals(7, event.num);
+		assertSame(message, event.message);
+
+		event = (MicroblogEvent) roundTrip(new MicroblogEvent("a", 9));
+		assertEquals(9, event.num);
+		assertNull(event.message);
+
+		AddMessage[] messages = new AddMessage[] {message(3, now - 5000), message(5, now), message(4, now)};
+		MicroblogBatchEvent batch = (MicroblogBatchEvent)
+			roundTrip(new MicroblogBatchEvent("a", messages));
+		assertArrayEquals(new int[] {3, 5, 4}, batch.nums);
+		assertEquals(4, batch.num);
+		for (int i = 0; i < messages.length; ++ i)
+			assertSame(messages[i], batch.messages[i]);
+
+		batch = (MicroblogBatchEvent) roundTrip(new MicroblogBatchEvent("a", new int[] {3, 5, 4}));
+		assertArrayEquals(new int[] {3, 5, 4}, batch.nums);
+		assertNull(batch.messages);
+		}
+
+	/**
+	 * Read a wire form made of the given <TT>head</TT> bytes followed by the
+	 * given <TT>value</TT> as a variable-length integer, with no data after it.
+	 */
+	private static void read
+		(byte[] head,
+		 long value)
+		throws Exception
+		{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.write(head);
+		while ((value & ~0x7FL) != 0)
+			{
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+			}
+		out.writeByte((int) value);
+		out.close();
+		new WireForm().readExternal
+			(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		}
+
+	@Test
+	public void rejectsHugeLengthsAndCounts()
+		throws Exception
+		{
+		// Version 1 and kind: a message's name length; a batch event's message
+		// count, after name "a" and offset 0; a sequence-only batch event's
+		// serial number count, after name "a".
+		byte[][] heads = new byte[][] {{1, 1}, {1, 4, 1, 'a', 0}, {1, 5, 1, 'a'}};
+		long[][] values = new long[][]
+			{{WireForm.MAX_LENGTH + 1L, Integer.MAX_VALUE, Long.MAX_VALUE},
+			 {WireForm.MAX_COUNT + 1L, Integer.MAX_VALUE, Long.MAX_VALUE},
+			 {WireForm.MAX_COUNT + 1L, Integer.MAX_VALUE, Long.MAX_VALUE}};
+		for (int i = 0; i < heads.length; ++ i)
+			for (long value : values[i])
+				{
+				try
+					{
+					read(heads[i], value);
+					fail("Accepted " + value + " after " + Arrays.toString(heads[i]));
+					}
+				catch (StreamCorruptedException e)
+					{
+					}
+				}
+		}
+	}